@@ -24,62 +24,81 @@
   #include <sys/syscall.h>
   #include <sys/types.h>
   #include <unistd.h>
-  #include <string.h>
+  #include <errno.h>
+  #include <stdio.h>
 #endif
-#include <stdexcept>
 #include "software_chronicle_enterprise_internals_impl_NativeAffinity.h"
 
+#ifdef __linux__
+/*
+ * The default size of cpu_set_t supports 1024 CPUs, should be enough.
+ */
+static const size_t CPU_SET_SIZE = sizeof(cpu_set_t);
+
+/*
+ * The id of the native thread, which doesn't change, so is only looked up once per thread.
+ * Being native, it is also correct for virtual threads, which see the id of their carrier.
+ */
+static __thread jint thread_id = 0;
+#endif
+
+static void throwNew(JNIEnv *env, const char *className, const char *message) {
+    jclass clazz = env->FindClass(className);
+    if (clazz != NULL)
+        env->ThrowNew(clazz, message);
+}
+
 /*
  * Class:     software_chronicle_enterprise_internals_impl_NativeAffinity
  * Method:    getAffinity0
- * Signature: ()J
+ * Signature: ()[B
  */
 JNIEXPORT jbyteArray JNICALL Java_software_chronicle_enterprise_internals_impl_NativeAffinity_getAffinity0
   (JNIEnv *env, jclass c) 
 {
 #ifdef __linux__
-    // The default size of the structure supports 1024 CPUs, should be enough
-    // for now In the future we can use dynamic sets, which can support more
-    // CPUs, given OS can handle them as well
     cpu_set_t mask;
-    const size_t size = sizeof(mask);
+    CPU_ZERO(&mask);
 
-    int res = sched_getaffinity(0, size, &mask);
-    if (res < 0)
-    {
+    if (sched_getaffinity(0, CPU_SET_SIZE, &mask) < 0)
         return NULL;
-    }
-
-    jbyteArray ret = env->NewByteArray(size);
-    jbyte* bytes = env->GetByteArrayElements(ret, 0);
-    memcpy(bytes, &mask, size);
-    env->SetByteArrayRegion(ret, 0, size, bytes);
 
+    jbyteArray ret = env->NewByteArray(CPU_SET_SIZE);
+    if (ret != NULL)
+        env->SetByteArrayRegion(ret, 0, CPU_SET_SIZE, (const jbyte *) &mask);
     return ret;
 #else
-    throw std::runtime_error("Not supported");
+    throwNew(env, "java/lang/UnsupportedOperationException", "Not supported");
+    return NULL;
 #endif
 }
 
 /*
- * Class:     software_chronicle_enterprise_internals_NativeAffinity
+ * Class:     software_chronicle_enterprise_internals_impl_NativeAffinity
  * Method:    setAffinity0
- * Signature: (J)V
+ * Signature: ([B)V
  */
 JNIEXPORT void JNICALL Java_software_chronicle_enterprise_internals_impl_NativeAffinity_setAffinity0
   (JNIEnv *env, jclass c, jbyteArray affinity)
 {
 #ifdef __linux__
     cpu_set_t mask;
-    const size_t size = sizeof(mask);
     CPU_ZERO(&mask);
 
-    jbyte* bytes = env->GetByteArrayElements(affinity, 0);
-    memcpy(&mask, bytes, size);
+    jsize length = env->GetArrayLength(affinity);
+    if ((size_t) length > CPU_SET_SIZE) {
+        throwNew(env, "java/lang/IllegalArgumentException", "More cpus than cpu_set_t supports");
+        return;
+    }
+    env->GetByteArrayRegion(affinity, 0, length, (jbyte *) &mask);
 
-    sched_setaffinity(0, size, &mask);
+    if (sched_setaffinity(0, CPU_SET_SIZE, &mask) < 0) {
+        char message[64];
+        snprintf(message, sizeof(message), "sched_setaffinity failed; errno=%d", errno);
+        throwNew(env, "java/lang/IllegalStateException", message);
+    }
 #else
-    throw std::runtime_error("Not supported");
+    throwNew(env, "java/lang/UnsupportedOperationException", "Not supported");
 #endif
 }
 
@@ -91,10 +110,10 @@ JNIEXPORT void JNICALL Java_software_chronicle_enterprise_internals_impl_NativeA
 JNIEXPORT jint JNICALL Java_software_chronicle_enterprise_internals_impl_NativeAffinity_getProcessId0
   (JNIEnv *env, jclass c) {
 #ifndef __linux__
-    throw std::runtime_error("Not supported");
+    throwNew(env, "java/lang/UnsupportedOperationException", "Not supported");
+    return -1;
 #else
-      
-  return (jint) getpid();
+    return (jint) getpid();
 #endif
 }
 
@@ -106,10 +125,12 @@ JNIEXPORT jint JNICALL Java_software_chronicle_enterprise_internals_impl_NativeA
 JNIEXPORT jint JNICALL Java_software_chronicle_enterprise_internals_impl_NativeAffinity_getThreadId0
   (JNIEnv *env, jclass c) {
 #ifndef __linux__
-    throw std::runtime_error("Not supported");
+    throwNew(env, "java/lang/UnsupportedOperationException", "Not supported");
+    return -1;
 #else
-      
-    return (jint) (pid_t) syscall (SYS_gettid);
+    if (thread_id == 0)
+        thread_id = (jint) (pid_t) syscall(SYS_gettid);
+    return thread_id;
 #endif
 }
 
@@ -121,10 +142,67 @@ JNIEXPORT jint JNICALL Java_software_chronicle_enterprise_internals_impl_NativeA
 JNIEXPORT jint JNICALL Java_software_chronicle_enterprise_internals_impl_NativeAffinity_getCpu0
   (JNIEnv *env, jclass c) {
 #ifndef __linux__
-    throw std::runtime_error("Not supported");
+    throwNew(env, "java/lang/UnsupportedOperationException", "Not supported");
+    return -1;
 #else
-      
-  return (jint) sched_getcpu();
+    // glibc 2.35+ reads this from the rseq area the kernel keeps up to date, older versions call the vDSO on x86_64,
+    // either way no system call, and faster than rdtscp.
+    return (jint) sched_getcpu();
 #endif
 }
 
+/*
+ * Class:     software_chronicle_enterprise_internals_impl_NativeAffinity
+ * Method:    getAffinity1
+ * Signature: ([J)Z
+ */
+JNIEXPORT jboolean JNICALL Java_software_chronicle_enterprise_internals_impl_NativeAffinity_getAffinity1
+  (JNIEnv *env, jclass c, jlongArray affinity)
+{
+#ifdef __linux__
+    // cpu_set_t is an array of unsigned long, the same as the longs of a CpuSet on a 64-bit machine
+    cpu_set_t mask;
+    CPU_ZERO(&mask);
+
+    if (sched_getaffinity(0, CPU_SET_SIZE, &mask) < 0)
+        return JNI_FALSE;
+
+    jsize length = env->GetArrayLength(affinity);
+    if ((size_t) length > CPU_SET_SIZE / sizeof(jlong))
+        length = CPU_SET_SIZE / sizeof(jlong);
+    env->SetLongArrayRegion(affinity, 0, length, (const jlong *) &mask);
+    return JNI_TRUE;
+#else
+    throwNew(env, "java/lang/UnsupportedOperationException", "Not supported");
+    return JNI_FALSE;
+#endif
+}
+
+/*
+ * Class:     software_chronicle_enterprise_internals_impl_NativeAffinity
+ * Method:    setAffinity1
+ * Signature: ([J)V
+ */
+JNIEXPORT void JNICALL Java_software_chronicle_enterprise_internals_impl_NativeAffinity_setAffinity1
+  (JNIEnv *env, jclass c, jlongArray affinity)
+{
+#ifdef __linux__
+    cpu_set_t mask;
+    CPU_ZERO(&mask);
+
+    jsize length = env->GetArrayLength(affinity);
+    if ((size_t) length > CPU_SET_SIZE / sizeof(jlong)) {
+        throwNew(env, "java/lang/IllegalArgumentException", "More cpus than cpu_set_t supports");
+        return;
+    }
+    env->GetLongArrayRegion(affinity, 0, length, (jlong *) &mask);
+
+    if (sched_setaffinity(0, CPU_SET_SIZE, &mask) < 0) {
+        char message[64];
+        snprintf(message, sizeof(message), "sched_setaffinity failed; errno=%d", errno);
+        throwNew(env, "java/lang/IllegalStateException", message);
+    }
+#else
+    throwNew(env, "java/lang/UnsupportedOperationException", "Not supported");
+#endif
+}
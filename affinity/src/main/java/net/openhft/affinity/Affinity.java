@@ -22,6 +22,7 @@ import net.openhft.affinity.impl.*;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import software.chronicle.enterprise.internals.impl.NativeAffinity;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
@@ -37,9 +38,18 @@ import java.util.BitSet;
 public enum Affinity {
     ; // none
     static final Logger LOGGER = LoggerFactory.getLogger(Affinity.class);
+    /**
+     * Set to false to use JNA on Linux even when the Java 22 foreign function implementation is available.
+     */
+    public static final String AFFINITY_PANAMA = "affinity.panama";
+    /**
+     * Set to false to not load libCEInternals, the JNI implementation.
+     */
+    public static final String AFFINITY_NATIVE = "affinity.native";
     @NotNull
     private static final IAffinity AFFINITY_IMPL;
     private static Boolean JNAAvailable;
+    private static final ThreadLocal<CpuSet> ONE_CPU = ThreadLocal.withInitial(CpuSet::new);
 
     static {
         String osName = System.getProperty("os.name");
@@ -48,11 +58,16 @@ public enum Affinity {
             AFFINITY_IMPL = WindowsJNAAffinity.INSTANCE;
 
         } else if (osName.contains("x")) {
-            /*if (osName.startsWith("Linux") && NativeAffinity.LOADED) {
+            IAffinity panama;
+            if (osName.startsWith("Linux") && (panama = panamaAffinity()) != null) {
+                LOGGER.trace("Using Linux FFM-based affinity control implementation");
+                AFFINITY_IMPL = panama;
+
+            } else if (osName.startsWith("Linux") && isNativeAffinityUsable()) {
                 LOGGER.trace("Using Linux JNI-based affinity control implementation");
                 AFFINITY_IMPL = NativeAffinity.INSTANCE;
-            } else*/
-            if (osName.startsWith("Linux") && isLinuxJNAAffinityUsable()) {
+
+            } else if (osName.startsWith("Linux") && isLinuxJNAAffinityUsable()) {
                 LOGGER.trace("Using Linux JNA-based affinity control implementation");
                 AFFINITY_IMPL = LinuxJNAAffinity.INSTANCE;
 
@@ -82,6 +97,36 @@ public enum Affinity {
         return AFFINITY_IMPL;
     }
 
+    /**
+     * @return the implementation using the Foreign Function and Memory API, only in the multi-release jar on Java 22+,
+     * or null if not available.
+     */
+    private static IAffinity panamaAffinity() {
+        if (!Boolean.parseBoolean(System.getProperty(AFFINITY_PANAMA, "true")))
+            return null;
+        try {
+            final Class<?> clazz = Class.forName("net.openhft.affinity.impl.PanamaAffinity");
+            if (clazz.getField("LOADED").getBoolean(null))
+                return (IAffinity) clazz.getField("INSTANCE").get(null);
+        } catch (ClassNotFoundException e) {
+            // before Java 22, or not from the multi-release jar
+        } catch (Throwable t) {
+            logThrowable(t, "Linux FFM-based affinity not usable because it failed to load!");
+        }
+        return null;
+    }
+
+    private static boolean isNativeAffinityUsable() {
+        if (!Boolean.parseBoolean(System.getProperty(AFFINITY_NATIVE, "true")))
+            return false;
+        try {
+            return NativeAffinity.LOADED;
+        } catch (Throwable t) {
+            logThrowable(t, "Linux JNI-based affinity not usable because it failed to load!");
+            return false;
+        }
+    }
+
     private static boolean isWindowsJNAAffinityUsable() {
         if (isJNAAvailable()) {
             try {
@@ -160,12 +205,54 @@ public enum Affinity {
         AFFINITY_IMPL.setAffinity(affinity);
     }
 
+    /**
+     * Read the affinity of the current thread into a set, which on Linux creates no garbage once it has the capacity.
+     *
+     * @param affinity to overwrite with the cpus the current thread may run on
+     */
+    public static void getAffinity(@NotNull CpuSet affinity) {
+        AFFINITY_IMPL.getAffinity(affinity);
+    }
+
+    /**
+     * Set the affinity of the current thread, which on Linux creates no garbage.
+     *
+     * @param affinity the cpus it may run on
+     */
+    public static void setAffinity(@NotNull CpuSet affinity) {
+        AFFINITY_IMPL.setAffinity(affinity);
+    }
+
+    /**
+     * Bind the current thread to one cpu, without creating garbage after the first call on a thread.
+     */
     public static void setAffinity(int cpu) {
-        BitSet affinity = new BitSet(Runtime.getRuntime().availableProcessors());
+        final CpuSet affinity = ONE_CPU.get();
+        affinity.clear();
         affinity.set(cpu);
         setAffinity(affinity);
     }
 
+    /**
+     * @param threadId the native id of a thread of this process, or 0 for the current thread
+     * @return the affinity mask of that thread
+     * @throws UnsupportedOperationException if only the current thread is supported on this OS.
+     */
+    public static BitSet getAffinity(int threadId) {
+        return AFFINITY_IMPL.getAffinity(threadId);
+    }
+
+    /**
+     * Set the affinity of any thread of this process, e.g. a JVM thread such as a GC or JIT compiler thread.
+     *
+     * @param threadId the native id of a thread of this process, or 0 for the current thread
+     * @param affinity the cpus it may run on
+     * @throws UnsupportedOperationException if only the current thread is supported on this OS.
+     */
+    public static void setAffinity(int threadId, final BitSet affinity) {
+        AFFINITY_IMPL.setAffinity(threadId, affinity);
+    }
+
     public static int getCpu() {
         return AFFINITY_IMPL.getCpu();
     }
@@ -223,6 +310,6 @@ public enum Affinity {
     }
 
     public static void resetToBaseAffinity() {
-        Affinity.setAffinity(AffinityLock.BASE_AFFINITY);
+        Affinity.setAffinity(AffinityLock.BASE_CPU_SET);
     }
 }
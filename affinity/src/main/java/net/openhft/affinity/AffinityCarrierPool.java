@@ -0,0 +1,293 @@
+/*
+ * Copyright 2016-2020 chronicle.software
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.openhft.affinity;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A ForkJoinPool of carrier threads confined to a reserved set of cpus, either with each carrier pinned to a cpu of
+ * its own, or with every carrier sharing the set. Tasks, and virtual threads scheduled on the pool, only run on
+ * those cpus whichever carrier they move to.
+ * <pre>
+ * AffinityCpuSetLock cpus = AffinityLock.acquireCpuSet(4, AffinityStrategies.SAME_NODE);
+ * try (AffinityCarrierPool carriers = AffinityCarrierPool.pinned("carrier", cpus)) {
+ *     ThreadFactory requests = carriers.virtualThreadFactory("request");
+ *     ...
+ * }
+ * </pre>
+ * The pool takes over the set, and releases it once closed. Carriers added beyond one per cpu, e.g. to compensate
+ * for blocked workers, share the whole set.
+ */
+public class AffinityCarrierPool implements Executor, Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AffinityCarrierPool.class);
+
+    private final String name;
+    private final AffinityCpuSetLock cpuSet;
+    private final Queue<Integer> freeCpus = new ConcurrentLinkedQueue<>();
+    private final Set<CarrierThread> carriers = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger id = new AtomicInteger();
+    private final ForkJoinPool pool;
+
+    AffinityCarrierPool(@NotNull String name, @NotNull AffinityCpuSetLock cpuSet, boolean pinned, int parallelism) {
+        if (!cpuSet.isReserved())
+            throw new IllegalStateException(cpuSet + " has been released");
+        this.name = name;
+        this.cpuSet = cpuSet;
+        if (pinned)
+            cpuSet.cpus().stream().forEach(freeCpus::add);
+        this.pool = new ForkJoinPool(parallelism, CarrierThread::new, null, true);
+    }
+
+    /**
+     * @param name   of the carriers, numbered from 1
+     * @param cpuSet to run on, released when the pool is closed
+     * @return a pool of one carrier per cpu of the set, each pinned to its own cpu.
+     */
+    @NotNull
+    public static AffinityCarrierPool pinned(@NotNull String name, @NotNull AffinityCpuSetLock cpuSet) {
+        return new AffinityCarrierPool(name, cpuSet, true, cpuSet.size());
+    }
+
+    /**
+     * @param name        of the carriers, numbered from 1
+     * @param cpuSet      to run on, released when the pool is closed
+     * @param parallelism the number of carriers
+     * @return a pool of carriers which are each bound to every cpu of the set.
+     */
+    @NotNull
+    public static AffinityCarrierPool shared(@NotNull String name, @NotNull AffinityCpuSetLock cpuSet, int parallelism) {
+        return new AffinityCarrierPool(name, cpuSet, false, parallelism);
+    }
+
+    /**
+     * @return the cpus the carriers run on.
+     */
+    @NotNull
+    public BitSet cpus() {
+        return cpuSet.cpus();
+    }
+
+    /**
+     * @return the pool the carriers belong to, e.g. to submit ForkJoinTasks.
+     */
+    @NotNull
+    public ForkJoinPool forkJoinPool() {
+        return pool;
+    }
+
+    @Override
+    public void execute(@NotNull Runnable command) {
+        pool.execute(command);
+    }
+
+    /**
+     * @return the carriers currently running, in the order they started.
+     */
+    @NotNull
+    public List<Carrier> carriers() {
+        final List<CarrierThread> threads = new ArrayList<>(carriers);
+        threads.sort(Comparator.comparingInt(t -> t.id));
+        final List<Carrier> list = new ArrayList<>(threads.size());
+        for (CarrierThread t : threads)
+            list.add(new Carrier(t.getName(), t.threadId, t.cpuId,
+                    t.cpuId < 0 ? cpuSet.cpus() : cpus(t.cpuId), t.cpuId < 0 ? null : cpuSet.lock(t.cpuId)));
+        return list;
+    }
+
+    private static BitSet cpus(int cpuId) {
+        final BitSet cpus = new BitSet();
+        cpus.set(cpuId);
+        return cpus;
+    }
+
+    /**
+     * Virtual threads normally run on the JVM's own scheduler. There is no public API to choose another yet, so the
+     * internal constructor Java 21 provides is used reflectively.
+     *
+     * @param name of the virtual threads, numbered from 0
+     * @return a factory of virtual threads which run on the carriers of this pool.
+     * @throws UnsupportedOperationException before Java 21, or unless java.lang has been opened with
+     *                                       {@code --add-opens java.base/java.lang=ALL-UNNAMED}
+     */
+    @NotNull
+    public ThreadFactory virtualThreadFactory(@NotNull String name) {
+        try {
+            final Constructor<?> constructor = Class.forName("java.lang.ThreadBuilders$VirtualThreadBuilder")
+                    .getDeclaredConstructor(Executor.class);
+            constructor.setAccessible(true);
+            final Object builder = constructor.newInstance(pool);
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builderClass.getMethod("name", String.class, long.class).invoke(builder, name + '-', 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            throw new UnsupportedOperationException("Virtual threads on " + this
+                    + " need Java 21+ and --add-opens java.base/java.lang=ALL-UNNAMED", e);
+        }
+    }
+
+    /**
+     * Stop accepting tasks, wait for those submitted to complete, then release the cpus.
+     */
+    @Override
+    public void close() {
+        pool.shutdown();
+        boolean interrupted = false;
+        try {
+            while (!pool.awaitTermination(1, TimeUnit.SECONDS))
+                LOGGER.debug("Waiting for {} to terminate", this);
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            interrupted = true;
+        }
+        cpuSet.release();
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    @Override
+    public String toString() {
+        return "AffinityCarrierPool " + name + " on " + cpuSet;
+    }
+
+    /**
+     * A carrier as it was when {@link #carriers()} was called.
+     */
+    public static final class Carrier {
+        private final String name;
+        private final int threadId;
+        private final int cpuId;
+        private final BitSet cpus;
+        @Nullable
+        private final AffinityLock lock;
+
+        Carrier(String name, int threadId, int cpuId, BitSet cpus, @Nullable AffinityLock lock) {
+            this.name = name;
+            this.threadId = threadId;
+            this.cpuId = cpuId;
+            this.cpus = cpus;
+            this.lock = lock;
+        }
+
+        /**
+         * @return the name of the carrier thread.
+         */
+        @NotNull
+        public String name() {
+            return name;
+        }
+
+        /**
+         * @return the native thread id of the carrier.
+         */
+        public int threadId() {
+            return threadId;
+        }
+
+        /**
+         * @return the cpu the carrier is pinned to, or -1 if it shares the whole set.
+         */
+        public int cpuId() {
+            return cpuId;
+        }
+
+        /**
+         * @return the cpus the carrier is bound to.
+         */
+        @NotNull
+        public BitSet cpus() {
+            return (BitSet) cpus.clone();
+        }
+
+        /**
+         * @return the lock reserving the cpu of a pinned carrier, or null if it shares the whole set.
+         */
+        @Nullable
+        public AffinityLock lock() {
+            return lock;
+        }
+
+        @Override
+        public String toString() {
+            return name + " tid " + threadId + " on " + (cpuId < 0 ? "cpus " + cpus : "cpu " + cpuId);
+        }
+    }
+
+    /**
+     * Binds itself when it starts, to a free cpu of the set if pinned, and gives it back when it terminates.
+     */
+    private final class CarrierThread extends ForkJoinWorkerThread {
+        final int id = AffinityCarrierPool.this.id.incrementAndGet();
+        volatile int cpuId = -1;
+        volatile int threadId = -1;
+
+        CarrierThread(ForkJoinPool pool) {
+            super(pool);
+            setName(name + '-' + id);
+        }
+
+        @Override
+        protected void onStart() {
+            super.onStart();
+            final Integer cpu = freeCpus.poll();
+            if (cpu != null)
+                cpuId = cpu;
+            try {
+                if (cpuId >= 0)
+                    cpuSet.bind(cpuId);
+                else
+                    cpuSet.bind();
+            } catch (RuntimeException e) {
+                LOGGER.warn("Unable to bind {} to {}", getName(), cpuId >= 0 ? "cpu " + cpuId : cpuSet, e);
+            }
+            threadId = Affinity.getThreadId();
+            carriers.add(this);
+        }
+
+        @Override
+        protected void onTermination(Throwable exception) {
+            carriers.remove(this);
+            try {
+                cpuSet.unbind();
+            } finally {
+                if (cpuId >= 0)
+                    freeCpus.add(cpuId);
+                super.onTermination(exception);
+            }
+        }
+    }
+}
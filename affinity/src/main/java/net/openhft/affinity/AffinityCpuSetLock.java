@@ -0,0 +1,208 @@
+/*
+ * Copyright 2016-2020 chronicle.software
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.openhft.affinity;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.BitSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A set of cpus, or whole cores, reserved as a unit which any number of threads can be bound to, leaving the OS to
+ * balance the threads across the set, e.g. for the threads of an event loop group or a ForkJoinPool.
+ * <pre>
+ * try (AffinityCpuSetLock cpus = AffinityLock.acquireCpuSet(4, AffinityStrategies.SAME_SOCKET)) {
+ *     ExecutorService pool = Executors.newFixedThreadPool(8, cpus.threadFactory("pool"));
+ *     ...
+ * }
+ * </pre>
+ * The set is not owned by the thread which reserved it, so it stays reserved until released, or until this handle
+ * is garbage collected.
+ */
+public class AffinityCpuSetLock implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AffinityCpuSetLock.class);
+
+    private final LockInventory lockInventory;
+    private final Members members;
+
+    AffinityCpuSetLock(@NotNull LockInventory lockInventory, @NotNull AffinityLock[] locks) {
+        this.lockInventory = lockInventory;
+        this.members = new Members(locks);
+        for (AffinityLock al : locks)
+            al.cpuSet = members;
+        final Members members = this.members;
+        LockCleaner.register(this, () -> {
+            if (!members.isReleased()) {
+                LOGGER.warn("{} was discarded rather than release()d in a controlled manner.", members);
+                lockInventory.releaseCpuSet(members);
+            }
+        });
+    }
+
+    /**
+     * @return the cpus of the set.
+     */
+    @NotNull
+    public BitSet cpus() {
+        return (BitSet) members.cpus.clone();
+    }
+
+    /**
+     * @return the number of cpus in the set.
+     */
+    public int size() {
+        return members.locks.length;
+    }
+
+    /**
+     * @return whether the set is still reserved.
+     */
+    public boolean isReserved() {
+        return !members.isReleased();
+    }
+
+    /**
+     * Bind the current thread to every cpu of the set.
+     *
+     * @throws IllegalStateException if the set has been released.
+     */
+    public void bind() {
+        if (members.isReleased())
+            throw new IllegalStateException(members + " has been released");
+        members.threads.add(Thread.currentThread());
+        Affinity.setAffinity(members.cpus);
+    }
+
+    /**
+     * Bind the current thread to one cpu of the set, e.g. so each thread sharing the set has a cpu of its own.
+     *
+     * @param cpuId a cpu of the set
+     * @throws IllegalStateException    if the set has been released.
+     * @throws IllegalArgumentException if the cpu is not in the set.
+     */
+    public void bind(int cpuId) {
+        if (members.isReleased())
+            throw new IllegalStateException(members + " has been released");
+        if (cpuId < 0 || !members.cpus.get(cpuId))
+            throw new IllegalArgumentException("cpu " + cpuId + " is not in " + members);
+        members.threads.add(Thread.currentThread());
+        Affinity.setAffinity(cpuId);
+    }
+
+    /**
+     * @param cpuId a cpu of the set
+     * @return the lock reserving that cpu, or null if it is not in the set.
+     */
+    @Nullable
+    public AffinityLock lock(int cpuId) {
+        for (AffinityLock al : members.locks)
+            if (al.cpuId() == cpuId)
+                return al;
+        return null;
+    }
+
+    /**
+     * Reset the affinity of the current thread, if bound to the set.
+     */
+    public void unbind() {
+        if (members.threads.remove(Thread.currentThread()))
+            Affinity.resetToBaseAffinity();
+    }
+
+    /**
+     * @param name of the threads, numbered after the first
+     * @return a factory of daemon threads which are bound to the set while they run.
+     */
+    @NotNull
+    public ThreadFactory threadFactory(@NotNull String name) {
+        final AtomicInteger id = new AtomicInteger();
+        return r -> {
+            final int n = id.incrementAndGet();
+            final Thread t = new Thread(() -> {
+                bind();
+                try {
+                    r.run();
+                } finally {
+                    unbind();
+                }
+            }, n <= 1 ? name : name + '-' + n);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Release every cpu of the set. Threads still bound keep their affinity until they unbind, or the cpus are
+     * reserved again.
+     */
+    public void release() {
+        unbind();
+        lockInventory.releaseCpuSet(members);
+    }
+
+    @Override
+    public void close() {
+        release();
+    }
+
+    @Override
+    public String toString() {
+        return members.toString();
+    }
+
+    /**
+     * The state of a set, referred to by each of its locks. It doesn't refer to the handle, so the handle can be
+     * collected if discarded.
+     */
+    static final class Members {
+        final AffinityLock[] locks;
+        final BitSet cpus = new BitSet();
+        final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Members(AffinityLock[] locks) {
+            this.locks = locks;
+            for (AffinityLock al : locks)
+                cpus.set(al.cpuId());
+        }
+
+        /**
+         * @return true if this call released it.
+         */
+        boolean release() {
+            return released.compareAndSet(false, true);
+        }
+
+        boolean isReleased() {
+            return released.get();
+        }
+
+        @Override
+        public String toString() {
+            return "CPU set " + cpus + " bound to " + threads.size() + " threads";
+        }
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright 2016-2020 chronicle.software
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.openhft.affinity;
+
+import net.openhft.affinity.impl.FlatCpuLayout;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A description of which cpu to pick, parsed once so it can be cached and used for many acquisitions.
+ * <ul>
+ *     <li>"N" being a positive integer means allocate this CPU,</li>
+ *     <li>"last" or "last-N" means allocate from the end,</li>
+ *     <li>"csv:1,2,5,6" eg means allocate first free core from the provided</li>
+ *     <li>"any" means allow any</li>
+ *     <li>"none" or null means no cpu</li>
+ *     <li>"0" is not allowed</li>
+ * </ul>
+ * A comma separated list of terms picks the first free cpu which matches every term.
+ * <ul>
+ *     <li>"N", "N-M", "last" or "last-N" means these cpus, tried in ascending order, leaving out cpu 0,</li>
+ *     <li>"any" means any reservable cpu, which is assumed if no cpus are listed,</li>
+ *     <li>"socket:N", "node:N", "l2:N" or "l3:N" means a cpu on this socket, NUMA node or cache, the id of a cache
+ *     being its lowest cpu, and "core:N" a cpu of this physical core,</li>
+ *     <li>"socket:same-as:NAME" etc. means on the same socket as the cpu held by the thread called NAME,</li>
+ *     <li>"!term" means exclude the cpus matching the term, e.g. "!3", "!2-4" or "!socket:0",</li>
+ *     <li>"core:whole" means reserve every cpu of the core.</li>
+ * </ul>
+ * e.g. "2-7,!5" or "socket:1,l3:same-as:feeder,core:whole"
+ */
+public final class AffinityDescriptor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AffinityDescriptor.class);
+    private static final String SAME_AS = "same-as:";
+
+    private enum Kind {NONE, ANY, CPU, LAST, CSV, SELECT}
+
+    private enum Dimension {
+        SOCKET, NODE, L2, L3, CORE;
+
+        int id(FlatCpuLayout cpuLayout, int cpuId) {
+            switch (this) {
+                case SOCKET:
+                    return cpuLayout.socketId(cpuId);
+                case NODE:
+                    return cpuLayout.numaNodeId(cpuId);
+                case L2:
+                    return cpuLayout.l2CacheId(cpuId);
+                case L3:
+                    return cpuLayout.l3CacheId(cpuId);
+                default:
+                    return cpuLayout.physicalCoreId(cpuId);
+            }
+        }
+    }
+
+    /**
+     * A topology term, e.g. socket:1 or l3:same-as:feeder
+     */
+    private static final class Predicate {
+        final Dimension dimension;
+        final int id;
+        @Nullable
+        final String sameAs;
+
+        Predicate(Dimension dimension, int id, @Nullable String sameAs) {
+            this.dimension = dimension;
+            this.id = id;
+            this.sameAs = sameAs;
+        }
+    }
+
+    @NotNull
+    private final String desc;
+    @NotNull
+    private final Kind kind;
+    /**
+     * The cpu of CPU, the offset from the last cpu of LAST
+     */
+    private final int cpuId;
+    /**
+     * The cpus of CSV
+     */
+    @NotNull
+    private final int[] cpuIds;
+    /**
+     * The cpus listed for SELECT and the cpus excluded.
+     */
+    private final BitSet included = new BitSet();
+    private final BitSet excluded = new BitSet();
+    private final List<Integer> includedLast = new ArrayList<>();
+    private final List<Integer> excludedLast = new ArrayList<>();
+    private final List<Predicate> predicates = new ArrayList<>();
+    private final List<Predicate> exclusions = new ArrayList<>();
+    private boolean anyReservable;
+    private boolean cpusListed;
+    private boolean wholeCore;
+
+    private AffinityDescriptor(@NotNull String desc) {
+        this.desc = desc;
+        final String lower = desc.trim().toLowerCase(Locale.ROOT);
+        int cpuId = 0;
+        int[] cpuIds = {};
+        if (lower.equals("none")) {
+            kind = Kind.NONE;
+
+        } else if (lower.equals("any")) {
+            kind = Kind.ANY;
+
+        } else if (lower.startsWith("csv:")) {
+            kind = Kind.CSV;
+            try {
+                cpuIds = Arrays.stream(lower.substring(4).split(","))
+                        .map(String::trim)
+                        .mapToInt(Integer::parseInt).toArray();
+            } catch (NumberFormatException e) {
+                throw cannotParse(e);
+            }
+
+        } else if (lower.matches("last(-\\d+)?")) {
+            kind = Kind.LAST;
+            cpuId = parseLast(lower);
+
+        } else if (lower.matches("-?\\d+")) {
+            kind = Kind.CPU;
+            try {
+                cpuId = Integer.parseInt(lower);
+            } catch (NumberFormatException e) {
+                throw cannotParse(e);
+            }
+
+        } else {
+            kind = Kind.SELECT;
+            for (String term : desc.split(","))
+                parseTerm(term.trim());
+            anyReservable |= !cpusListed;
+        }
+        this.cpuId = cpuId;
+        this.cpuIds = cpuIds;
+    }
+
+    /**
+     * Parse a description of which cpu to pick.
+     *
+     * @param desc of which cpu to pick
+     * @return the compiled description
+     * @throws IllegalArgumentException if it cannot be parsed.
+     */
+    @NotNull
+    public static AffinityDescriptor compile(@NotNull String desc) {
+        return new AffinityDescriptor(desc);
+    }
+
+    private void parseTerm(String term) {
+        final boolean exclude = term.startsWith("!");
+        if (exclude)
+            term = term.substring(1).trim();
+        final String lower = term.toLowerCase(Locale.ROOT);
+        if (lower.equals("core:whole") && !exclude) {
+            wholeCore = true;
+
+        } else if (lower.equals("any") && !exclude) {
+            anyReservable = true;
+
+        } else if (lower.matches("last(-\\d+)?")) {
+            (exclude ? excludedLast : includedLast).add(parseLast(lower));
+            cpusListed |= !exclude;
+
+        } else if (lower.matches("\\d+(-\\d+)?")) {
+            final int dash = lower.indexOf('-');
+            try {
+                final int from = Integer.parseInt(dash < 0 ? lower : lower.substring(0, dash));
+                final int to = dash < 0 ? from : Integer.parseInt(lower.substring(dash + 1));
+                if (to < from)
+                    throw cannotParse(null);
+                if (exclude) {
+                    excluded.set(from, to + 1);
+                } else {
+                    // like "N", cpu 0 is never picked as it is usually used by the OS.
+                    included.set(Math.max(1, from), to + 1);
+                    cpusListed = true;
+                }
+            } catch (NumberFormatException e) {
+                throw cannotParse(e);
+            }
+
+        } else if (lower.contains(":")) {
+            final int colon = lower.indexOf(':');
+            final Dimension dimension;
+            try {
+                dimension = Dimension.valueOf(lower.substring(0, colon).toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw cannotParse(e);
+            }
+            final String value = term.substring(colon + 1);
+            final Predicate predicate;
+            if (value.toLowerCase(Locale.ROOT).startsWith(SAME_AS) && value.length() > SAME_AS.length()) {
+                predicate = new Predicate(dimension, -1, value.substring(SAME_AS.length()));
+            } else {
+                try {
+                    predicate = new Predicate(dimension, Integer.parseInt(value), null);
+                } catch (NumberFormatException e) {
+                    throw cannotParse(e);
+                }
+            }
+            (exclude ? exclusions : predicates).add(predicate);
+
+        } else {
+            throw cannotParse(null);
+        }
+    }
+
+    /**
+     * @return the offset from the last cpu of "last" or "last-N"
+     */
+    private int parseLast(String last) {
+        try {
+            return last.length() == 4 ? 0 : -Integer.parseInt(last.substring(5));
+        } catch (NumberFormatException e) {
+            throw cannotParse(e);
+        }
+    }
+
+    private IllegalArgumentException cannotParse(@Nullable Exception cause) {
+        return new IllegalArgumentException("Cannot parse '" + desc + "'", cause);
+    }
+
+    /**
+     * Assign a cpu matching this description to the current thread.
+     *
+     * @return A handle for an affinity lock, or no lock if no cpu matched.
+     */
+    public AffinityLock acquireLock() {
+        final LockInventory lockInventory = AffinityLock.lockInventory();
+        switch (kind) {
+            case NONE:
+                return lockInventory.noLock();
+            case ANY:
+                return AffinityLock.acquireLock();
+            case CSV:
+                return AffinityLock.acquireLock(cpuIds);
+            case LAST:
+            case CPU:
+                final int cpu = kind == Kind.LAST ? AffinityLock.PROCESSORS + cpuId - 1 : cpuId;
+                if (cpu <= 0) {
+                    System.err.println("Cannot allocate 0 or negative cpuIds '" + desc + "'");
+                    return lockInventory.noLock();
+                }
+                return AffinityLock.acquireLock(cpu);
+            default:
+                final int[] candidates = candidates(lockInventory);
+                if (candidates == null)
+                    return lockInventory.noLock();
+                return lockInventory.acquireFirst(true, candidates, wholeCore);
+        }
+    }
+
+    /**
+     * @return the cpus to try in order, or null if a thread referred to has no cpu.
+     */
+    @Nullable
+    int[] candidates(LockInventory lockInventory) {
+        final FlatCpuLayout cpuLayout = lockInventory.getFlatCpuLayout();
+        final int[] predicateCpus = referencedCpus(lockInventory, predicates);
+        final int[] exclusionCpus = referencedCpus(lockInventory, exclusions);
+        if (predicateCpus == null || exclusionCpus == null)
+            return null;
+
+        final BitSet listed = (BitSet) included.clone();
+        for (int last : includedLast) {
+            final int cpu = cpuLayout.cpus() + last - 1;
+            if (cpu > 0)
+                listed.set(cpu);
+            else
+                LOGGER.warn("Cannot allocate 0 or negative cpuIds for 'last{}' in '{}'", last, desc);
+        }
+        final BitSet notListed = (BitSet) excluded.clone();
+        for (int last : excludedLast) {
+            final int cpu = cpuLayout.cpus() + last - 1;
+            if (cpu >= 0)
+                notListed.set(cpu);
+        }
+
+        final int[] candidates = new int[cpuLayout.cpus()];
+        int count = 0;
+        for (int i = listed.nextSetBit(0); i >= 0 && i < cpuLayout.cpus(); i = listed.nextSetBit(i + 1))
+            if (matches(cpuLayout, i, notListed, predicateCpus, exclusionCpus))
+                candidates[count++] = i;
+        if (anyReservable) {
+            // consider all processors except cpu 0 which is usually used by the OS.
+            for (int i = cpuLayout.cpus() - 1; i > 0; i--)
+                if (lockInventory.isReservable(i) && !listed.get(i)
+                        && matches(cpuLayout, i, notListed, predicateCpus, exclusionCpus))
+                    candidates[count++] = i;
+        }
+        return Arrays.copyOf(candidates, count);
+    }
+
+    @Nullable
+    private int[] referencedCpus(LockInventory lockInventory, List<Predicate> predicates) {
+        final int[] cpus = new int[predicates.size()];
+        for (int i = 0; i < cpus.length; i++) {
+            final String sameAs = predicates.get(i).sameAs;
+            if (sameAs == null)
+                continue;
+            cpus[i] = lockInventory.cpuOf(sameAs);
+            if (cpus[i] < 0) {
+                LOGGER.warn("No cpu is held by a thread called {} for '{}'", sameAs, desc);
+                return null;
+            }
+        }
+        return cpus;
+    }
+
+    private boolean matches(FlatCpuLayout cpuLayout, int cpuId, BitSet notListed, int[] predicateCpus, int[] exclusionCpus) {
+        if (!cpuLayout.isOnline(cpuId) || notListed.get(cpuId))
+            return false;
+        for (int i = 0; i < predicates.size(); i++)
+            if (!matches(cpuLayout, cpuId, predicates.get(i), predicateCpus[i]))
+                return false;
+        for (int i = 0; i < exclusions.size(); i++)
+            if (matches(cpuLayout, cpuId, exclusions.get(i), exclusionCpus[i]))
+                return false;
+        return true;
+    }
+
+    private static boolean matches(FlatCpuLayout cpuLayout, int cpuId, Predicate predicate, int referencedCpu) {
+        final int id = predicate.dimension.id(cpuLayout, cpuId);
+        return predicate.sameAs == null
+                ? id == predicate.id
+                : id == predicate.dimension.id(cpuLayout, referencedCpu);
+    }
+
+    @NotNull
+    @Override
+    public String toString() {
+        return desc;
+    }
+}
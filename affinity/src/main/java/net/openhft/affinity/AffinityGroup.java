@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016-2020 chronicle.software
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.openhft.affinity;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The roles of a group of threads which need cpus reserved together, or not at all.
+ * <p>
+ * Each role needs a number of cpus. Every pair of cpus in the group must match all the strategies of both their
+ * roles, e.g. four cpus on distinct cores sharing one L3 cache
+ * <pre>
+ * Map&lt;String, AffinityLock[]&gt; locks = AffinityLock.acquireGroup(new AffinityGroup()
+ *         .role("feeder", 1, AffinityStrategies.SAME_L3)
+ *         .role("worker", 3, AffinityStrategies.SAME_L3));
+ * </pre>
+ * The locks are not bound, so each can be bound later by the thread which takes on that role.
+ */
+public class AffinityGroup {
+    private final List<String> names = new ArrayList<>();
+    private final List<Integer> counts = new ArrayList<>();
+    private final List<AffinityStrategy[]> strategies = new ArrayList<>();
+
+    /**
+     * Add a role to the group.
+     *
+     * @param name       of the role
+     * @param count      the number of cpus the role needs
+     * @param strategies which each cpu of this role must match against every other cpu in the group.
+     * @return this
+     */
+    @NotNull
+    public AffinityGroup role(@NotNull String name, int count, @NotNull AffinityStrategy... strategies) {
+        if (count < 1)
+            throw new IllegalArgumentException("Role " + name + " needs at least one cpu, not " + count);
+        if (names.contains(name))
+            throw new IllegalArgumentException("Role " + name + " already added");
+        names.add(name);
+        counts.add(count);
+        this.strategies.add(strategies.clone());
+        return this;
+    }
+
+    /**
+     * @return the names of the roles in the order added.
+     */
+    @NotNull
+    public List<String> roles() {
+        return new ArrayList<>(names);
+    }
+
+    /**
+     * @param role the name of the role
+     * @return the number of cpus it needs
+     */
+    public int count(@NotNull String role) {
+        return counts.get(indexOf(role));
+    }
+
+    /**
+     * @return the strategies of each cpu in the group, the cpus of one role sharing one array.
+     */
+    @NotNull
+    AffinityStrategy[][] slots() {
+        int total = 0;
+        for (int count : counts)
+            total += count;
+        final AffinityStrategy[][] slots = new AffinityStrategy[total][];
+        int slot = 0;
+        for (int i = 0; i < names.size(); i++)
+            for (int j = 0; j < counts.get(i); j++)
+                slots[slot++] = strategies.get(i);
+        return slots;
+    }
+
+    private int indexOf(String role) {
+        final int index = names.indexOf(role);
+        if (index < 0)
+            throw new IllegalArgumentException("No role " + role);
+        return index;
+    }
+
+    @NotNull
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("AffinityGroup{");
+        for (int i = 0; i < names.size(); i++) {
+            if (i > 0)
+                sb.append(", ");
+            sb.append(names.get(i)).append('=').append(counts.get(i));
+        }
+        return sb.append('}').toString();
+    }
+}
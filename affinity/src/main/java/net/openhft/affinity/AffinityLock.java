@@ -17,7 +17,10 @@
 
 package net.openhft.affinity;
 
+import net.openhft.affinity.impl.FlatCpuLayout;
 import net.openhft.affinity.impl.NoCpuLayout;
+import net.openhft.affinity.impl.SysfsCpuLayout;
+import net.openhft.affinity.impl.Utilities;
 import net.openhft.affinity.impl.VanillaCpuLayout;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -28,6 +31,13 @@ import java.io.Closeable;
 import java.io.File;
 import java.util.Arrays;
 import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * This utility class support locking a thread to a single core, or reserving a whole core for a
@@ -44,15 +54,37 @@ public class AffinityLock implements Closeable {
 
     public static final BitSet BASE_AFFINITY;
     public static final BitSet RESERVED_AFFINITY;
+    /**
+     * BASE_AFFINITY, to reset the affinity of a thread without creating garbage.
+     */
+    static final CpuSet BASE_CPU_SET;
+    private static final CpuReservationPolicy RESERVATION_POLICY;
+    /**
+     * The priority of a reservation made without one.
+     */
+    public static final int DEFAULT_PRIORITY = 0;
     static final int ANY_CPU = -1;
     private static final Logger LOGGER = LoggerFactory.getLogger(AffinityLock.class);
     private static final LockInventory LOCK_INVENTORY;
+    private static final Map<String, AffinityDescriptor> DESCRIPTORS = new ConcurrentHashMap<>();
+    private static final AtomicReferenceFieldUpdater<AffinityLock, Thread> ASSIGNED_THREAD =
+            AtomicReferenceFieldUpdater.newUpdater(AffinityLock.class, Thread.class, "assignedThread");
+    private static final AtomicIntegerFieldUpdater<AffinityLock> REVOKED =
+            AtomicIntegerFieldUpdater.newUpdater(AffinityLock.class, "revoked");
 
     static {
         int processors = Runtime.getRuntime().availableProcessors();
-        VanillaCpuLayout cpuLayout = null;
+        CpuLayout cpuLayout = null;
         try {
-            if (new File("/proc/cpuinfo").exists()) {
+            if (new File(SysfsCpuLayout.SYSFS_ROOT, "devices/system/cpu").isDirectory()) {
+                cpuLayout = SysfsCpuLayout.fromSysfs();
+                processors = cpuLayout.cpus();
+            }
+        } catch (Throwable e) {
+            LOGGER.warn("Unable to load /sys/devices/system/cpu, falling back to /proc/cpuinfo", e);
+        }
+        try {
+            if (cpuLayout == null && new File("/proc/cpuinfo").exists()) {
                 cpuLayout = VanillaCpuLayout.fromCpuInfo();
                 processors = cpuLayout.cpus();
             }
@@ -61,7 +93,11 @@ public class AffinityLock implements Closeable {
         }
         PROCESSORS = processors;
         BASE_AFFINITY = Affinity.getAffinity();
-        RESERVED_AFFINITY = getReservedAffinity0();
+        BASE_CPU_SET = CpuSet.valueOf(BASE_AFFINITY).toImmutable();
+        RESERVATION_POLICY = CpuReservationPolicy.create(SysfsCpuLayout.SYSFS_ROOT, "/proc", PROCESSORS,
+                BASE_AFFINITY, System.getProperty(AFFINITY_RESERVED));
+        LOGGER.info("Reserving CPUs {}", RESERVATION_POLICY);
+        RESERVED_AFFINITY = RESERVATION_POLICY.reserved();
         LOCK_INVENTORY = new LockInventory(cpuLayout == null ? new NoCpuLayout(PROCESSORS) : cpuLayout);
     }
 
@@ -82,10 +118,19 @@ public class AffinityLock implements Closeable {
      * each CPU.
      */
     private final LockInventory lockInventory;
-    boolean bound = false;
+    volatile boolean bound = false;
+    @Nullable
+    volatile Thread assignedThread;
+    volatile Throwable boundHere;
+    volatile int priority = DEFAULT_PRIORITY;
+    @Nullable
+    volatile RevocationListener revocationListener;
+    private volatile int revoked;
+    /**
+     * The set this cpu was reserved as part of, if any.
+     */
     @Nullable
-    Thread assignedThread;
-    Throwable boundHere;
+    volatile AffinityCpuSetLock.Members cpuSet;
     private boolean resetAffinity = true;
 
     AffinityLock(int cpuId, boolean base, boolean reservable, LockInventory lockInventory) {
@@ -114,29 +159,21 @@ public class AffinityLock implements Closeable {
         return LOCK_INVENTORY.getCpuLayout();
     }
 
-    private static BitSet getReservedAffinity0() {
-        String reservedAffinity = System.getProperty(AFFINITY_RESERVED);
-        if (BASE_AFFINITY != null && (reservedAffinity == null || reservedAffinity.trim().isEmpty())) {
-            BitSet reserverable = new BitSet(PROCESSORS);
-            reserverable.set(1, PROCESSORS, true);
-            reserverable.andNot(BASE_AFFINITY);
-            if (reserverable.isEmpty() && PROCESSORS > 1) {
-                // make all but first CPUs available
-                reserverable.set(1, PROCESSORS);
-                return reserverable;
-            }
-            return reserverable;
-        }
+    /**
+     * @return An immutable snapshot of the current CpuLayout which can be read without locking, e.g. by an
+     * {@link AffinityStrategy}.
+     */
+    @NotNull
+    public static FlatCpuLayout flatCpuLayout() {
+        return LOCK_INVENTORY.getFlatCpuLayout();
+    }
 
-        reservedAffinity = reservedAffinity.trim();
-        long[] longs = new long[1 + (reservedAffinity.length() - 1) / 16];
-        int end = reservedAffinity.length();
-        for(int i = 0; i < longs.length ; i++) {
-            int begin = Math.max(0, end - 16);
-            longs[i] = Long.parseLong(reservedAffinity.substring(begin, end), 16);
-            end = begin;
-        }
-        return BitSet.valueOf(longs);
+    /**
+     * @return Which cpus were chosen as RESERVED_AFFINITY and why.
+     */
+    @NotNull
+    public static CpuReservationPolicy reservationPolicy() {
+        return RESERVATION_POLICY;
     }
 
     /**
@@ -213,6 +250,78 @@ public class AffinityLock implements Closeable {
         return LOCK_INVENTORY.noLock();
     }
 
+    /**
+     * Assign a free cpu on a NUMA node to this thread.
+     *
+     * @param numaNodeId the NUMA node to allocate a cpu on.
+     * @return A handle for an affinity lock, or nolock if no cpu on that node is free.
+     */
+    public static AffinityLock acquireLockOnNode(int numaNodeId) {
+        return acquireLockOnNode(true, numaNodeId);
+    }
+
+    /**
+     * Assign a free cpu on a NUMA node which can be bound to the current thread or another thread.
+     *
+     * @param bind       if true, bind the current thread, if false, reserve a cpu which can be bound
+     *                   later.
+     * @param numaNodeId the NUMA node to allocate a cpu on.
+     * @return A handle for an affinity lock, or nolock if no cpu on that node is free.
+     */
+    public static AffinityLock acquireLockOnNode(boolean bind, int numaNodeId) {
+        Warnings.warmNoReservedCPUs();
+        return LOCK_INVENTORY.acquireLockOnNode(bind, numaNodeId);
+    }
+
+    /**
+     * Reserve cpus for every role of a group, or none at all. The locks are not bound, so each can be bound later by
+     * the thread which takes on that role.
+     *
+     * @param group the roles and the strategies their cpus must match.
+     * @return the locks of each role, or null if there is no set of free cpus which matches.
+     */
+    @Nullable
+    public static Map<String, AffinityLock[]> acquireGroup(@NotNull AffinityGroup group) {
+        Warnings.warmNoReservedCPUs();
+        final AffinityLock[] locks = LOCK_INVENTORY.acquireGroup(group.slots());
+        if (locks == null)
+            return null;
+        final Map<String, AffinityLock[]> roles = new LinkedHashMap<>();
+        int slot = 0;
+        for (String role : group.roles()) {
+            final int count = group.count(role);
+            roles.put(role, Arrays.copyOfRange(locks, slot, slot + count));
+            slot += count;
+        }
+        return roles;
+    }
+
+    /**
+     * Reserve a set of cpus as a unit, which any number of threads can be bound to.
+     *
+     * @param count      the number of cpus
+     * @param strategies which every pair of cpus in the set must match, e.g. SAME_SOCKET.
+     * @return the set, or null if there are not enough free cpus which match.
+     */
+    @Nullable
+    public static AffinityCpuSetLock acquireCpuSet(int count, @NotNull AffinityStrategy... strategies) {
+        Warnings.warmNoReservedCPUs();
+        return LOCK_INVENTORY.acquireCpuSet(count, false, strategies);
+    }
+
+    /**
+     * Reserve a set of whole cores, and all their cpus, as a unit which any number of threads can be bound to.
+     *
+     * @param count      the number of cores
+     * @param strategies which a cpu of every pair of cores in the set must match, e.g. SAME_SOCKET.
+     * @return the set, or null if there are not enough free cores which match.
+     */
+    @Nullable
+    public static AffinityCpuSetLock acquireCoreSet(int count, @NotNull AffinityStrategy... strategies) {
+        Warnings.warmNoReservedCPUs();
+        return LOCK_INVENTORY.acquireCpuSet(count, true, strategies);
+    }
+
     /**
      * Allocate from the end.
      *
@@ -233,6 +342,8 @@ public class AffinityLock implements Closeable {
      *     <li>"none" or null means</li>
      *     <li>"0" is not allowed</li>
      * </ul>
+     * as well as ranges, exclusions and topology terms, see {@link AffinityDescriptor}.
+     * The description is parsed once and cached.
      *
      * @param desc of which cpu to pick
      * @return the AffinityLock obtained
@@ -241,50 +352,7 @@ public class AffinityLock implements Closeable {
         if (desc == null)
             return LOCK_INVENTORY.noLock();
 
-        desc = desc.toLowerCase();
-        int cpuId;
-        if (desc.startsWith("last")) {
-            String last = desc.substring(4);
-            int lastN;
-            if (last.isEmpty())
-                lastN = 0;
-            else
-                try {
-                    lastN = Integer.parseInt(last);
-                } catch (NumberFormatException e) {
-                    throw new IllegalArgumentException("Cannot parse '" + desc + "'", e);
-                }
-            if (lastN > 0)
-                throw new IllegalArgumentException("Cannot parse '" + desc + "'");
-
-            cpuId = PROCESSORS + lastN - 1;
-
-        } else if (desc.startsWith("csv:")) {
-            String content = desc.substring(4);
-            int[] cpus = Arrays.asList(content.split(",")).stream()
-                    .map(String::trim)
-                    .mapToInt(Integer::parseInt).toArray();
-
-            return acquireLock(cpus);
-
-        } else if (desc.equals("none")) {
-            return LOCK_INVENTORY.noLock();
-
-        } else if (desc.equals("any")) {
-            return acquireLock();
-
-        } else {
-            try {
-                cpuId = Integer.parseInt(desc);
-            } catch (NumberFormatException e) {
-                throw new IllegalArgumentException("Cannot parse '" + desc + "'", e);
-            }
-        }
-        if (cpuId <= 0) {
-            System.err.println("Cannot allocate 0 or negative cpuIds '" + desc + "'");
-            return LOCK_INVENTORY.noLock();
-        }
-        return acquireLock(cpuId);
+        return DESCRIPTORS.computeIfAbsent(desc, AffinityDescriptor::compile).acquireLock();
     }
 
     /**
@@ -300,6 +368,85 @@ public class AffinityLock implements Closeable {
         return acquireCore(bind, ANY_CPU, AffinityStrategies.ANY);
     }
 
+    /**
+     * Assign any free cpu to this thread, waiting for one to be released by this or another process if none are free.
+     * Waiting threads are woken by releases rather than polling.
+     *
+     * @param timeout how long to wait
+     * @param unit    of the timeout
+     * @return A handle for the current AffinityLock.
+     * @throws TimeoutException     if no cpu was released in time.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public static AffinityLock acquireLock(long timeout, @NotNull TimeUnit unit) throws InterruptedException, TimeoutException {
+        Warnings.warmNoReservedCPUs();
+        return LOCK_INVENTORY.acquireLock(true, ANY_CPU, timeout, unit, AffinityStrategies.ANY);
+    }
+
+    /**
+     * Assign this cpu to this thread, waiting for it to be released by this or another process if it is taken.
+     *
+     * @param cpuId   the CPU id to bind to
+     * @param timeout how long to wait
+     * @param unit    of the timeout
+     * @return A handle for the current AffinityLock.
+     * @throws IllegalArgumentException if there is no such cpu.
+     * @throws TimeoutException         if the cpu was not released in time.
+     * @throws InterruptedException     if interrupted while waiting.
+     */
+    public static AffinityLock acquireLock(int cpuId, long timeout, @NotNull TimeUnit unit) throws InterruptedException, TimeoutException {
+        return LOCK_INVENTORY.acquireLock(true, cpuId, DEFAULT_PRIORITY, null, timeout, unit);
+    }
+
+    /**
+     * Assign any free core to this thread, waiting for one to be released by this or another process if none are free.
+     *
+     * @param timeout how long to wait
+     * @param unit    of the timeout
+     * @return A handle for the current AffinityLock.
+     * @throws TimeoutException     if no core was released in time.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public static AffinityLock acquireCore(long timeout, @NotNull TimeUnit unit) throws InterruptedException, TimeoutException {
+        Warnings.warmNoReservedCPUs();
+        return LOCK_INVENTORY.acquireCore(true, ANY_CPU, timeout, unit, AffinityStrategies.ANY);
+    }
+
+    /**
+     * Assign a reservable cpu to this thread with a priority. If none are free, the holder with the lowest priority
+     * below this one, in this process or another, is asked to release its cpu and this waits for it.
+     *
+     * @param priority the higher, the more important
+     * @param listener told if a reservation of a higher priority needs this cpu, or null
+     * @param timeout  how long to wait
+     * @param unit     of the timeout
+     * @return A handle for the current AffinityLock.
+     * @throws TimeoutException     if no cpu was released in time.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public static AffinityLock acquireLock(int priority, @Nullable RevocationListener listener, long timeout, @NotNull TimeUnit unit) throws InterruptedException, TimeoutException {
+        Warnings.warmNoReservedCPUs();
+        return LOCK_INVENTORY.acquireLock(true, ANY_CPU, priority, listener, timeout, unit);
+    }
+
+    /**
+     * Assign this cpu to this thread with a priority. If it is held with a lower priority, in this process or
+     * another, the holder is asked to release it and this waits for it.
+     *
+     * @param cpuId    the CPU id to bind to
+     * @param priority the higher, the more important
+     * @param listener told if a reservation of a higher priority needs this cpu, or null
+     * @param timeout  how long to wait
+     * @param unit     of the timeout
+     * @return A handle for the current AffinityLock.
+     * @throws IllegalArgumentException if there is no such cpu.
+     * @throws TimeoutException         if the cpu was not released in time.
+     * @throws InterruptedException     if interrupted while waiting.
+     */
+    public static AffinityLock acquireLock(int cpuId, int priority, @Nullable RevocationListener listener, long timeout, @NotNull TimeUnit unit) throws InterruptedException, TimeoutException {
+        return LOCK_INVENTORY.acquireLock(true, cpuId, priority, listener, timeout, unit);
+    }
+
     private static AffinityLock acquireLock(boolean bind, int cpuId, @NotNull AffinityStrategy... strategies) {
         Warnings.warmNoReservedCPUs();
         return LOCK_INVENTORY.acquireLock(bind, cpuId, strategies);
@@ -322,6 +469,39 @@ public class AffinityLock implements Closeable {
         return LOCK_INVENTORY.acquireCore(bind, cpuId, strategies);
     }
 
+    /**
+     * Look up the lock of the current thread without scanning every cpu.
+     *
+     * @return the lock most recently assigned to the current thread, or null if it holds none.
+     */
+    @Nullable
+    public static AffinityLock current() {
+        return LOCK_INVENTORY.current();
+    }
+
+    /**
+     * Release the locks held by threads which died without releasing them. This scans every cpu so it is
+     * intended to be called occasionally, e.g. when no cpu can be acquired, rather than on every release.
+     *
+     * @return the number of locks released.
+     */
+    public static int releaseDeadThreads() {
+        return LOCK_INVENTORY.releaseDeadThreads();
+    }
+
+    static LockInventory lockInventory() {
+        return LOCK_INVENTORY;
+    }
+
+    /**
+     * @param cpuId any cpu of a core
+     * @return the process holding each cpu of the core which is locked, by this process or another, by cpu.
+     */
+    @NotNull
+    public static Map<Integer, ProcessIdentity> coreHolders(int cpuId) {
+        return LOCK_INVENTORY.coreHolders(cpuId);
+    }
+
     /**
      * @return All the current locks as a String.
      */
@@ -360,7 +540,7 @@ public class AffinityLock implements Closeable {
      * @param wholeCore whether to reserve all the thread in the same core.
      */
     final void assignCurrentThread(boolean bind, boolean wholeCore) {
-        assignedThread = Thread.currentThread();
+        lockInventory.assignCurrentThread(this);
         if (bind)
             bind(wholeCore);
     }
@@ -383,39 +563,90 @@ public class AffinityLock implements Closeable {
 
         if (areAssertionsEnabled())
             boundHere = new Throwable("Bound here");
+        if (Utilities.isVirtual(Thread.currentThread()))
+            LOGGER.warn("Binding virtual thread {} binds only the carrier it is running on, use an AffinityCarrierPool to confine its carriers",
+                    Thread.currentThread());
         if (wholeCore) {
             lockInventory.bindWholeCore(cpuId);
 
         } else if (cpuId >= 0) {
             bound = true;
-            assignedThread = Thread.currentThread();
+            lockInventory.assignCurrentThread(this);
             LOGGER.info("Assigning cpu {} to {} on thread id {}", cpuId, assignedThread, Affinity.getThreadId());
         }
-        if (cpuId >= 0) {
-            BitSet affinity = new BitSet();
-            affinity.set(cpuId, true);
-            Affinity.setAffinity(affinity);
-        }
+        if (cpuId >= 0)
+            Affinity.setAffinity(cpuId);
     }
 
-    final boolean canReserve(boolean specified) {
+    /**
+     * @return whether this cpu can be chosen when no cpu was specified.
+     */
+    final boolean isReservable() {
+        return reservable;
+    }
 
-        if (!specified && !reservable)
-            return false;
+    /**
+     * Clear the assigned thread if it is still the one expected, so only one caller releases the lock.
+     *
+     * @param expected the thread the lock is assigned to
+     * @return true if this call cleared it.
+     */
+    final boolean unassign(@NotNull Thread expected) {
+        return ASSIGNED_THREAD.compareAndSet(this, expected, null);
+    }
 
-        if (!LockCheck.isCpuFree(cpuId))
+    /**
+     * Ask the holder of this lock to give up its cpu, once.
+     *
+     * @param priority of the reservation which wants the cpu
+     * @return true if this call asked.
+     */
+    final boolean revoke(int priority) {
+        if (REVOKED.getAndIncrement(this) != 0)
             return false;
-
-        if (assignedThread != null) {
-            if (assignedThread.isAlive()) {
-                return false;
+        LOGGER.info("Asking {} to release cpu {} for priority {}", assignedThread, cpuId, priority);
+        final RevocationListener listener = revocationListener;
+        if (listener != null) {
+            try {
+                listener.onRevoke(this, priority);
+            } catch (Throwable t) {
+                LOGGER.warn("Revocation listener for cpu {} failed", cpuId, t);
             }
-
-            LOGGER.warn("Lock assigned to {} but this thread is dead.", assignedThread);
         }
         return true;
     }
 
+    /**
+     * Withdraw a request made by {@link #revoke(int)}. It stays revoked while other requests are outstanding.
+     */
+    final void cancelRevoke() {
+        REVOKED.getAndUpdate(this, r -> r > 0 ? r - 1 : 0);
+    }
+
+    /**
+     * Clear the priority and revocation state once released.
+     */
+    final void resetPriority() {
+        priority = DEFAULT_PRIORITY;
+        revocationListener = null;
+        revoked = 0;
+    }
+
+    /**
+     * @return the priority this lock was acquired with.
+     */
+    public int priority() {
+        return priority;
+    }
+
+    /**
+     * @return whether a reservation of a higher priority has asked for this cpu, so the holder should release it
+     * at its next safe point.
+     */
+    public boolean isRevoked() {
+        return revoked != 0;
+    }
+
     /**
      * Give another affinity lock relative to this one based on a list of strategies. <p> The
      * strategies are evaluated in order to (like a search path) to find the next appropriate
@@ -429,6 +660,46 @@ public class AffinityLock implements Closeable {
         return acquireLock(false, cpuId, strategies);
     }
 
+    /**
+     * Give another affinity lock relative to this one, waiting for a matching cpu to be released if none are free.
+     *
+     * @param timeout    how long to wait
+     * @param unit       of the timeout
+     * @param strategies To determine if you want the same/different core/socket.
+     * @return A matching AffinityLock.
+     * @throws TimeoutException     if no matching cpu was released in time.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public AffinityLock acquireLock(long timeout, @NotNull TimeUnit unit, AffinityStrategy... strategies) throws InterruptedException, TimeoutException {
+        return lockInventory.acquireLock(false, cpuId, timeout, unit, strategies);
+    }
+
+    /**
+     * Move the current thread to another cpu without releasing this one first. The new cpu is reserved, in this
+     * process and against others, then the thread's affinity is switched, and only then is this cpu released.
+     * A whole core moves to the whole core of the new cpu.
+     *
+     * @param cpuId the cpu to move to
+     * @return the lock of the new cpu, or null if it could not be reserved, in which case this lock is still held.
+     * @throws IllegalStateException if this lock is not held by the current thread.
+     */
+    @Nullable
+    public AffinityLock migrateTo(int cpuId) {
+        return lockInventory.migrate(this, cpuId);
+    }
+
+    /**
+     * Move the current thread to another cpu chosen relative to this one, without releasing this one first.
+     *
+     * @param strategies To determine if you want the same/different core/socket.
+     * @return the lock of the new cpu, or null if none could be reserved, in which case this lock is still held.
+     * @throws IllegalStateException if this lock is not held by the current thread.
+     */
+    @Nullable
+    public AffinityLock migrate(@NotNull AffinityStrategy... strategies) {
+        return lockInventory.migrate(this, ANY_CPU, strategies);
+    }
+
     /**
      * Release the current AffinityLock which can be discarded.
      */
@@ -446,16 +717,6 @@ public class AffinityLock implements Closeable {
         release();
     }
 
-    @SuppressWarnings({"deprecation", "removal"})
-    @Override
-    protected void finalize() throws Throwable {
-        if (bound) {
-            LOGGER.warn("Affinity lock for " + assignedThread + " was discarded rather than release()d in a controlled manner.", boundHere);
-            release();
-        }
-        super.finalize();
-    }
-
     /**
      * @return unique id for this CPI or -1 if not allocated.
      */
@@ -480,7 +741,11 @@ public class AffinityLock implements Closeable {
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        if (assignedThread != null)
+        final Thread assignedThread = this.assignedThread;
+        final AffinityCpuSetLock.Members cpuSet = this.cpuSet;
+        if (cpuSet != null)
+            sb.append(cpuSet);
+        else if (assignedThread != null)
             sb.append(assignedThread).append(" alive=").append(assignedThread.isAlive());
         else if (reservable)
             sb.append("Reserved for this application");
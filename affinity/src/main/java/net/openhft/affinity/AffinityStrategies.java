@@ -17,8 +17,12 @@
 
 package net.openhft.affinity;
 
+import net.openhft.affinity.impl.FlatCpuLayout;
+
 /**
  * Pre-defined strategies for determining which thread to pick next.
+ * <p>
+ * These read the {@link AffinityLock#flatCpuLayout()} snapshot so they don't lock or allocate.
  *
  * @author peter.lawrey
  */
@@ -39,9 +43,8 @@ public enum AffinityStrategies implements AffinityStrategy {
     SAME_CORE {
         @Override
         public boolean matches(int cpuId, int cpuId2) {
-            CpuLayout cpuLayout = AffinityLock.cpuLayout();
-            return cpuLayout.socketId(cpuId) == cpuLayout.socketId(cpuId2) &&
-                    cpuLayout.coreId(cpuId) == cpuLayout.coreId(cpuId2);
+            FlatCpuLayout cpuLayout = AffinityLock.flatCpuLayout();
+            return cpuLayout.isSibling(cpuId, cpuId2);
         }
     },
     /**
@@ -50,9 +53,9 @@ public enum AffinityStrategies implements AffinityStrategy {
     SAME_SOCKET {
         @Override
         public boolean matches(int cpuId, int cpuId2) {
-            CpuLayout cpuLayout = AffinityLock.cpuLayout();
+            FlatCpuLayout cpuLayout = AffinityLock.flatCpuLayout();
             return cpuLayout.socketId(cpuId) == cpuLayout.socketId(cpuId2) &&
-                    cpuLayout.coreId(cpuId) != cpuLayout.coreId(cpuId2);
+                    cpuLayout.physicalCoreId(cpuId) != cpuLayout.physicalCoreId(cpuId2);
         }
     },
     /**
@@ -61,9 +64,8 @@ public enum AffinityStrategies implements AffinityStrategy {
     DIFFERENT_CORE {
         @Override
         public boolean matches(int cpuId, int cpuId2) {
-            CpuLayout cpuLayout = AffinityLock.cpuLayout();
-            return cpuLayout.socketId(cpuId) != cpuLayout.socketId(cpuId2) ||
-                    cpuLayout.coreId(cpuId) != cpuLayout.coreId(cpuId2);
+            FlatCpuLayout cpuLayout = AffinityLock.flatCpuLayout();
+            return cpuLayout.physicalCoreId(cpuId) != cpuLayout.physicalCoreId(cpuId2);
         }
     },
     /**
@@ -72,8 +74,63 @@ public enum AffinityStrategies implements AffinityStrategy {
     DIFFERENT_SOCKET {
         @Override
         public boolean matches(int cpuId, int cpuId2) {
-            CpuLayout cpuLayout = AffinityLock.cpuLayout();
+            FlatCpuLayout cpuLayout = AffinityLock.flatCpuLayout();
             return cpuLayout.socketId(cpuId) != cpuLayout.socketId(cpuId2);
         }
+    },
+    /**
+     * Must be a cpu sharing the same L2 cache but on a different core.
+     */
+    SAME_L2 {
+        @Override
+        public boolean matches(int cpuId, int cpuId2) {
+            FlatCpuLayout cpuLayout = AffinityLock.flatCpuLayout();
+            return cpuLayout.l2CacheId(cpuId) == cpuLayout.l2CacheId(cpuId2) &&
+                    cpuLayout.physicalCoreId(cpuId) != cpuLayout.physicalCoreId(cpuId2);
+        }
+    },
+    /**
+     * Must be a cpu sharing the same L3 cache but on a different core.
+     * On parts with several L3 caches per socket, e.g. one per CCX, this is tighter than SAME_SOCKET.
+     */
+    SAME_L3 {
+        @Override
+        public boolean matches(int cpuId, int cpuId2) {
+            FlatCpuLayout cpuLayout = AffinityLock.flatCpuLayout();
+            return cpuLayout.l3CacheId(cpuId) == cpuLayout.l3CacheId(cpuId2) &&
+                    cpuLayout.physicalCoreId(cpuId) != cpuLayout.physicalCoreId(cpuId2);
+        }
+    },
+    /**
+     * Must be a cpu which doesn't share an L3 cache.
+     */
+    DIFFERENT_L3 {
+        @Override
+        public boolean matches(int cpuId, int cpuId2) {
+            FlatCpuLayout cpuLayout = AffinityLock.flatCpuLayout();
+            return cpuLayout.l3CacheId(cpuId) != cpuLayout.l3CacheId(cpuId2);
+        }
+    },
+    /**
+     * Must be a cpu on the same NUMA node but different core.
+     * With sub-NUMA clustering a socket has more than one node, so this is tighter than SAME_SOCKET.
+     */
+    SAME_NODE {
+        @Override
+        public boolean matches(int cpuId, int cpuId2) {
+            FlatCpuLayout cpuLayout = AffinityLock.flatCpuLayout();
+            return cpuLayout.numaNodeId(cpuId) == cpuLayout.numaNodeId(cpuId2) &&
+                    cpuLayout.physicalCoreId(cpuId) != cpuLayout.physicalCoreId(cpuId2);
+        }
+    },
+    /**
+     * Must be a cpu on any other NUMA node.
+     */
+    DIFFERENT_NODE {
+        @Override
+        public boolean matches(int cpuId, int cpuId2) {
+            FlatCpuLayout cpuLayout = AffinityLock.flatCpuLayout();
+            return cpuLayout.numaNodeId(cpuId) != cpuLayout.numaNodeId(cpuId2);
+        }
     }
 }
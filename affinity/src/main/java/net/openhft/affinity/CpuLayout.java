@@ -49,4 +49,52 @@ public interface CpuLayout {
      * @return which thread on a core this cpu is on.
      */
     int threadId(int cpuId);
+
+    /**
+     * @param cpuId the logical processor number
+     * @return whether this cpu is online, offline cpus are never handed out.
+     */
+    default boolean isOnline(int cpuId) {
+        return true;
+    }
+
+    /**
+     * @param cpuId the logical processor number
+     * @return an id shared by all the cpus which share this cpu's L2 cache, by default its physical core.
+     */
+    default int l2CacheId(int cpuId) {
+        return socketId(cpuId) * coresPerSocket() + coreId(cpuId);
+    }
+
+    /**
+     * @param cpuId the logical processor number
+     * @return an id shared by all the cpus which share this cpu's L3 cache, by default its socket.
+     */
+    default int l3CacheId(int cpuId) {
+        return socketId(cpuId);
+    }
+
+    /**
+     * @return the number of NUMA nodes, by default one per socket.
+     */
+    default int numaNodes() {
+        return sockets();
+    }
+
+    /**
+     * @param cpuId the logical processor number
+     * @return which NUMA node this cpu is on, by default its socket.
+     */
+    default int numaNodeId(int cpuId) {
+        return socketId(cpuId);
+    }
+
+    /**
+     * @param nodeId  a NUMA node
+     * @param nodeId2 another NUMA node
+     * @return the relative memory access distance as reported by the firmware, 10 being local.
+     */
+    default int numaDistance(int nodeId, int nodeId2) {
+        return nodeId == nodeId2 ? 10 : 20;
+    }
 }
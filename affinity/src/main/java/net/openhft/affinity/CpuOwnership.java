@@ -0,0 +1,261 @@
+/*
+ * Copyright 2016-2020 chronicle.software
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.openhft.affinity;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Who holds a cpu, in any process on this machine, as recorded when it was locked.
+ * <pre>
+ * for (CpuOwnership owner : CpuOwnership.snapshot())
+ *     System.out.println(owner);
+ * </pre>
+ * Locks taken by older versions only record the pid, so the other details are unknown.
+ */
+public final class CpuOwnership {
+    static final String TID = "tid=";
+    static final String ACQUIRED = "acquired=";
+    static final String ROLE = "role=";
+    static final String THREAD = "thread=";
+    static final String STATE = "state=";
+    /**
+     * The longest thread name recorded.
+     */
+    static final int MAX_THREAD_NAME = 48;
+
+    /**
+     * What a cpu was locked for.
+     */
+    public enum Role {
+        /**
+         * A cpu for one thread.
+         */
+        THREAD,
+        /**
+         * The cpu of a thread which reserved its whole core.
+         */
+        CORE,
+        /**
+         * Another cpu of a core reserved by a thread.
+         */
+        SIBLING,
+        /**
+         * One of a group of cpus reserved together.
+         */
+        GROUP,
+        /**
+         * One of a set of cpus shared by a pool of threads.
+         */
+        CPU_SET,
+        /**
+         * Not recorded.
+         */
+        UNKNOWN
+    }
+
+    /**
+     * Whether a lock is still held, as a lock no longer held is only freed when another process acquires it.
+     */
+    public enum State {
+        /**
+         * Held by a running process.
+         */
+        HELD,
+        /**
+         * Its lease ran out as it wasn't renewed.
+         */
+        EXPIRED,
+        /**
+         * Left by a holder which is no longer running.
+         */
+        ORPHANED
+    }
+
+    private final int cpu;
+    private final ProcessIdentity holder;
+    private final int tid;
+    @NotNull
+    private final String threadName;
+    private final long acquired;
+    @NotNull
+    private final Role role;
+    private final int priority;
+    private final boolean running;
+    @NotNull
+    private final State state;
+
+    CpuOwnership(int cpu, @NotNull ProcessIdentity holder, int tid, @NotNull String threadName, long acquired,
+                 @NotNull Role role, int priority, boolean running, @NotNull State state) {
+        this.cpu = cpu;
+        this.holder = holder;
+        this.tid = tid;
+        this.threadName = threadName;
+        this.acquired = acquired;
+        this.role = role;
+        this.priority = priority;
+        this.running = running;
+        this.state = state;
+    }
+
+    /**
+     * Read who holds every cpu locked on this machine, in one pass over the locks, changing none of them.
+     *
+     * @return the holder of each cpu locked, by cpu.
+     */
+    @NotNull
+    public static List<CpuOwnership> snapshot() {
+        final List<CpuOwnership> owners = new ArrayList<>();
+        for (Map.Entry<Integer, String[]> entry : LockCheck.getLockedMetaInfo().entrySet()) {
+            final CpuOwnership owner = parse(entry.getKey(), entry.getValue());
+            if (owner != null)
+                owners.add(owner);
+        }
+        return owners;
+    }
+
+    /**
+     * @return the owner recorded in the lines of meta info of a lock, or null if they have no pid.
+     */
+    @Nullable
+    static CpuOwnership parse(int cpu, @Nullable String[] lines) {
+        final ProcessIdentity holder = ProcessIdentity.parse(lines);
+        if (holder == null)
+            return null;
+        int tid = -1;
+        String threadName = "";
+        long acquired = 0;
+        Role role = Role.UNKNOWN;
+        int priority = AffinityLock.DEFAULT_PRIORITY;
+        State state = State.HELD;
+        for (int i = 1; i < lines.length; i++) {
+            final String line = lines[i];
+            try {
+                if (line.startsWith(TID))
+                    tid = Integer.parseInt(line.substring(TID.length()).trim());
+                else if (line.startsWith(ACQUIRED))
+                    acquired = Long.parseLong(line.substring(ACQUIRED.length()).trim());
+                else if (line.startsWith(ROLE))
+                    role = Role.valueOf(line.substring(ROLE.length()).trim());
+                else if (line.startsWith(THREAD))
+                    threadName = line.substring(THREAD.length());
+                else if (line.startsWith(LockCheck.PRIORITY))
+                    priority = Integer.parseInt(line.substring(LockCheck.PRIORITY.length()).trim());
+                else if (line.startsWith(STATE))
+                    state = State.valueOf(line.substring(STATE.length()).trim());
+            } catch (IllegalArgumentException e) {
+                // written by another version, leave it unknown
+            }
+        }
+        return new CpuOwnership(cpu, holder, tid, threadName, acquired, role, priority, holder.isRunning(), state);
+    }
+
+    /**
+     * @return the lines recorded about the current thread when it locks a cpu.
+     */
+    @NotNull
+    static String toMetaInfo(@NotNull Role role) {
+        String name = Thread.currentThread().getName().replace('\n', ' ');
+        if (name.length() > MAX_THREAD_NAME)
+            name = name.substring(0, MAX_THREAD_NAME);
+        int tid;
+        try {
+            tid = Affinity.getThreadId();
+        } catch (RuntimeException e) {
+            tid = -1;
+        }
+        return TID + tid + "\n" + ACQUIRED + System.currentTimeMillis() + "\n" + ROLE + role + "\n" + THREAD + name;
+    }
+
+    public int cpu() {
+        return cpu;
+    }
+
+    public long pid() {
+        return holder.pid();
+    }
+
+    /**
+     * @return the process, with its start time and boot id if recorded.
+     */
+    @NotNull
+    public ProcessIdentity holder() {
+        return holder;
+    }
+
+    /**
+     * @return the native id of the thread which locked the cpu, or -1 if not known.
+     */
+    public int tid() {
+        return tid;
+    }
+
+    /**
+     * @return the name of the thread which locked the cpu, or "" if not known.
+     */
+    @NotNull
+    public String threadName() {
+        return threadName;
+    }
+
+    /**
+     * @return when the cpu was locked in ms since the epoch, or 0 if not known.
+     */
+    public long acquired() {
+        return acquired;
+    }
+
+    @NotNull
+    public Role role() {
+        return role;
+    }
+
+    public int priority() {
+        return priority;
+    }
+
+    /**
+     * @return whether the holder was running when the snapshot was taken.
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return whether the lock was still held when the snapshot was taken, as it is left until another process
+     * acquires the cpu.
+     */
+    @NotNull
+    public State state() {
+        return state;
+    }
+
+    @Override
+    public String toString() {
+        return "cpu " + cpu + " held by " + holder
+                + (tid < 0 ? "" : " thread " + tid)
+                + (threadName.isEmpty() ? "" : " (" + threadName + ")")
+                + " as " + role
+                + (running ? "" : " but not running")
+                + (state == State.HELD ? "" : ", " + state);
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2016-2020 chronicle.software
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.openhft.affinity;
+
+import net.openhft.affinity.impl.Utilities;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.BitSet;
+
+/**
+ * Which cpus this process may reserve, and why.
+ * <p>
+ * In order of precedence the reserved cpus are
+ * <ol>
+ *     <li>the hex mask in -Daffinity.reserved if set,</li>
+ *     <li>the cpus isolated by isolcpus= or made tickless by nohz_full=, which this process is allowed to use,</li>
+ *     <li>the allowed cpus the launching thread is not bound to, or failing that all allowed cpus.</li>
+ * </ol>
+ * The allowed cpus are those in the cgroup cpuset, v2 cpuset.cpus.effective or v1 cpuset.effective_cpus,
+ * so a container doesn't reserve cpus it can't run on. CPU 0 is never reserved unless by the override.
+ */
+public final class CpuReservationPolicy {
+    public enum Source {
+        /**
+         * -Daffinity.reserved was set.
+         */
+        OVERRIDE,
+        /**
+         * The kernel's isolcpus= or nohz_full= cpus.
+         */
+        ISOLATED,
+        /**
+         * The cpus the launching thread wasn't bound to.
+         */
+        BASE_AFFINITY,
+        /**
+         * Every allowed cpu except CPU 0.
+         */
+        ALL
+    }
+
+    @NotNull
+    private final BitSet isolated;
+    @NotNull
+    private final BitSet tickless;
+    @Nullable
+    private final BitSet allowed;
+    @NotNull
+    private final BitSet reserved;
+    @NotNull
+    private final Source source;
+
+    private CpuReservationPolicy(@NotNull BitSet isolated, @NotNull BitSet tickless, @Nullable BitSet allowed,
+                                 @NotNull BitSet reserved, @NotNull Source source) {
+        this.isolated = isolated;
+        this.tickless = tickless;
+        this.allowed = allowed;
+        this.reserved = reserved;
+        this.source = source;
+    }
+
+    /**
+     * @param sysfsRoot    the directory to use in place of /sys
+     * @param procRoot     the directory to use in place of /proc
+     * @param processors   the number of cpus
+     * @param baseAffinity the affinity of the launching thread, or null if unknown
+     * @param override     the hex mask of reserved cpus, or null if not overridden
+     * @return the policy for this machine
+     */
+    @NotNull
+    public static CpuReservationPolicy create(String sysfsRoot, String procRoot, int processors,
+                                              @Nullable BitSet baseAffinity, @Nullable String override) {
+        final BitSet isolated = readCpuList(new File(sysfsRoot, "devices/system/cpu/isolated"));
+        final BitSet tickless = readCpuList(new File(sysfsRoot, "devices/system/cpu/nohz_full"));
+        final BitSet allowed = readCgroupCpus(sysfsRoot, procRoot);
+
+        if (override != null && !override.trim().isEmpty())
+            return new CpuReservationPolicy(isolated, tickless, allowed, parseHexMask(override.trim()), Source.OVERRIDE);
+
+        final BitSet usable = new BitSet();
+        usable.set(1, Math.max(1, processors));
+        if (allowed != null)
+            usable.and(allowed);
+
+        final BitSet reserved = new BitSet();
+        reserved.or(isolated);
+        reserved.or(tickless);
+        reserved.and(usable);
+        if (!reserved.isEmpty())
+            return new CpuReservationPolicy(isolated, tickless, allowed, reserved, Source.ISOLATED);
+
+        if (baseAffinity != null) {
+            reserved.or(usable);
+            reserved.andNot(baseAffinity);
+            if (!reserved.isEmpty() || processors <= 1)
+                return new CpuReservationPolicy(isolated, tickless, allowed, reserved, Source.BASE_AFFINITY);
+        }
+        return new CpuReservationPolicy(isolated, tickless, allowed, usable, Source.ALL);
+    }
+
+    /**
+     * @param mask the cpus in hex, the lowest cpu being the last digit.
+     * @return the cpus in the mask
+     */
+    @NotNull
+    static BitSet parseHexMask(String mask) {
+        long[] longs = new long[1 + (mask.length() - 1) / 16];
+        int end = mask.length();
+        for (int i = 0; i < longs.length; i++) {
+            int begin = Math.max(0, end - 16);
+            longs[i] = Long.parseLong(mask.substring(begin, end), 16);
+            end = begin;
+        }
+        return BitSet.valueOf(longs);
+    }
+
+    @NotNull
+    private static BitSet readCpuList(File file) {
+        final String cpuList = readLine(file);
+        return cpuList == null ? new BitSet() : Utilities.parseCpuList(cpuList);
+    }
+
+    /**
+     * @return the cpus of this process' cgroup cpuset, or null if unknown.
+     */
+    @Nullable
+    private static BitSet readCgroupCpus(String sysfsRoot, String procRoot) {
+        final String cgroups = readFile(new File(procRoot, "self/cgroup"));
+        if (cgroups == null)
+            return null;
+        final File cgroupRoot = new File(sysfsRoot, "fs/cgroup");
+        for (String line : cgroups.split("\n")) {
+            final String[] fields = line.split(":", 3);
+            if (fields.length < 3)
+                continue;
+            final BitSet cpus;
+            if (fields[0].equals("0") && fields[1].isEmpty()) {
+                // cgroup v2
+                cpus = readCgroupFile(cgroupRoot, fields[2], "cpuset.cpus.effective");
+            } else if (("," + fields[1] + ",").contains(",cpuset,")) {
+                // cgroup v1
+                cpus = readCgroupFile(new File(cgroupRoot, "cpuset"), fields[2], "cpuset.effective_cpus");
+            } else {
+                continue;
+            }
+            if (cpus != null)
+                return cpus;
+        }
+        return null;
+    }
+
+    /**
+     * Look for the file in the cgroup's directory, or the closest parent which has it.
+     */
+    @Nullable
+    private static BitSet readCgroupFile(File cgroupRoot, String path, String name) {
+        for (File dir = new File(cgroupRoot, path); dir != null; dir = dir.getParentFile()) {
+            final String cpuList = readLine(new File(dir, name));
+            if (cpuList != null && !cpuList.isEmpty())
+                return Utilities.parseCpuList(cpuList);
+            if (dir.equals(cgroupRoot))
+                break;
+        }
+        return null;
+    }
+
+    @Nullable
+    private static String readLine(File file) {
+        final String content = readFile(file);
+        return content == null ? null : content.trim();
+    }
+
+    @Nullable
+    private static String readFile(File file) {
+        if (!file.isFile())
+            return null;
+        try {
+            return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the cpus isolated from the scheduler by isolcpus=
+     */
+    @NotNull
+    public BitSet isolated() {
+        return (BitSet) isolated.clone();
+    }
+
+    /**
+     * @return the cpus with the scheduler tick disabled by nohz_full=
+     */
+    @NotNull
+    public BitSet tickless() {
+        return (BitSet) tickless.clone();
+    }
+
+    /**
+     * @return the cpus of this process' cgroup cpuset, or null if unknown.
+     */
+    @Nullable
+    public BitSet allowed() {
+        return allowed == null ? null : (BitSet) allowed.clone();
+    }
+
+    /**
+     * @return the cpus this process may reserve.
+     */
+    @NotNull
+    public BitSet reserved() {
+        return (BitSet) reserved.clone();
+    }
+
+    /**
+     * @return how the reserved cpus were chosen.
+     */
+    @NotNull
+    public Source source() {
+        return source;
+    }
+
+    @NotNull
+    @Override
+    public String toString() {
+        return "CpuReservationPolicy{" +
+                "reserved=" + reserved +
+                ", source=" + source +
+                ", isolated=" + isolated +
+                ", tickless=" + tickless +
+                ", allowed=" + (allowed == null ? "unknown" : allowed.toString()) +
+                '}';
+    }
+}
@@ -0,0 +1,437 @@
+/*
+ * Copyright 2016-2020 chronicle.software
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.openhft.affinity;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A set of cpus held as a mask of longs, like the kernel's cpu_set_t, which can be reused to read and set the
+ * affinity of a thread without creating garbage.
+ * <pre>
+ * CpuSet cpus = new CpuSet();
+ * Affinity.getAffinity(cpus);
+ * assert cpus.get(2);
+ * </pre>
+ * A mutable set only allocates when a cpu beyond its capacity is added. {@link #toImmutable()} gives a copy which
+ * can be shared, and throws UnsupportedOperationException if changed.
+ */
+public final class CpuSet {
+    /**
+     * The cpus in a glibc cpu_set_t, the capacity by default.
+     */
+    public static final int DEFAULT_CPUS = 1024;
+
+    @NotNull
+    private long[] words;
+    private final boolean immutable;
+
+    /**
+     * An empty set with capacity for 1024 cpus.
+     */
+    public CpuSet() {
+        this(DEFAULT_CPUS);
+    }
+
+    /**
+     * @param cpus the capacity, more cpus can be added at the cost of growing the mask.
+     */
+    public CpuSet(int cpus) {
+        if (cpus < 0)
+            throw new IllegalArgumentException("cpus: " + cpus);
+        this.words = new long[(cpus + 63) >>> 6];
+        this.immutable = false;
+    }
+
+    private CpuSet(@NotNull long[] words, boolean immutable) {
+        this.words = words;
+        this.immutable = immutable;
+    }
+
+    /**
+     * @return an immutable set of these cpus.
+     */
+    @NotNull
+    public static CpuSet of(int... cpus) {
+        final CpuSet set = new CpuSet(0);
+        for (int cpu : cpus)
+            set.set(cpu);
+        return set.toImmutable();
+    }
+
+    /**
+     * @return a mutable copy of a BitSet.
+     */
+    @NotNull
+    public static CpuSet valueOf(@NotNull BitSet cpus) {
+        return new CpuSet(cpus.toLongArray(), false);
+    }
+
+    /**
+     * Parses a cpu list in the Linux kernel format e.g. "0-3,8,10-11"
+     *
+     * @param cpuList the list to parse, may be empty
+     * @return a mutable set of the cpus in the list
+     * @throws IllegalArgumentException if it is not a cpu list.
+     */
+    @NotNull
+    public static CpuSet parse(@NotNull String cpuList) {
+        final CpuSet set = new CpuSet(0);
+        for (String range : cpuList.trim().split(",")) {
+            range = range.trim();
+            if (range.isEmpty())
+                continue;
+            final int dash = range.indexOf('-');
+            try {
+                if (dash < 0) {
+                    set.set(Integer.parseInt(range));
+                } else {
+                    set.set(Integer.parseInt(range.substring(0, dash).trim()),
+                            Integer.parseInt(range.substring(dash + 1).trim()) + 1);
+                }
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("Cannot parse cpu list '" + cpuList + "'", e);
+            }
+        }
+        return set;
+    }
+
+    /**
+     * Parses a mask in hex, most significant cpu first, as printed by {@link #toHexString()}, taskset or the kernel
+     * e.g. "0x3f", "ff00" or "ff,ffffffff"
+     *
+     * @return a mutable set of the cpus in the mask
+     * @throws IllegalArgumentException if it is not a hex mask.
+     */
+    @NotNull
+    public static CpuSet parseHex(@NotNull String mask) {
+        String hex = mask.trim();
+        if (hex.startsWith("0x") || hex.startsWith("0X"))
+            hex = hex.substring(2);
+        final CpuSet set = new CpuSet(hex.length() * 4);
+        int bit = 0;
+        for (int i = hex.length() - 1; i >= 0; i--) {
+            final char ch = hex.charAt(i);
+            if (ch == ',')
+                continue;
+            final int digit = Character.digit(ch, 16);
+            if (digit < 0)
+                throw new IllegalArgumentException("Cannot parse cpu mask '" + mask + "'");
+            set.words[bit >>> 6] |= (long) digit << (bit & 63);
+            bit += 4;
+        }
+        return set;
+    }
+
+    public boolean isImmutable() {
+        return immutable;
+    }
+
+    /**
+     * @return this if immutable, otherwise an immutable copy.
+     */
+    @NotNull
+    public CpuSet toImmutable() {
+        return immutable ? this : new CpuSet(Arrays.copyOf(words, wordsInUse()), true);
+    }
+
+    /**
+     * @return a mutable copy.
+     */
+    @NotNull
+    public CpuSet copy() {
+        return new CpuSet(words.clone(), false);
+    }
+
+    /**
+     * @return whether the cpu is in the set.
+     */
+    public boolean get(int cpu) {
+        if (cpu < 0)
+            throw new IndexOutOfBoundsException("cpu: " + cpu);
+        final int index = cpu >>> 6;
+        return index < words.length && (words[index] & (1L << cpu)) != 0;
+    }
+
+    /**
+     * Add a cpu.
+     *
+     * @return this
+     */
+    @NotNull
+    public CpuSet set(int cpu) {
+        if (cpu < 0)
+            throw new IndexOutOfBoundsException("cpu: " + cpu);
+        checkMutable();
+        final int index = cpu >>> 6;
+        ensureWords(index + 1);
+        words[index] |= 1L << cpu;
+        return this;
+    }
+
+    /**
+     * Add the cpus from fromCpu inclusive to toCpu exclusive.
+     *
+     * @return this
+     */
+    @NotNull
+    public CpuSet set(int fromCpu, int toCpu) {
+        if (fromCpu < 0 || toCpu < fromCpu)
+            throw new IndexOutOfBoundsException("fromCpu: " + fromCpu + ", toCpu: " + toCpu);
+        checkMutable();
+        if (fromCpu == toCpu)
+            return this;
+        ensureWords(((toCpu - 1) >>> 6) + 1);
+        for (int cpu = fromCpu; cpu < toCpu; cpu++)
+            words[cpu >>> 6] |= 1L << cpu;
+        return this;
+    }
+
+    /**
+     * Remove a cpu.
+     *
+     * @return this
+     */
+    @NotNull
+    public CpuSet clear(int cpu) {
+        if (cpu < 0)
+            throw new IndexOutOfBoundsException("cpu: " + cpu);
+        checkMutable();
+        final int index = cpu >>> 6;
+        if (index < words.length)
+            words[index] &= ~(1L << cpu);
+        return this;
+    }
+
+    /**
+     * Remove every cpu, keeping the capacity.
+     *
+     * @return this
+     */
+    @NotNull
+    public CpuSet clear() {
+        checkMutable();
+        Arrays.fill(words, 0L);
+        return this;
+    }
+
+    /**
+     * Make this the same set as another, only allocating if it has more cpus than fit.
+     *
+     * @return this
+     */
+    @NotNull
+    public CpuSet copyFrom(@NotNull CpuSet cpus) {
+        checkMutable();
+        final int inUse = cpus.wordsInUse();
+        ensureWords(inUse);
+        System.arraycopy(cpus.words, 0, words, 0, inUse);
+        Arrays.fill(words, inUse, words.length, 0L);
+        return this;
+    }
+
+    /**
+     * Make this the same set as a BitSet, only allocating if it has more cpus than fit.
+     *
+     * @return this
+     */
+    @NotNull
+    public CpuSet copyFrom(@NotNull BitSet cpus) {
+        checkMutable();
+        final int inUse = (cpus.length() + 63) >>> 6;
+        ensureWords(inUse);
+        Arrays.fill(words, 0L);
+        for (int cpu = cpus.nextSetBit(0); cpu >= 0; cpu = cpus.nextSetBit(cpu + 1))
+            words[cpu >>> 6] |= 1L << cpu;
+        return this;
+    }
+
+    /**
+     * @return the number of cpus in the set.
+     */
+    public int cardinality() {
+        int count = 0;
+        for (long word : words)
+            count += Long.bitCount(word);
+        return count;
+    }
+
+    public boolean isEmpty() {
+        for (long word : words)
+            if (word != 0)
+                return false;
+        return true;
+    }
+
+    /**
+     * @return the highest cpu in the set plus one, or 0 if empty.
+     */
+    public int length() {
+        final int inUse = wordsInUse();
+        return inUse == 0 ? 0 : ((inUse - 1) << 6) + 64 - Long.numberOfLeadingZeros(words[inUse - 1]);
+    }
+
+    /**
+     * @return the first cpu in the set at or after fromCpu, or -1 if there is none.
+     */
+    public int nextSetBit(int fromCpu) {
+        if (fromCpu < 0)
+            throw new IndexOutOfBoundsException("fromCpu: " + fromCpu);
+        int index = fromCpu >>> 6;
+        if (index >= words.length)
+            return -1;
+        long word = words[index] & (-1L << fromCpu);
+        while (word == 0) {
+            if (++index >= words.length)
+                return -1;
+            word = words[index];
+        }
+        return (index << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    /**
+     * @return whether any cpu is in both sets.
+     */
+    public boolean intersects(@NotNull CpuSet cpus) {
+        for (int i = Math.min(words.length, cpus.words.length) - 1; i >= 0; i--)
+            if ((words[i] & cpus.words[i]) != 0)
+                return true;
+        return false;
+    }
+
+    /**
+     * @return the capacity in longs of 64 cpus each, for implementations copying the mask to and from native memory.
+     */
+    public int words() {
+        return words.length;
+    }
+
+    /**
+     * @return the cpus 64 * index to 64 * index + 63 as a mask, 0 if beyond the capacity.
+     */
+    public long word(int index) {
+        return index < words.length ? words[index] : 0L;
+    }
+
+    /**
+     * Replace the cpus 64 * index to 64 * index + 63 with a mask.
+     *
+     * @return this
+     */
+    @NotNull
+    public CpuSet word(int index, long word) {
+        checkMutable();
+        if (word != 0)
+            ensureWords(index + 1);
+        else if (index >= words.length)
+            return this;
+        words[index] = word;
+        return this;
+    }
+
+    /**
+     * @return a new BitSet of the cpus.
+     */
+    @NotNull
+    public BitSet toBitSet() {
+        return BitSet.valueOf(words);
+    }
+
+    /**
+     * @return the mask in hex, most significant cpu first, without leading zeros e.g. "f0f" for "0-3,8-11".
+     */
+    @NotNull
+    public String toHexString() {
+        final int inUse = wordsInUse();
+        if (inUse == 0)
+            return "0";
+        final StringBuilder sb = new StringBuilder(inUse * 16);
+        sb.append(Long.toHexString(words[inUse - 1]));
+        for (int i = inUse - 2; i >= 0; i--) {
+            final String hex = Long.toHexString(words[i]);
+            for (int pad = hex.length(); pad < 16; pad++)
+                sb.append('0');
+            sb.append(hex);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the cpu list in the Linux kernel format, e.g. "0-3,8"
+     */
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for (int cpu = nextSetBit(0); cpu >= 0; ) {
+            int end = cpu;
+            while (get(end + 1))
+                end++;
+            if (sb.length() > 0)
+                sb.append(',');
+            sb.append(cpu);
+            if (end > cpu)
+                sb.append('-').append(end);
+            cpu = nextSetBit(end + 1);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return whether both have the same cpus, regardless of capacity or mutability.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof CpuSet))
+            return false;
+        final CpuSet that = (CpuSet) o;
+        for (int i = Math.max(words.length, that.words.length) - 1; i >= 0; i--)
+            if (word(i) != that.word(i))
+                return false;
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        // the same as BitSet
+        long h = 1234;
+        for (int i = wordsInUse(); --i >= 0; )
+            h ^= words[i] * (i + 1);
+        return (int) ((h >> 32) ^ h);
+    }
+
+    private int wordsInUse() {
+        int inUse = words.length;
+        while (inUse > 0 && words[inUse - 1] == 0)
+            inUse--;
+        return inUse;
+    }
+
+    private void ensureWords(int required) {
+        if (required > words.length)
+            words = Arrays.copyOf(words, Math.max(required, words.length * 2));
+    }
+
+    private void checkMutable() {
+        if (immutable)
+            throw new UnsupportedOperationException("CpuSet " + this + " is immutable");
+    }
+}
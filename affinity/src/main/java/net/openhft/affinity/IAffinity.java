@@ -36,6 +36,29 @@ public interface IAffinity {
      */
     void setAffinity(final BitSet affinity);
 
+    /**
+     * Read the affinity of the current thread into a set, overwriting it. Implementations on Linux do this without
+     * creating garbage, once the set has the capacity for every cpu.
+     *
+     * @param affinity to overwrite, left empty if unknown
+     */
+    default void getAffinity(CpuSet affinity) {
+        final BitSet cpus = getAffinity();
+        if (cpus == null)
+            affinity.clear();
+        else
+            affinity.copyFrom(cpus);
+    }
+
+    /**
+     * Set the affinity of the current thread. Implementations on Linux do this without creating garbage.
+     *
+     * @param affinity the cpus it may run on
+     */
+    default void setAffinity(CpuSet affinity) {
+        setAffinity(affinity.toBitSet());
+    }
+
     /**
      * @return the current cpu id, or -1 if unknown.
      */
@@ -50,4 +73,29 @@ public interface IAffinity {
      * @return the thread id of the current thread or -1 is not available.
      */
     int getThreadId();
+
+    /**
+     * @param threadId the native id of a thread of this process, as returned by getThreadId() or listed in
+     *                 /proc/self/task, or 0 for the current thread
+     * @return the affinity mask of that thread, or null if unknown
+     * @throws UnsupportedOperationException if only the current thread is supported.
+     */
+    default BitSet getAffinity(int threadId) {
+        if (threadId == 0 || threadId == getThreadId())
+            return getAffinity();
+        throw new UnsupportedOperationException("Only the affinity of the current thread is supported");
+    }
+
+    /**
+     * @param threadId the native id of a thread of this process, or 0 for the current thread
+     * @param affinity sets affinity mask of that thread to specified value
+     * @throws UnsupportedOperationException if only the current thread is supported.
+     */
+    default void setAffinity(int threadId, final BitSet affinity) {
+        if (threadId == 0 || threadId == getThreadId()) {
+            setAffinity(affinity);
+            return;
+        }
+        throw new UnsupportedOperationException("Only the affinity of the current thread is supported");
+    }
 }
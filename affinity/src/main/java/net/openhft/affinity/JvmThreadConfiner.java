@@ -0,0 +1,239 @@
+/*
+ * Copyright 2016-2020 chronicle.software
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.openhft.affinity;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.BitSet;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Confines the threads the JVM starts for itself, such as GC workers, JIT compiler threads and the signal
+ * dispatcher, to a set of housekeeping cpus so they don't run on the cpus reserved for application threads.
+ * <p>
+ * The threads of this process are listed in /proc/self/task, and recognised by the name in their comm file.
+ * As the JVM can start more threads at any time, e.g. compiler threads, the list is checked again periodically
+ * and new threads are confined too.
+ * <p>
+ * HotSpot only names its threads on Linux from Java 9, so on Java 8 every thread is called "java" and none can be
+ * recognised, which is logged as a warning.
+ * <pre>
+ * JvmThreadConfiner confiner = JvmThreadConfiner.confine(JvmThreadConfiner.housekeepingCpus(), 1, TimeUnit.SECONDS);
+ * </pre>
+ */
+public final class JvmThreadConfiner implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(JvmThreadConfiner.class);
+
+    /**
+     * What a thread is for, recognised from its name.
+     */
+    public enum Kind {
+        GC("GC Thread", "G1 ", "Parallel GC", "ZWorker", "ZDirector", "ZDriver", "ZStat", "ZUnmap", "ZUncommit",
+                "Shenandoah", "Shen ", "CMS ", "Conc#"),
+        COMPILER("C1 CompilerThre", "C2 CompilerThre", "JVMCI", "Sweeper thread"),
+        SIGNAL_DISPATCHER("Signal Dispatch"),
+        JVM("VM Thread", "VM Periodic", "Service Thread", "Monitor Deflati", "Reference Handl", "Finalizer",
+                "Common-Cleaner", "Notification Th", "Attach Listener", "JFR ", "VM JFR", "Surrogate Locker"),
+        APPLICATION;
+
+        private final String[] prefixes;
+
+        Kind(String... prefixes) {
+            this.prefixes = prefixes;
+        }
+
+        /**
+         * @param comm the name of a thread as the kernel has it, which is at most 15 characters
+         * @return what the thread is for, or APPLICATION if not started by the JVM for itself.
+         */
+        @NotNull
+        public static Kind of(@NotNull String comm) {
+            for (Kind kind : values())
+                for (String prefix : kind.prefixes)
+                    if (comm.startsWith(prefix))
+                        return kind;
+            return APPLICATION;
+        }
+    }
+
+    private final String procRoot;
+    private final BitSet housekeeping;
+    private final Set<Kind> kinds;
+    private final IAffinity affinity;
+    /**
+     * The threads already confined, or which couldn't be, or which aren't to be. Application threads are looked at
+     * again, as a thread can be listed before the JVM has named it.
+     */
+    private final Set<Integer> seen = new HashSet<>();
+    private boolean namesChecked = false;
+    private volatile boolean closed = false;
+
+    JvmThreadConfiner(String procRoot, BitSet housekeeping, Set<Kind> kinds, IAffinity affinity) {
+        this.procRoot = procRoot;
+        this.housekeeping = (BitSet) housekeeping.clone();
+        this.kinds = EnumSet.copyOf(kinds);
+        this.affinity = affinity;
+    }
+
+    /**
+     * @return the cpus this process may run on which are not reserved for application threads, or cpu 0 if
+     * there are none.
+     */
+    @NotNull
+    public static BitSet housekeepingCpus() {
+        final BitSet cpus = (BitSet) AffinityLock.BASE_AFFINITY.clone();
+        cpus.andNot(AffinityLock.RESERVED_AFFINITY);
+        if (cpus.isEmpty())
+            cpus.set(0);
+        return cpus;
+    }
+
+    /**
+     * Confine every JVM thread, other than application threads, to the housekeeping cpus now, and again as new
+     * threads appear.
+     *
+     * @param housekeeping the cpus JVM threads may run on
+     * @param interval     how often to look for new threads
+     * @param unit         of the interval
+     * @return the confiner, which stops looking for new threads when closed.
+     */
+    @NotNull
+    public static JvmThreadConfiner confine(@NotNull BitSet housekeeping, long interval, @NotNull TimeUnit unit) {
+        return confine(housekeeping, EnumSet.complementOf(EnumSet.of(Kind.APPLICATION)), interval, unit);
+    }
+
+    /**
+     * @param kinds of thread to confine
+     */
+    @NotNull
+    public static JvmThreadConfiner confine(@NotNull BitSet housekeeping, @NotNull Set<Kind> kinds, long interval, @NotNull TimeUnit unit) {
+        final JvmThreadConfiner confiner = new JvmThreadConfiner("/proc", housekeeping, kinds, Affinity.getAffinityImpl());
+        confiner.confineNow();
+        final long intervalMS = Math.max(1, unit.toMillis(interval));
+        final Thread thread = new Thread(() -> {
+            while (!confiner.closed) {
+                try {
+                    Thread.sleep(intervalMS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                confiner.confineNow();
+            }
+        }, "affinity-jvm-thread-confiner");
+        thread.setDaemon(true);
+        thread.start();
+        return confiner;
+    }
+
+    /**
+     * @return the native id and name of each thread of this process.
+     */
+    @NotNull
+    public static Map<Integer, String> threads() {
+        return threads("/proc");
+    }
+
+    @NotNull
+    static Map<Integer, String> threads(String procRoot) {
+        final Map<Integer, String> threads = new TreeMap<>();
+        final File[] tasks = new File(procRoot, "self/task").listFiles();
+        if (tasks == null)
+            return threads;
+        for (File task : tasks) {
+            final int tid;
+            try {
+                tid = Integer.parseInt(task.getName());
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            try {
+                threads.put(tid, new String(Files.readAllBytes(new File(task, "comm").toPath()), StandardCharsets.UTF_8).trim());
+            } catch (IOException e) {
+                // the thread has exited
+            }
+        }
+        return threads;
+    }
+
+    /**
+     * @param threads the names of the threads of a process by id
+     * @return false if every thread has the same name, as the JVM doesn't name its threads, e.g. Java 8 on Linux.
+     */
+    static boolean hasThreadNames(@NotNull Map<Integer, String> threads) {
+        return threads.size() < 2 || threads.values().stream().distinct().count() > 1;
+    }
+
+    /**
+     * Confine the threads of the kinds chosen which haven't been seen before.
+     *
+     * @return the number of threads confined.
+     */
+    public synchronized int confineNow() {
+        final Map<Integer, String> threads = threads(procRoot);
+        if (!namesChecked && threads.size() > 1) {
+            namesChecked = true;
+            if (!hasThreadNames(threads))
+                LOGGER.warn("Every thread is called '{}' so no JVM threads can be recognised, HotSpot only names its threads on Linux from Java 9",
+                        threads.values().iterator().next());
+        }
+        // forget threads which have exited, as their ids can be reused.
+        seen.retainAll(threads.keySet());
+        int confined = 0;
+        for (Map.Entry<Integer, String> entry : threads.entrySet()) {
+            final int tid = entry.getKey();
+            if (seen.contains(tid))
+                continue;
+            final Kind kind = Kind.of(entry.getValue());
+            // a thread not yet named by the JVM looks like an application thread until it is
+            if (kind != Kind.APPLICATION || kinds.contains(Kind.APPLICATION))
+                seen.add(tid);
+            if (!kinds.contains(kind))
+                continue;
+            try {
+                affinity.setAffinity(tid, housekeeping);
+                LOGGER.debug("Confined {} thread {} {} to {}", kind, tid, entry.getValue(), housekeeping);
+                confined++;
+            } catch (RuntimeException e) {
+                LOGGER.warn("Unable to confine {} thread {} {} to {}", kind, tid, entry.getValue(), housekeeping, e);
+            }
+        }
+        if (confined > 0)
+            LOGGER.info("Confined {} JVM threads to cpus {}", confined, housekeeping);
+        return confined;
+    }
+
+    /**
+     * Stop looking for new threads. Threads already confined stay confined.
+     */
+    @Override
+    public void close() {
+        closed = true;
+    }
+}
@@ -19,11 +19,15 @@ package net.openhft.affinity;
 
 import net.openhft.affinity.lockchecker.FileLockBasedLockChecker;
 import net.openhft.affinity.lockchecker.LockChecker;
+import net.openhft.affinity.lockchecker.MappedLockChecker;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 /**
  * @author Rob Austin.
@@ -35,8 +39,87 @@ public enum LockCheck {
     private static final String OS = System.getProperty("os.name").toLowerCase();
     static final boolean IS_LINUX = OS.startsWith("linux");
     private static final int EMPTY_PID = Integer.MIN_VALUE;
+    static final String PRIORITY = "priority=";
 
-    private static final LockChecker lockChecker = FileLockBasedLockChecker.getInstance();
+    /**
+     * Set to "mapped" to hold locks in a memory mapped table rather than a file per cpu. Every process sharing cpus
+     * must use the same checker.
+     */
+    public static final String AFFINITY_LOCK_CHECKER = "affinity.lock.checker";
+    /**
+     * The file of the table, if mapped.
+     */
+    public static final String AFFINITY_LOCK_TABLE = "affinity.lock.table";
+    /**
+     * The name of a pool of cpus shared only by the processes using the same name. Processes using different
+     * names, or none, don't see each other's locks.
+     */
+    public static final String AFFINITY_LOCK_DOMAIN = "affinity.lock.domain";
+    /**
+     * The directory of the lock files, which must be one all the processes sharing cpus can see, e.g. rather than a
+     * /tmp private to a container. Defaults to java.io.tmpdir.
+     */
+    public static final String AFFINITY_LOCK_DIR = "affinity.lock.dir";
+    /**
+     * How long in ms a lock lasts without its holder renewing it, after which another process can take it even if
+     * the holder is still running. A lock is only renewed while the thread holding it is alive and not blocked on a
+     * monitor, e.g. deadlocked. Defaults to 0, lasting until the holder releases it or exits.
+     */
+    public static final String AFFINITY_LOCK_LEASE_MS = "affinity.lock.lease.ms";
+
+    private static final String DOMAIN = domain(System.getProperty(AFFINITY_LOCK_DOMAIN));
+    private static final LockChecker lockChecker = createLockChecker();
+
+    /**
+     * @return the name of a domain, limited to characters safe in a file name, or null for none.
+     */
+    static String domain(String name) {
+        if (name == null || name.trim().isEmpty())
+            return null;
+        final String domain = name.trim().replaceAll("[^A-Za-z0-9._-]", "_");
+        if (!domain.equals(name))
+            LOGGER.warn("Using lock domain {} for {}", domain, name);
+        return domain;
+    }
+
+    private static LockChecker createLockChecker() {
+        final long leaseMS = Long.getLong(AFFINITY_LOCK_LEASE_MS, 0L);
+        final LockChecker checker = "mapped".equalsIgnoreCase(System.getProperty(AFFINITY_LOCK_CHECKER)) && canOSSupportOperation()
+                ? createMappedLockChecker(leaseMS)
+                : createFileLockChecker(leaseMS);
+        if (DOMAIN != null || leaseMS > 0)
+            LOGGER.info("Locking cpus in lock domain {} with {}", DOMAIN, checker);
+        checker.onRevocationRequest(cpu -> AffinityLock.lockInventory().revocationRequested(cpu));
+        checker.onLeaseLost(cpu -> AffinityLock.lockInventory().leaseLost(cpu));
+        checker.renewWhile(cpu -> AffinityLock.lockInventory().isHolderResponsive(cpu));
+        return checker;
+    }
+
+    private static LockChecker createFileLockChecker(long leaseMS) {
+        final String dir = System.getProperty(AFFINITY_LOCK_DIR);
+        if (dir == null && DOMAIN == null && leaseMS <= 0)
+            return FileLockBasedLockChecker.getInstance();
+        final File base = new File(dir != null ? dir : System.getProperty("java.io.tmpdir"));
+        return new FileLockBasedLockChecker(DOMAIN == null ? base : new File(base, "affinity-" + DOMAIN), leaseMS);
+    }
+
+    private static LockChecker createMappedLockChecker(long leaseMS) {
+        final String defaultTable = DOMAIN == null ? MappedLockChecker.DEFAULT_TABLE : MappedLockChecker.DEFAULT_TABLE + '-' + DOMAIN;
+        final File table = new File(System.getProperty(AFFINITY_LOCK_TABLE, defaultTable));
+        try {
+            return new MappedLockChecker(table, leaseMS);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Unable to map cpu lock table {}, using lock files", table, e);
+            return createFileLockChecker(leaseMS);
+        }
+    }
+
+    /**
+     * @return the name of the lock domain of this process, or null if it uses the default.
+     */
+    public static String lockDomain() {
+        return DOMAIN;
+    }
 
     public static long getPID() {
         String processName =
@@ -56,7 +139,7 @@ public enum LockCheck {
     }
 
     static boolean replacePid(int cpu, long processID) throws IOException {
-        return storePid(processID, cpu);
+        return lockChecker.obtainLock(cpu, metaInfo(processID, AffinityLock.DEFAULT_PRIORITY));
     }
 
     public static boolean isProcessRunning(long pid) {
@@ -68,14 +151,66 @@ public enum LockCheck {
 
     /**
      * stores the pid in a file, named by the core, the pid is written to the file with the date
-     * below
+     * below, followed by the thread locking it and what for.
+     */
+    private static boolean storePid(long processID, int cpu, int priority, CpuOwnership.Role role) throws IOException {
+        final String metaInfo = metaInfo(processID, priority) + "\n" + CpuOwnership.toMetaInfo(role);
+        if (lockChecker.obtainLock(cpu, metaInfo))
+            return true;
+        // only when it is held, check the holder is still running, as a lock left by one which isn't is never released
+        return isLockFree(cpu) && lockChecker.obtainLock(cpu, metaInfo);
+    }
+
+    /**
+     * The pid comes first so versions which only read the pid can still read it. The start time and boot id of this
+     * process follow, so the lock can't be mistaken for one held by another process reusing the pid.
      */
-    private synchronized static boolean storePid(long processID, int cpu) throws IOException {
-        return lockChecker.obtainLock(cpu, Long.toString(processID));
+    private static String metaInfo(long processID, int priority) {
+        final ProcessIdentity current = ProcessIdentity.current();
+        final String metaInfo = processID + "\n" + PRIORITY + priority;
+        return processID == current.pid() ? metaInfo + "\n" + current.toMetaInfo() : metaInfo;
     }
 
-    private synchronized static boolean isLockFree(int id) {
-        return lockChecker.isLockFree(id);
+    private static int priorityOf(String[] lines) {
+        if (lines != null)
+            for (String line : lines)
+                if (line.startsWith(PRIORITY)) {
+                    try {
+                        return Integer.parseInt(line.substring(PRIORITY.length()).trim());
+                    } catch (NumberFormatException e) {
+                        //nothing
+                    }
+                }
+        return AffinityLock.DEFAULT_PRIORITY;
+    }
+
+    private static boolean isLockFree(int id) {
+        if (lockChecker.isLockFree(id))
+            return true;
+        try {
+            final String[] lines = lockChecker.getMetaInfoLines(id);
+            final ProcessIdentity holder = ProcessIdentity.parse(lines);
+            // only a lock recording a start time can be told apart from one held by a process reusing the pid.
+            if (holder == null || !holder.isVerifiable() || holder.isRunning())
+                return false;
+            if (lockChecker.releaseStaleLock(id, lines)) {
+                LOGGER.warn("Released lock on cpu {} held for {} which is no longer running", id, holder);
+                return lockChecker.isLockFree(id);
+            }
+        } catch (IOException e) {
+            LOGGER.debug("Unable to check the holder of cpu {}", id, e);
+        }
+        return false;
+    }
+
+    /**
+     * @return the process holding a cpu, with its start time and boot id if recorded, or null if it is free.
+     */
+    @Nullable
+    public static ProcessIdentity getHolderForCpu(int cpu) throws IOException {
+        if (!canOSSupportOperation() || lockChecker.isLockFree(cpu))
+            return null;
+        return ProcessIdentity.parse(lockChecker.getMetaInfoLines(cpu));
     }
 
     public static int getProcessForCpu(int core) throws IOException {
@@ -92,12 +227,84 @@ public enum LockCheck {
     }
 
     static boolean updateCpu(int cpu) throws IOException {
+        return updateCpu(cpu, AffinityLock.DEFAULT_PRIORITY);
+    }
+
+    static boolean updateCpu(int cpu, int priority) throws IOException {
+        return updateCpu(cpu, priority, CpuOwnership.Role.THREAD);
+    }
+
+    static boolean updateCpu(int cpu, int priority, CpuOwnership.Role role) throws IOException {
         if (!canOSSupportOperation())
             return true;
-        return replacePid(cpu, getPID());
+        return storePid(getPID(), cpu, priority, role);
+    }
+
+    /**
+     * @return the lines of meta info of every cpu locked by any process, by cpu.
+     */
+    static SortedMap<Integer, String[]> getLockedMetaInfo() {
+        if (!canOSSupportOperation())
+            return new TreeMap<>();
+        return lockChecker.getLockedMetaInfo(AffinityLock.cpuLayout().cpus());
+    }
+
+    /**
+     * @return the priority the cpu was locked with, by this or another process, or the default if none was
+     * recorded.
+     */
+    public static int getPriorityForCpu(int cpu) throws IOException {
+        return priorityOf(lockChecker.getMetaInfoLines(cpu));
+    }
+
+    /**
+     * Ask the process holding a cpu to release it for a reservation of a higher priority.
+     *
+     * @return false if this is not supported, or another process has asked with the same or a higher priority.
+     */
+    static boolean requestRevocation(int cpu, int priority) throws IOException {
+        if (!canOSSupportOperation())
+            return false;
+        return lockChecker.requestRevocation(cpu, metaInfo(getPID(), priority));
+    }
+
+    /**
+     * @return the priority of a request to release a cpu from a process still running, or Integer.MIN_VALUE if
+     * there is none.
+     */
+    static int getRevocationPriority(int cpu) throws IOException {
+        if (!canOSSupportOperation())
+            return Integer.MIN_VALUE;
+        final String[] lines = lockChecker.getRevocationRequest(cpu);
+        final ProcessIdentity requester = ProcessIdentity.parse(lines);
+        if (requester == null || !requester.isRunning())
+            return Integer.MIN_VALUE;
+        return priorityOf(lines);
+    }
+
+    /**
+     * Withdraw a request by this process to release a cpu.
+     */
+    static void cancelRevocation(int cpu) {
+        if (!canOSSupportOperation())
+            return;
+        try {
+            final String[] lines = lockChecker.getRevocationRequest(cpu);
+            if (lines != null && lines[0].trim().equals(Long.toString(getPID())))
+                lockChecker.cancelRevocation(cpu);
+        } catch (IOException e) {
+            LOGGER.debug("Unable to cancel revocation of cpu {}", cpu, e);
+        }
     }
 
     public static void releaseLock(int cpu) {
         lockChecker.releaseLock(cpu);
     }
+
+    /**
+     * @return the directory of the cpu lock files, or null if not supported.
+     */
+    static File lockDirectory() {
+        return canOSSupportOperation() ? lockChecker.lockDirectory() : null;
+    }
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016-2020 chronicle.software
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.openhft.affinity;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Runs an action once an object becomes unreachable, like java.lang.ref.Cleaner which isn't available in Java 8.
+ * <p>
+ * A single daemon thread blocks on a reference queue, so there is no cost until something is collected, and
+ * nothing goes through the finalizer queue.
+ */
+final class LockCleaner implements Runnable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LockCleaner.class);
+    private static final ReferenceQueue<Object> QUEUE = new ReferenceQueue<>();
+    /**
+     * Keeps each reference reachable until it has been enqueued.
+     */
+    private static final Set<Cleanable> CLEANABLES = ConcurrentHashMap.newKeySet();
+    private static boolean started = false;
+
+    private LockCleaner() {
+    }
+
+    /**
+     * @param referent to watch
+     * @param action   to run once it is unreachable, which mustn't refer to the referent.
+     */
+    static void register(@NotNull Object referent, @NotNull Runnable action) {
+        start();
+        CLEANABLES.add(new Cleanable(referent, action));
+    }
+
+    /**
+     * @return the number of objects registered which have not been cleaned yet.
+     */
+    static int pending() {
+        return CLEANABLES.size();
+    }
+
+    private static synchronized void start() {
+        if (started)
+            return;
+        started = true;
+        final Thread thread = new Thread(new LockCleaner(), "affinity-lock-cleaner");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        for (; ; ) {
+            final Cleanable cleanable;
+            try {
+                cleanable = (Cleanable) QUEUE.remove();
+            } catch (InterruptedException e) {
+                return;
+            }
+            CLEANABLES.remove(cleanable);
+            try {
+                cleanable.action.run();
+            } catch (Throwable t) {
+                LOGGER.warn("Failed to clean up", t);
+            }
+        }
+    }
+
+    private static final class Cleanable extends PhantomReference<Object> {
+        final Runnable action;
+
+        Cleanable(Object referent, Runnable action) {
+            super(referent, QUEUE);
+            this.action = action;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2016-2020 chronicle.software
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.openhft.affinity;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.BitSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Wakes threads waiting for a cpu when another process deletes its cpu lock file on release, and passes on requests
+ * from other processes to release a cpu held with a lower priority.
+ * <p>
+ * On Linux the WatchService is backed by inotify, so waiting threads don't poll the file system. It is started by
+ * the first thread to wait, or to hold a cpu which can be revoked, and runs as a daemon thread.
+ */
+final class LockFileWatcher implements Runnable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LockFileWatcher.class);
+    private static final Pattern LOCK_FILE = Pattern.compile("cpu-(\\d+)\\.lock");
+    private static final Pattern REVOCATION_FILE = Pattern.compile("cpu-(\\d{1,9})\\.revoke");
+    private static boolean started = false;
+
+    private final WatchService watchService;
+
+    private LockFileWatcher(WatchService watchService) {
+        this.watchService = watchService;
+    }
+
+    static synchronized void start() {
+        if (started)
+            return;
+        started = true;
+        final File dir = LockCheck.lockDirectory();
+        if (dir == null)
+            return;
+        try {
+            final WatchService watchService = FileSystems.getDefault().newWatchService();
+            dir.toPath().register(watchService, ENTRY_DELETE, ENTRY_CREATE);
+            final Thread thread = new Thread(new LockFileWatcher(watchService), "affinity-lock-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        } catch (IOException | UnsupportedOperationException e) {
+            LOGGER.warn("Unable to watch {} for CPUs released by other processes", dir, e);
+        }
+    }
+
+    static boolean isLockFile(Path path) {
+        return LOCK_FILE.matcher(path.getFileName().toString()).matches();
+    }
+
+    /**
+     * @return the cpu of a request to release it, or -1 if not a request.
+     */
+    static int revokedCpu(Path path) {
+        final Matcher matcher = REVOCATION_FILE.matcher(path.getFileName().toString());
+        return matcher.matches() ? Integer.parseInt(matcher.group(1)) : -1;
+    }
+
+    @Override
+    public void run() {
+        try {
+            for (; ; ) {
+                final WatchKey key = watchService.take();
+                boolean released = false;
+                final BitSet revoked = new BitSet();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW) {
+                        released = true;
+                    } else if (event.context() instanceof Path) {
+                        final Path path = (Path) event.context();
+                        if (event.kind() == ENTRY_DELETE)
+                            released |= isLockFile(path);
+                        else if (revokedCpu(path) >= 0)
+                            revoked.set(revokedCpu(path));
+                    }
+                }
+                if (released)
+                    LockInventory.signalRelease();
+                for (int cpu = revoked.nextSetBit(0); cpu >= 0; cpu = revoked.nextSetBit(cpu + 1))
+                    AffinityLock.lockInventory().revocationRequested(cpu);
+                if (!key.reset()) {
+                    LOGGER.warn("No longer watching for CPUs released by other processes");
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // stop watching
+        }
+    }
+}
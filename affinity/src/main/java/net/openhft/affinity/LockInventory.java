@@ -17,16 +17,28 @@
 
 package net.openhft.affinity;
 
+import net.openhft.affinity.impl.FlatCpuLayout;
 import net.openhft.affinity.impl.NullAffinity;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.channels.ClosedByInterruptException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import static net.openhft.affinity.Affinity.getAffinityImpl;
 
@@ -34,15 +46,28 @@ class LockInventory {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(LockInventory.class);
     /**
-     * The locks belonging to physical cores. Since a physical core can host multiple logical cores
-     * the relationship is one to many.
+     * The locks for the current cpuLayout. It is replaced as a whole when the layout changes, so every operation
+     * reads it once and works on a consistent view without holding a lock.
      */
-    private final NavigableMap<Integer, AffinityLock[]> physicalCoreLocks = new TreeMap<>();
-    private CpuLayout cpuLayout;
+    private volatile Table table;
     /**
-     * The lock belonging to each logical core. 1-to-1 relationship
+     * How often a waiting thread retries anyway, in case another process died holding a cpu and so never deleted
+     * its lock file.
      */
-    private AffinityLock[] logicalCoreLocks;
+    private static final long RECHECK_NS = TimeUnit.SECONDS.toNanos(1);
+    /**
+     * The number of cpus released, by this process or another.
+     */
+    private static final AtomicLong RELEASES = new AtomicLong();
+    private static final AtomicInteger WAITERS = new AtomicInteger();
+    private static final Object RELEASE_MONITOR = new Object();
+    /**
+     * The locks assigned to each thread, so a thread can find and release its own locks without scanning every cpu.
+     * A lock since assigned to another thread is skipped, and whole core siblings are kept ahead of the lock
+     * which reserved them. It is only created once a lock is assigned, so threads which never hold one don't
+     * register a cleaner.
+     */
+    private final ThreadLocal<HeldLocks> heldLocks = new ThreadLocal<>();
 
     public LockInventory(CpuLayout cpuLayout) {
         set(cpuLayout);
@@ -78,12 +103,19 @@ class LockInventory {
      * @param bind      Whether to also bind the thread to the core
      * @param al        The lock to update
      * @param wholeCore Whether to bind the whole core
+     * @param priority  The priority recorded for other processes to see
+     * @param listener  Told if a reservation of a higher priority needs the cpu
      * @return true if the lock was acquired, false otherwise
      */
-    private static boolean updateLockForCurrentThread(final boolean bind, final AffinityLock al, final boolean wholeCore) throws ClosedByInterruptException {
+    private static boolean updateLockForCurrentThread(final boolean bind, final AffinityLock al, final boolean wholeCore,
+                                                      final int priority, @Nullable final RevocationListener listener) throws ClosedByInterruptException {
         try {
-            if (LockCheck.updateCpu(al.cpuId())) {
+            if (LockCheck.updateCpu(al.cpuId(), priority, wholeCore ? CpuOwnership.Role.CORE : CpuOwnership.Role.THREAD)) {
+                al.priority = priority;
+                al.revocationListener = listener;
                 al.assignCurrentThread(bind, wholeCore);
+                if (listener != null)
+                    LockFileWatcher.start();
                 return true;
             }
         } catch (ClosedByInterruptException e) {
@@ -95,82 +127,256 @@ class LockInventory {
         return false;
     }
 
-    public final synchronized CpuLayout getCpuLayout() {
-        return cpuLayout;
+    public final CpuLayout getCpuLayout() {
+        return table.cpuLayout;
+    }
+
+    public final FlatCpuLayout getFlatCpuLayout() {
+        return table.flatCpuLayout;
     }
 
     public final synchronized void set(CpuLayout cpuLayout) {
-        if (cpuLayout.equals(this.cpuLayout)) {
+        final Table table = this.table;
+        if (table != null && cpuLayout.equals(table.cpuLayout)) {
             return;
         }
-        reset(cpuLayout);
-        for (int i = 0; i < cpuLayout.cpus(); i++) {
-            final boolean base = AffinityLock.BASE_AFFINITY.get(i);
-            final boolean reservable = AffinityLock.RESERVED_AFFINITY.get(i);
-            LOGGER.trace("cpu {} base={} reservable= {}", i, base, reservable);
-            AffinityLock lock = logicalCoreLocks[i] = newLock(i, base, reservable);
+        this.table = new Table(cpuLayout);
+    }
 
-            int layoutId = lock.cpuId();
-            int physicalCore = toPhysicalCore(layoutId);
-            AffinityLock[] locks = physicalCoreLocks.get(physicalCore);
-            if (locks == null) {
-                physicalCoreLocks.put(physicalCore, locks = new AffinityLock[cpuLayout.threadsPerCore()]);
-            }
-            locks[cpuLayout.threadId(layoutId)] = lock;
+    /**
+     * Claim a cpu in this process, then lock it against other processes.
+     *
+     * @return true if the lock was acquired, false if the cpu was taken by another thread or process.
+     */
+    private static boolean tryAcquire(final Table table, final boolean bind, final AffinityLock al) throws ClosedByInterruptException {
+        return tryAcquire(table, bind, al, AffinityLock.DEFAULT_PRIORITY, null);
+    }
+
+    private static boolean tryAcquire(final Table table, final boolean bind, final AffinityLock al,
+                                      final int priority, @Nullable final RevocationListener listener) throws ClosedByInterruptException {
+        if (!table.claim(al.cpuId()))
+            return false;
+        boolean acquired = false;
+        try {
+            acquired = updateLockForCurrentThread(bind, al, false, priority, listener);
+            return acquired;
+        } finally {
+            if (!acquired)
+                table.unclaim(al.cpuId());
         }
-        shrink(physicalCoreLocks);
     }
 
     /**
-     * If some CPUs are hyper-threaded, but not others, fix up the HT CPUs
+     * Claim every cpu of a core in this process, then lock every cpu of it against other processes, or none.
+     *
+     * @param al  the cpu to lock
+     * @param als all the cpus of its core
+     * @return true if the core was acquired, false if any cpu of it was taken.
      */
-    private void shrink(NavigableMap<Integer, AffinityLock[]> physicalCoreLocks) {
-        for (Map.Entry<Integer, AffinityLock[]> e : physicalCoreLocks.entrySet()) {
-            final AffinityLock[] locks = e.getValue();
-            for (int i=0; i<locks.length; i++) {
-                if (locks[i] == null) {
-                    final AffinityLock[] locks2 = new AffinityLock[i];
-                    System.arraycopy(locks, 0, locks2, 0, i);
-                    physicalCoreLocks.put(e.getKey(), locks2);
-                    break;
+    private boolean tryAcquireCore(final Table table, final boolean bind, final AffinityLock al, final AffinityLock[] als) throws ClosedByInterruptException {
+        // claim every cpu of the core, giving up the core if another thread takes one first.
+        for (int i = 0; i < als.length; i++) {
+            if (!table.claim(als[i].cpuId())) {
+                while (--i >= 0)
+                    table.unclaim(als[i].cpuId());
+                return false;
+            }
+        }
+        final Thread thread = Thread.currentThread();
+        for (AffinityLock al2 : als)
+            if (al2 != al)
+                assignSibling(al2);
+        boolean acquired = false;
+        int locked = 0;
+        try {
+            while (locked < als.length && (als[locked] == al || LockCheck.updateCpu(als[locked].cpuId(), AffinityLock.DEFAULT_PRIORITY, CpuOwnership.Role.SIBLING)))
+                locked++;
+            if (locked < als.length) {
+                logHolder(als[locked].cpuId(), al.cpuId());
+                return false;
+            }
+            acquired = updateLockForCurrentThread(bind, al, true, AffinityLock.DEFAULT_PRIORITY, null);
+            return acquired;
+        } catch (ClosedByInterruptException e) {
+            throw e;
+        } catch (IOException e) {
+            LOGGER.info("Error occurred acquiring lock, trying another " + e);
+            return false;
+        } finally {
+            if (!acquired) {
+                for (int i = 0; i < locked; i++)
+                    if (als[i] != al)
+                        LockCheck.releaseLock(als[i].cpuId());
+                for (AffinityLock al2 : als) {
+                    if (al2 != al)
+                        al2.unassign(thread);
+                    table.unclaim(al2.cpuId());
                 }
             }
         }
     }
 
-    public final synchronized AffinityLock acquireLock(boolean bind, int cpuId, AffinityStrategy... strategies) {
+    private static void logHolder(int cpuId, int coreCpuId) {
+        if (!LOGGER.isInfoEnabled())
+            return;
+        try {
+            LOGGER.info("Not reserving the core of cpu {} as cpu {} is held by {}", coreCpuId, cpuId, LockCheck.getHolderForCpu(cpuId));
+        } catch (IOException e) {
+            LOGGER.info("Not reserving the core of cpu {} as cpu {} is held by another process", coreCpuId, cpuId);
+        }
+    }
+
+    /**
+     * @param cpuId any cpu of a core
+     * @return the process holding each cpu of the core which is locked, by this process or another, by cpu.
+     */
+    @NotNull
+    public final Map<Integer, ProcessIdentity> coreHolders(int cpuId) {
+        final Table table = this.table;
+        final Map<Integer, ProcessIdentity> holders = new TreeMap<>();
+        if (cpuId < 0 || cpuId >= table.logicalCoreLocks.length)
+            return holders;
+        for (AffinityLock al : table.physicalCoreLocks.get(table.flatCpuLayout.physicalCoreId(cpuId))) {
+            try {
+                final ProcessIdentity holder = al.assignedThread != null || al.cpuSet != null
+                        ? ProcessIdentity.current()
+                        : LockCheck.getHolderForCpu(al.cpuId());
+                if (holder != null)
+                    holders.put(al.cpuId(), holder);
+            } catch (IOException e) {
+                LOGGER.debug("Unable to read the holder of cpu {}", al.cpuId(), e);
+            }
+        }
+        return holders;
+    }
+
+    /**
+     * Acquire the first free cpu in the order given.
+     *
+     * @param bind      whether to bind the current thread
+     * @param cpuIds    the cpus to try in order
+     * @param wholeCore whether to reserve every cpu of the core
+     * @return the lock acquired or a lock with no cpu if none were free.
+     */
+    public final AffinityLock acquireFirst(boolean bind, int[] cpuIds, boolean wholeCore) {
         if (getAffinityImpl() instanceof NullAffinity)
             return noLock();
 
+        final Table table = this.table;
+        try {
+            for (int cpuId : cpuIds) {
+                if (cpuId < 0 || cpuId >= table.logicalCoreLocks.length || !table.flatCpuLayout.isOnline(cpuId))
+                    continue;
+                final AffinityLock al = table.logicalCoreLocks[cpuId];
+                if (wholeCore
+                        ? tryAcquireCore(table, bind, al, table.physicalCoreLocks.get(table.flatCpuLayout.physicalCoreId(cpuId)))
+                        : tryAcquire(table, bind, al))
+                    return al;
+            }
+        } catch (ClosedByInterruptException e) {
+            Thread.currentThread().interrupt();
+            return noLock();
+        }
+
+        LOGGER.warn("No free CPU in {} for {}", Arrays.toString(cpuIds), Thread.currentThread());
+
+        return noLock();
+    }
+
+    /**
+     * @param cpuId the logical processor number
+     * @return whether the cpu can be chosen when no cpu was specified, free or not.
+     */
+    public final boolean isReservable(int cpuId) {
+        final AffinityLock[] locks = table.logicalCoreLocks;
+        return cpuId >= 0 && cpuId < locks.length && locks[cpuId].isReservable();
+    }
+
+    /**
+     * @param threadName the name of a thread
+     * @return the cpu of a lock assigned to a thread of that name, or -1 if there is none.
+     */
+    public final int cpuOf(@NotNull String threadName) {
+        for (AffinityLock al : table.logicalCoreLocks) {
+            final Thread at = al.assignedThread;
+            if (at != null && threadName.equals(at.getName()))
+                return al.cpuId();
+        }
+        return -1;
+    }
+
+    public final AffinityLock acquireLock(boolean bind, int cpuId, AffinityStrategy... strategies) {
+        if (getAffinityImpl() instanceof NullAffinity)
+            return noLock();
+
+        final Table table = this.table;
         final boolean specificCpuRequested = !isAnyCpu(cpuId);
         try {
             if (specificCpuRequested && cpuId != 0) {
-                if (cpuId > logicalCoreLocks.length) {
+                if (cpuId >= table.logicalCoreLocks.length) {
                     LOGGER.warn("Unable to acquire lock on CPU {} for thread {}, as not enough CPUs",
                             cpuId, Thread.currentThread());
                     return noLock();
                 }
 
-                final AffinityLock required = logicalCoreLocks[cpuId];
-                if (required.canReserve(true)
-                        && anyStrategyMatches(cpuId, cpuId, strategies)
-                        && updateLockForCurrentThread(bind, required, false)) {
+                final AffinityLock required = table.logicalCoreLocks[cpuId];
+                if (anyStrategyMatches(cpuId, cpuId, strategies)
+                        && tryAcquire(table, bind, required)) {
                     return required;
                 }
                 LOGGER.warn("Unable to acquire lock on CPU {} for thread {}, trying to find another CPU",
                         cpuId, Thread.currentThread());
             }
 
-            for (AffinityStrategy strategy : strategies) {
-                // consider all processors except cpu 0 which is usually used by the OS.
-                // if you have only one core, this library is not appropriate in any case.
-                for (int i = logicalCoreLocks.length - 1; i > 0; i--) {
-                    AffinityLock al = logicalCoreLocks[i];
-                    if (al.canReserve(false)
-                            && (isAnyCpu(cpuId) || strategy.matches(cpuId, al.cpuId()))
-                            && updateLockForCurrentThread(bind, al, false)) {
-                        return al;
-                    }
+            final AffinityLock al = acquireMatching(table, bind, cpuId, strategies);
+            if (al != null)
+                return al;
+        } catch (ClosedByInterruptException e) {
+            Thread.currentThread().interrupt();
+            return noLock();
+        }
+
+        LOGGER.warn("No reservable CPU for {}", Thread.currentThread());
+
+        return noLock();
+    }
+
+    /**
+     * @return the first free reservable cpu matching a strategy, trying each strategy in turn, or null if none.
+     */
+    @Nullable
+    private static AffinityLock acquireMatching(Table table, boolean bind, int cpuId, AffinityStrategy[] strategies) throws ClosedByInterruptException {
+        return acquireMatching(table, bind, cpuId, strategies, AffinityLock.DEFAULT_PRIORITY, null);
+    }
+
+    @Nullable
+    private static AffinityLock acquireMatching(Table table, boolean bind, int cpuId, AffinityStrategy[] strategies,
+                                                int priority, @Nullable RevocationListener listener) throws ClosedByInterruptException {
+        for (AffinityStrategy strategy : strategies) {
+            // consider all processors except cpu 0 which is usually used by the OS.
+            // if you have only one core, this library is not appropriate in any case.
+            for (int i = table.previousReservable(table.logicalCoreLocks.length - 1); i > 0; i = table.previousReservable(i - 1)) {
+                AffinityLock al = table.logicalCoreLocks[i];
+                if ((isAnyCpu(cpuId) || strategy.matches(cpuId, i))
+                        && tryAcquire(table, bind, al, priority, listener)) {
+                    return al;
+                }
+            }
+        }
+        return null;
+    }
+
+    public final AffinityLock acquireLockOnNode(boolean bind, int numaNodeId) {
+        if (getAffinityImpl() instanceof NullAffinity)
+            return noLock();
+
+        final Table table = this.table;
+        try {
+            for (int i = table.previousReservable(table.logicalCoreLocks.length - 1); i > 0; i = table.previousReservable(i - 1)) {
+                AffinityLock al = table.logicalCoreLocks[i];
+                if (table.flatCpuLayout.numaNodeId(i) == numaNodeId
+                        && tryAcquire(table, bind, al)) {
+                    return al;
                 }
             }
         } catch (ClosedByInterruptException e) {
@@ -178,20 +384,196 @@ class LockInventory {
             return noLock();
         }
 
-        LOGGER.warn("No reservable CPU for {}", Thread.currentThread());
+        LOGGER.warn("No reservable CPU on NUMA node {} for {}", numaNodeId, Thread.currentThread());
 
         return noLock();
     }
 
-    public final synchronized AffinityLock tryAcquireLock(boolean bind, int cpuId) {
+    /**
+     * Reserve a cpu for every slot, or none at all. Every pair of cpus must match all the strategies of both
+     * their slots. Slots sharing one strategies array are interchangeable, so are given cpus in descending order.
+     *
+     * @param slots the strategies of each slot
+     * @return a lock per slot, assigned to but not bound to the current thread, or null if no free cpus match.
+     */
+    @Nullable
+    public final AffinityLock[] acquireGroup(@NotNull AffinityStrategy[][] slots) {
         if (getAffinityImpl() instanceof NullAffinity)
             return null;
-        if (cpuId > logicalCoreLocks.length)
+
+        final Table table = this.table;
+        final int[] chosen = reserve(table, slots, false, CpuOwnership.Role.GROUP);
+        if (chosen == null) {
+            LOGGER.warn("No reservable group of {} CPUs for {}", slots.length, Thread.currentThread());
             return null;
-        final AffinityLock required = logicalCoreLocks[cpuId];
+        }
+        final AffinityLock[] locks = new AffinityLock[chosen.length];
+        for (int i = 0; i < chosen.length; i++) {
+            locks[i] = table.logicalCoreLocks[chosen[i]];
+            locks[i].assignCurrentThread(false, false);
+        }
+        return locks;
+    }
+
+    /**
+     * Reserve a set of cpus, or whole cores, as a unit which any number of threads can be bound to.
+     *
+     * @param count      the number of cpus, or of cores if wholeCore
+     * @param wholeCore  whether to reserve every cpu of each core
+     * @param strategies which every pair of cpus, or cores, must match
+     * @return the set, or null if there are not enough free cpus which match.
+     */
+    @Nullable
+    public final AffinityCpuSetLock acquireCpuSet(int count, boolean wholeCore, @NotNull AffinityStrategy... strategies) {
+        if (count < 1)
+            throw new IllegalArgumentException("A set needs at least one cpu, not " + count);
+        if (getAffinityImpl() instanceof NullAffinity)
+            return null;
+
+        final Table table = this.table;
+        final AffinityStrategy[][] slots = new AffinityStrategy[count][];
+        Arrays.fill(slots, strategies);
+        final int[] cpus = reserve(table, slots, wholeCore, CpuOwnership.Role.CPU_SET);
+        if (cpus == null) {
+            LOGGER.warn("No reservable set of {} {} for {}", count, wholeCore ? "cores" : "CPUs", Thread.currentThread());
+            return null;
+        }
+        final AffinityLock[] locks = new AffinityLock[cpus.length];
+        for (int i = 0; i < cpus.length; i++)
+            locks[i] = table.logicalCoreLocks[cpus[i]];
+        final AffinityCpuSetLock cpuSet = new AffinityCpuSetLock(this, locks);
+        LOGGER.info("Reserving {} for {}", cpuSet, Thread.currentThread());
+        return cpuSet;
+    }
+
+    /**
+     * Release every cpu of a set, once.
+     */
+    final void releaseCpuSet(@NotNull AffinityCpuSetLock.Members members) {
+        if (!members.release())
+            return;
+        final Table table = this.table;
+        LOGGER.info("Releasing {}", members);
+        for (AffinityLock al : members.locks) {
+            al.cpuSet = null;
+            LockCheck.releaseLock(al.cpuId());
+            if (table.logicalCoreLocks.length > al.cpuId() && table.logicalCoreLocks[al.cpuId()] == al)
+                table.unclaim(al.cpuId());
+        }
+    }
+
+    /**
+     * Claim and lock against other processes a cpu for every slot, or none at all.
+     *
+     * @param role recorded for other processes to see
+     * @return the cpus locked, every cpu of each core chosen if wholeCore, or null if no free cpus match.
+     */
+    @Nullable
+    private int[] reserve(Table table, AffinityStrategy[][] slots, boolean wholeCore, CpuOwnership.Role role) {
+        final int[] chosen = new int[slots.length];
+        // cpus locked by another process
+        final BitSet excluded = new BitSet();
+        while (search(table, slots, chosen, 0, excluded, wholeCore)) {
+            final int[] cpus = wholeCore ? coresOf(table, chosen) : chosen;
+            int claimed = 0;
+            while (claimed < cpus.length && table.claim(cpus[claimed]))
+                claimed++;
+            if (claimed < cpus.length) {
+                // another thread took a cpu since the search, look again.
+                while (--claimed >= 0)
+                    table.unclaim(cpus[claimed]);
+                continue;
+            }
+
+            int locked = 0;
+            try {
+                while (locked < cpus.length && LockCheck.updateCpu(cpus[locked], AffinityLock.DEFAULT_PRIORITY, role))
+                    locked++;
+            } catch (IOException e) {
+                if (e instanceof ClosedByInterruptException)
+                    Thread.currentThread().interrupt();
+                else
+                    LOGGER.info("Error occurred acquiring lock, trying another " + e);
+            }
+            if (locked == cpus.length)
+                return cpus;
+
+            for (int i = 0; i < locked; i++)
+                LockCheck.releaseLock(cpus[i]);
+            for (int cpuId : cpus)
+                table.unclaim(cpuId);
+            if (Thread.currentThread().isInterrupted())
+                return null;
+            excluded.set(cpus[locked]);
+        }
+        return null;
+    }
+
+    /**
+     * @return every cpu of the cores of the cpus given.
+     */
+    private static int[] coresOf(Table table, int[] cpuIds) {
+        final BitSet cpus = new BitSet();
+        for (int cpuId : cpuIds)
+            for (AffinityLock al : table.physicalCoreLocks.get(table.flatCpuLayout.physicalCoreId(cpuId)))
+                cpus.set(al.cpuId());
+        return cpus.stream().toArray();
+    }
+
+    /**
+     * Depth first search for free cpus for the slots from this one on.
+     *
+     * @param wholeCore whether every cpu of the core of a cpu chosen must be free, and no two on the same core
+     * @return true if every slot has been chosen a cpu.
+     */
+    private static boolean search(Table table, AffinityStrategy[][] slots, int[] chosen, int slot, BitSet excluded, boolean wholeCore) {
+        if (slot == slots.length)
+            return true;
+        final int from = slot > 0 && slots[slot] == slots[slot - 1]
+                ? chosen[slot - 1] - 1
+                : table.logicalCoreLocks.length - 1;
+        // consider all processors except cpu 0 which is usually used by the OS.
+        NEXT:
+        for (int i = table.previousReservable(from); i > 0; i = table.previousReservable(i - 1)) {
+            if (excluded.get(i))
+                continue;
+            if (wholeCore) {
+                for (AffinityLock al : table.physicalCoreLocks.get(table.flatCpuLayout.physicalCoreId(i)))
+                    if (excluded.get(al.cpuId()) || !table.isReservable(al.cpuId()))
+                        continue NEXT;
+            }
+            for (int j = 0; j < slot; j++) {
+                if (chosen[j] == i
+                        || wholeCore && table.flatCpuLayout.physicalCoreId(chosen[j]) == table.flatCpuLayout.physicalCoreId(i)
+                        || !allStrategiesMatch(chosen[j], i, slots[slot])
+                        || !allStrategiesMatch(chosen[j], i, slots[j]))
+                    continue NEXT;
+            }
+            chosen[slot] = i;
+            if (search(table, slots, chosen, slot + 1, excluded, wholeCore))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean allStrategiesMatch(final int cpuOne, final int cpuTwo, final AffinityStrategy[] strategies) {
+        for (AffinityStrategy strategy : strategies) {
+            if (!strategy.matches(cpuOne, cpuTwo)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public final AffinityLock tryAcquireLock(boolean bind, int cpuId) {
+        if (getAffinityImpl() instanceof NullAffinity)
+            return null;
+        final Table table = this.table;
+        if (cpuId >= table.logicalCoreLocks.length)
+            return null;
+        final AffinityLock required = table.logicalCoreLocks[cpuId];
         try {
-            if (required.canReserve(true)
-                    && updateLockForCurrentThread(bind, required, false)) {
+            if (tryAcquire(table, bind, required)) {
                 return required;
             }
         } catch (ClosedByInterruptException e) {
@@ -205,52 +587,436 @@ class LockInventory {
         return null;
     }
 
-    public final synchronized AffinityLock acquireCore(boolean bind, int cpuId, AffinityStrategy... strategies) {
+    /**
+     * Move the current thread from the cpu of a lock to another cpu, reserving the new cpu before switching the
+     * affinity and only then releasing the old one, so the thread is never unpinned and the old cpu can't be taken
+     * in between. If the thread holds the whole core of the old cpu, it moves to another whole core.
+     *
+     * @param from       the lock held by the current thread
+     * @param cpuId      the cpu to move to, or ANY_CPU to choose one relative to the old cpu
+     * @param strategies to choose a cpu relative to the old one when no cpu is given
+     * @return the lock of the new cpu, or null if none could be reserved, leaving the thread on the old cpu.
+     * @throws IllegalStateException if the lock is not held by the current thread.
+     */
+    @Nullable
+    public final AffinityLock migrate(@NotNull AffinityLock from, int cpuId, AffinityStrategy... strategies) {
+        final Thread t = Thread.currentThread();
+        if (from.assignedThread != t)
+            throw new IllegalStateException("cpu " + from.cpuId() + " is not held by " + t);
+        if (getAffinityImpl() instanceof NullAffinity)
+            return null;
+
+        final Table table = this.table;
+        final AffinityLock[] fromCore = heldCore(table, from, t);
+        final AffinityLock to;
+        try {
+            if (fromCore != null) {
+                if (isAnyCpu(cpuId)) {
+                    to = acquireMatchingCore(table, false, from.cpuId(), strategies);
+                } else if (cpuId >= 0 && cpuId < table.logicalCoreLocks.length && table.flatCpuLayout.isOnline(cpuId)
+                        && tryAcquireCore(table, false, table.logicalCoreLocks[cpuId],
+                        table.physicalCoreLocks.get(table.flatCpuLayout.physicalCoreId(cpuId)))) {
+                    to = table.logicalCoreLocks[cpuId];
+                } else {
+                    to = null;
+                }
+            } else if (isAnyCpu(cpuId)) {
+                to = acquireMatching(table, false, from.cpuId(), strategies, from.priority, from.revocationListener);
+            } else if (cpuId >= 0 && cpuId < table.logicalCoreLocks.length
+                    && tryAcquire(table, false, table.logicalCoreLocks[cpuId], from.priority, from.revocationListener)) {
+                to = table.logicalCoreLocks[cpuId];
+            } else {
+                to = null;
+            }
+        } catch (ClosedByInterruptException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        if (to == null) {
+            LOGGER.warn("Unable to migrate {} from {} {}, staying there", t, fromCore == null ? "cpu" : "the core of cpu", from.cpuId());
+            return null;
+        }
+
+        to.resetAffinity(from.resetAffinity());
+        if (from.bound)
+            to.bind(fromCore != null);
+        final List<AffinityLock> held = heldLocks().locks;
+        if (fromCore == null) {
+            releaseAffinityLock(table, t, from, "Migrated from cpu {} for {}");
+            held.remove(from);
+        } else {
+            for (AffinityLock al : fromCore) {
+                if (releaseAffinityLock(table, t, al, "Migrated from cpu {} for {}"))
+                    held.remove(al);
+            }
+        }
+        return to;
+    }
+
+    /**
+     * @return every cpu of the core of a lock if the thread holds its siblings too, or null if it only holds the cpu.
+     */
+    @Nullable
+    private static AffinityLock[] heldCore(Table table, AffinityLock al, Thread t) {
+        final int cpuId = al.cpuId();
+        if (cpuId < 0 || cpuId >= table.logicalCoreLocks.length || table.logicalCoreLocks[cpuId] != al)
+            return null;
+        final AffinityLock[] core = table.physicalCoreLocks.get(table.flatCpuLayout.physicalCoreId(cpuId));
+        if (core != null)
+            for (AffinityLock sibling : core)
+                if (sibling != al && sibling != null && sibling.assignedThread == t)
+                    return core;
+        return null;
+    }
+
+    public final AffinityLock acquireCore(boolean bind, int cpuId, AffinityStrategy... strategies) {
+        try {
+            final AffinityLock al = acquireMatchingCore(table, bind, cpuId, strategies);
+            if (al != null)
+                return al;
+        } catch (ClosedByInterruptException e) {
+            Thread.currentThread().interrupt();
+            return noLock();
+        }
+
+        LOGGER.warn("No reservable Core for {}", Thread.currentThread());
+
+        return acquireLock(bind, cpuId, strategies);
+    }
+
+    /**
+     * @return the first free reservable core matching a strategy, trying each strategy in turn, or null if none.
+     */
+    @Nullable
+    private AffinityLock acquireMatchingCore(Table table, boolean bind, int cpuId, AffinityStrategy[] strategies) throws ClosedByInterruptException {
         for (AffinityStrategy strategy : strategies) {
             LOOP:
-            for (AffinityLock[] als : physicalCoreLocks.descendingMap().values()) {
+            for (AffinityLock[] als : table.physicalCoreLocks.descendingMap().values()) {
                 for (AffinityLock al : als)
-                    if (!al.canReserve(false) || !strategy.matches(cpuId, al.cpuId()))
+                    if (!table.isReservable(al.cpuId()) || !strategy.matches(cpuId, al.cpuId()))
                         continue LOOP;
 
-                final AffinityLock al = als[0];
-                try {
-                if (updateLockForCurrentThread(bind, al, true)) {
-                    return al;
+                if (tryAcquireCore(table, bind, als[0], als)) {
+                    return als[0];
                 }
-                } catch (ClosedByInterruptException e) {
-                    Thread.currentThread().interrupt();
-                    return noLock();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Acquire a free reservable cpu matching a strategy, waiting for one to be released if none are free.
+     *
+     * @param timeout how long to wait
+     * @param unit    of the timeout
+     * @return the lock acquired
+     * @throws TimeoutException     if no matching cpu was released in time.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public final AffinityLock acquireLock(boolean bind, int cpuId, long timeout, TimeUnit unit, AffinityStrategy... strategies) throws InterruptedException, TimeoutException {
+        return await(table -> acquireMatching(table, bind, cpuId, strategies), timeout, unit, "a reservable CPU");
+    }
+
+    /**
+     * Acquire a free reservable core matching a strategy, waiting for one to be released if none are free.
+     *
+     * @param timeout how long to wait
+     * @param unit    of the timeout
+     * @return the lock acquired
+     * @throws TimeoutException     if no matching core was released in time.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public final AffinityLock acquireCore(boolean bind, int cpuId, long timeout, TimeUnit unit, AffinityStrategy... strategies) throws InterruptedException, TimeoutException {
+        return await(table -> acquireMatchingCore(table, bind, cpuId, strategies), timeout, unit, "a reservable Core");
+    }
+
+    /**
+     * Acquire a cpu, waiting for it to be released if it is taken.
+     *
+     * @param cpuId   the cpu to acquire
+     * @param timeout how long to wait
+     * @param unit    of the timeout
+     * @return the lock acquired
+     * @throws IllegalArgumentException if there is no such cpu.
+     * @throws TimeoutException         if the cpu was not released in time.
+     * @throws InterruptedException     if interrupted while waiting.
+     */
+    public final AffinityLock tryAcquireLock(boolean bind, int cpuId, long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        if (isAnyCpu(cpuId))
+            throw new IllegalArgumentException("No CPU " + cpuId);
+        return acquireLock(bind, cpuId, AffinityLock.DEFAULT_PRIORITY, null, timeout, unit);
+    }
+
+    /**
+     * Acquire a cpu with a priority. If it is held with a lower priority, in this process or another, the holder is
+     * asked to release it, and this waits for it to be released.
+     *
+     * @param cpuId    the cpu to acquire, or ANY_CPU for any reservable cpu, asking the holder with the lowest
+     *                 priority if none are free
+     * @param priority the higher, the more important
+     * @param listener told if a reservation of a higher priority needs the cpu, or null
+     * @param timeout  how long to wait
+     * @param unit     of the timeout
+     * @return the lock acquired
+     * @throws IllegalArgumentException if there is no such cpu.
+     * @throws TimeoutException         if no cpu was released in time.
+     * @throws InterruptedException     if interrupted while waiting.
+     */
+    public final AffinityLock acquireLock(boolean bind, int cpuId, int priority, @Nullable RevocationListener listener,
+                                          long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        final Table current = this.table;
+        if (!isAnyCpu(cpuId) && (cpuId < 0 || cpuId >= current.logicalCoreLocks.length || !current.flatCpuLayout.isOnline(cpuId)))
+            throw new IllegalArgumentException("No CPU " + cpuId);
+        // the cpu this has asked to be released, if any
+        final int[] revoking = {-1};
+        try {
+            return await(table -> {
+                final AffinityLock al = acquireWithPriority(table, bind, cpuId, priority, listener);
+                if (al == null && (revoking[0] < 0 || heldPriority(table, revoking[0]) >= priority)) {
+                    // withdraw the request for a cpu since taken by another, before asking for the next
+                    cancelRevocation(table, revoking[0]);
+                    revoking[0] = revokeLowest(table, cpuId, priority);
+                }
+                return al;
+            }, timeout, unit, isAnyCpu(cpuId) ? "a reservable CPU" : "CPU " + cpuId);
+        } finally {
+            cancelRevocation(this.table, revoking[0]);
+        }
+    }
+
+    @Nullable
+    private static AffinityLock acquireWithPriority(Table table, boolean bind, int cpuId, int priority, @Nullable RevocationListener listener) throws ClosedByInterruptException {
+        if (!isAnyCpu(cpuId)) {
+            if (cpuId >= table.logicalCoreLocks.length)
+                return null;
+            final AffinityLock required = table.logicalCoreLocks[cpuId];
+            return tryAcquire(table, bind, required, priority, listener) ? required : null;
+        }
+        // consider all processors except cpu 0 which is usually used by the OS.
+        for (int i = table.previousReservable(table.logicalCoreLocks.length - 1); i > 0; i = table.previousReservable(i - 1)) {
+            final AffinityLock al = table.logicalCoreLocks[i];
+            if (tryAcquire(table, bind, al, priority, listener))
+                return al;
+        }
+        return null;
+    }
+
+    /**
+     * @return the priority of the holder of a cpu in this process or another, or Integer.MAX_VALUE if it is free.
+     */
+    private static int heldPriority(Table table, int cpuId) {
+        if (cpuId >= table.logicalCoreLocks.length)
+            return Integer.MAX_VALUE;
+        final AffinityLock al = table.logicalCoreLocks[cpuId];
+        if (al.cpuSet != null)
+            return Integer.MAX_VALUE;
+        if (al.assignedThread != null)
+            return al.priority;
+        if (LockCheck.isCpuFree(cpuId))
+            return Integer.MAX_VALUE;
+        try {
+            return LockCheck.getPriorityForCpu(cpuId);
+        } catch (IOException e) {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Ask the holder with the lowest priority below this one to release its cpu.
+     *
+     * @return the cpu asked for, or -1 if none are held with a lower priority.
+     */
+    private static int revokeLowest(Table table, int cpuId, int priority) {
+        int lowest = -1;
+        int lowestPriority = priority;
+        if (isAnyCpu(cpuId)) {
+            for (int i = table.logicalCoreLocks.length - 1; i > 0; i--) {
+                if (!table.logicalCoreLocks[i].isReservable() || !table.flatCpuLayout.isOnline(i))
+                    continue;
+                final int held = heldPriority(table, i);
+                if (held < lowestPriority) {
+                    lowest = i;
+                    lowestPriority = held;
                 }
             }
+        } else if (heldPriority(table, cpuId) < priority) {
+            lowest = cpuId;
         }
+        if (lowest < 0)
+            return -1;
 
-        LOGGER.warn("No reservable Core for {}", Thread.currentThread());
+        final AffinityLock al = table.logicalCoreLocks[lowest];
+        if (al.assignedThread != null) {
+            al.revoke(priority);
+        } else {
+            try {
+                if (LockCheck.requestRevocation(lowest, priority))
+                    LOGGER.info("Asked process {} to release cpu {} for priority {}", LockCheck.getProcessForCpu(lowest), lowest, priority);
+            } catch (IOException e) {
+                LOGGER.warn("Unable to ask for cpu {} to be released", lowest, e);
+            }
+        }
+        return lowest;
+    }
 
-        return acquireLock(bind, cpuId, strategies);
+    /**
+     * Withdraw a request made by {@link #revokeLowest(Table, int, int)}, if any.
+     */
+    private static void cancelRevocation(Table table, int cpuId) {
+        if (cpuId < 0)
+            return;
+        final AffinityLock al = cpuId < table.logicalCoreLocks.length ? table.logicalCoreLocks[cpuId] : null;
+        if (al != null && al.assignedThread != null)
+            al.cancelRevoke();
+        else
+            LockCheck.cancelRevocation(cpuId);
+    }
+
+    /**
+     * Another process has asked for a cpu, which is revoked if this process holds it with a lower priority.
+     */
+    final void revocationRequested(int cpuId) {
+        final Table table = this.table;
+        if (cpuId < 0 || cpuId >= table.logicalCoreLocks.length)
+            return;
+        final AffinityLock al = table.logicalCoreLocks[cpuId];
+        if (al.assignedThread == null)
+            return;
+        try {
+            final int priority = LockCheck.getRevocationPriority(cpuId);
+            if (al.priority < priority)
+                al.revoke(priority);
+        } catch (IOException e) {
+            LOGGER.warn("Unable to read request for cpu {}", cpuId, e);
+        }
+    }
+
+    /**
+     * Another process took a cpu held by this process once its lease ran out, e.g. as this process was paused for
+     * longer than the lease, so the holder is asked to give it up.
+     */
+    final void leaseLost(int cpuId) {
+        final Table table = this.table;
+        if (cpuId < 0 || cpuId >= table.logicalCoreLocks.length)
+            return;
+        final AffinityLock al = table.logicalCoreLocks[cpuId];
+        LOGGER.warn("Lost the lock on cpu {} held by {}", cpuId, al);
+        if (al.assignedThread != null)
+            al.revoke(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Whether the lease of a cpu held by this process is renewed, which it isn't once the thread holding it has died
+     * or is blocked on a monitor, e.g. deadlocked, so another process can take it from a holder which has hung.
+     * A lock not held by a thread, e.g. of a cpu set, is always renewed.
+     */
+    final boolean isHolderResponsive(int cpuId) {
+        final Table table = this.table;
+        if (cpuId < 0 || cpuId >= table.logicalCoreLocks.length)
+            return true;
+        final Thread holder = table.logicalCoreLocks[cpuId].assignedThread;
+        return holder == null || holder.isAlive() && holder.getState() != Thread.State.BLOCKED;
+    }
+
+    /**
+     * Retry an acquisition each time a cpu is released, in this process or another, until it succeeds or times out.
+     */
+    private AffinityLock await(Attempt attempt, long timeout, TimeUnit unit, String what) throws InterruptedException, TimeoutException {
+        if (getAffinityImpl() instanceof NullAffinity)
+            return noLock();
+
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean watching = false;
+        for (; ; ) {
+            final long releases = RELEASES.get();
+            try {
+                final AffinityLock al = attempt.acquire(this.table);
+                if (al != null)
+                    return al;
+            } catch (ClosedByInterruptException e) {
+                Thread.interrupted();
+                throw new InterruptedException("Interrupted acquiring " + what);
+            }
+            // a thread which died holding a cpu may not have been collected yet
+            if (releaseDeadThreads() > 0)
+                continue;
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                throw new TimeoutException("No " + what + " was released within " + timeout + " " + unit.toString().toLowerCase(Locale.ROOT) + " for " + Thread.currentThread());
+            if (!watching) {
+                LockFileWatcher.start();
+                watching = true;
+            }
+            awaitRelease(releases, Math.min(remaining, RECHECK_NS));
+        }
     }
 
-    public final synchronized void bindWholeCore(int logicalCoreID) {
+    /**
+     * Wait until a cpu has been released since the count given, or the timeout.
+     */
+    private static void awaitRelease(long releases, long timeoutNS) throws InterruptedException {
+        WAITERS.incrementAndGet();
+        try {
+            final long deadline = System.nanoTime() + timeoutNS;
+            synchronized (RELEASE_MONITOR) {
+                long remaining;
+                while (RELEASES.get() == releases && (remaining = deadline - System.nanoTime()) > 0)
+                    TimeUnit.NANOSECONDS.timedWait(RELEASE_MONITOR, remaining);
+            }
+        } finally {
+            WAITERS.decrementAndGet();
+        }
+    }
+
+    /**
+     * Wake the threads waiting for a cpu to be released.
+     */
+    static void signalRelease() {
+        RELEASES.incrementAndGet();
+        if (WAITERS.get() > 0) {
+            synchronized (RELEASE_MONITOR) {
+                RELEASE_MONITOR.notifyAll();
+            }
+        }
+    }
+
+    private interface Attempt {
+        @Nullable
+        AffinityLock acquire(Table table) throws ClosedByInterruptException;
+    }
+
+    public final void bindWholeCore(int logicalCoreID) {
         if (logicalCoreID < 0) {
             LOGGER.warn("Can't bind core since it was not possible to reserve it!");
             return;
         }
 
-        int core = toPhysicalCore(logicalCoreID);
-        for (AffinityLock al : physicalCoreLocks.get(core)) {
-            if (al.isBound() && al.assignedThread != null && al.assignedThread.isAlive()) {
-                LOGGER.warn("cpu {} already bound to {}", al.cpuId(), al.assignedThread);
+        final Table table = this.table;
+        int core = table.flatCpuLayout.physicalCoreId(logicalCoreID);
+        for (AffinityLock al : table.physicalCoreLocks.get(core)) {
+            final Thread at = al.assignedThread;
+            if (al.isBound() && at != null && at.isAlive()) {
+                LOGGER.warn("cpu {} already bound to {}", al.cpuId(), at);
+
+            } else if (at == null && al.cpuId() != logicalCoreID && !table.claim(al.cpuId())) {
+                LOGGER.warn("cpu {} already reserved", al.cpuId());
+
+            } else if (at == null && al.cpuId() != logicalCoreID && !lockSibling(al.cpuId())) {
+                table.unclaim(al.cpuId());
 
             } else {
                 al.bound = true;
-                al.assignedThread = Thread.currentThread();
+                if (al.cpuId() == logicalCoreID)
+                    assignCurrentThread(al);
+                else
+                    assignSibling(al);
             }
         }
 
         if (LOGGER.isInfoEnabled()) {
             StringBuilder sb = new StringBuilder().append("Assigning core ").append(core);
             String sep = ": cpus ";
-            for (AffinityLock al : physicalCoreLocks.get(core)) {
+            for (AffinityLock al : table.physicalCoreLocks.get(core)) {
                 sb.append(sep).append(al.cpuId());
                 sep = ", ";
             }
@@ -259,48 +1025,287 @@ class LockInventory {
         }
     }
 
-    public final synchronized void release(boolean resetAffinity) {
-        Thread t = Thread.currentThread();
-        for (AffinityLock al : logicalCoreLocks) {
-            Thread at = al.assignedThread;
-            if (at == t) {
-                releaseAffinityLock(t, al, "Releasing cpu {} from {}");
-            } else if (at != null && !at.isAlive()) {
-                releaseAffinityLock(t, al, "Releasing cpu {} from {} as it is not alive.");
-            }
+    /**
+     * Lock a cpu claimed as the sibling of a core being bound against other processes.
+     */
+    private static boolean lockSibling(int cpuId) {
+        try {
+            if (LockCheck.updateCpu(cpuId, AffinityLock.DEFAULT_PRIORITY, CpuOwnership.Role.SIBLING))
+                return true;
+            LOGGER.warn("cpu {} already reserved by {}", cpuId, LockCheck.getHolderForCpu(cpuId));
+        } catch (IOException e) {
+            if (e instanceof ClosedByInterruptException)
+                Thread.currentThread().interrupt();
+            LOGGER.warn("Unable to lock cpu {}", cpuId, e);
         }
-        if (resetAffinity)
+        return false;
+    }
+
+    /**
+     * Release the locks of the current thread, resetting its affinity if it was bound.
+     */
+    public final void release(boolean resetAffinity) {
+        final Table table = this.table;
+        final Thread t = Thread.currentThread();
+        final HeldLocks held = heldLocks.get();
+        if (held == null)
+            return;
+        final List<AffinityLock> locks = held.locks;
+        boolean wasBound = false;
+        for (int i = 0; i < locks.size(); i++) {
+            final AffinityLock al = locks.get(i);
+            final boolean bound = al.bound;
+            if (releaseAffinityLock(table, t, al, "Releasing cpu {} from {}"))
+                wasBound |= bound;
+        }
+        locks.clear();
+        if (resetAffinity && wasBound)
             Affinity.resetToBaseAffinity();
     }
 
-    public final synchronized String dumpLocks() {
-        return dumpLocks(logicalCoreLocks);
+    /**
+     * Release the locks of threads which died without releasing them. This scans every cpu.
+     *
+     * @return the number of locks released.
+     */
+    public final int releaseDeadThreads() {
+        final Table table = this.table;
+        int released = 0;
+        for (AffinityLock al : table.logicalCoreLocks) {
+            final Thread at = al.assignedThread;
+            if (at != null && !at.isAlive()
+                    && releaseAffinityLock(table, at, al, "Releasing cpu {} from {} as it is not alive."))
+                released++;
+        }
+        return released;
+    }
+
+    /**
+     * @return the lock most recently assigned to the current thread, or null if it holds none.
+     */
+    @Nullable
+    public final AffinityLock current() {
+        final Thread t = Thread.currentThread();
+        final HeldLocks held = heldLocks.get();
+        if (held == null)
+            return null;
+        final List<AffinityLock> locks = held.locks;
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            final AffinityLock al = locks.get(i);
+            if (al.assignedThread == t)
+                return al;
+        }
+        return null;
     }
 
-    protected AffinityLock newLock(int cpuId, boolean base, boolean reservable) {
-        return new AffinityLock(cpuId, base, reservable, this);
+    /**
+     * Assign a lock to the current thread.
+     */
+    final void assignCurrentThread(AffinityLock al) {
+        al.assignedThread = Thread.currentThread();
+        final List<AffinityLock> locks = heldLocks().locks;
+        if (!locks.contains(al))
+            locks.add(al);
     }
 
-    private void reset(CpuLayout cpuLayout) {
-        this.cpuLayout = cpuLayout;
-        this.logicalCoreLocks = new AffinityLock[cpuLayout.cpus()];
-        this.physicalCoreLocks.clear();
+    /**
+     * Assign the sibling of a whole core lock to the current thread.
+     */
+    private void assignSibling(AffinityLock al) {
+        al.assignedThread = Thread.currentThread();
+        final List<AffinityLock> locks = heldLocks().locks;
+        if (!locks.contains(al))
+            locks.add(0, al);
+    }
+
+    /**
+     * @return the locks of the current thread, created when it is first assigned one. They are released by the
+     * cleaner once the thread dies and so its thread locals become unreachable.
+     */
+    private HeldLocks heldLocks() {
+        HeldLocks held = heldLocks.get();
+        if (held != null)
+            return held;
+        held = new HeldLocks();
+        heldLocks.set(held);
+        final Thread thread = Thread.currentThread();
+        final List<AffinityLock> locks = held.locks;
+        LockCleaner.register(held, () -> releaseDiscarded(thread, locks));
+        return held;
     }
 
-    private int toPhysicalCore(int layoutId) {
-        return cpuLayout.socketId(layoutId) * cpuLayout.coresPerSocket() + cpuLayout.coreId(layoutId);
+    private void releaseDiscarded(Thread thread, List<AffinityLock> locks) {
+        final Table table = this.table;
+        for (AffinityLock al : locks) {
+            final Throwable boundHere = al.boundHere;
+            if (al.assignedThread == thread
+                    && releaseAffinityLock(table, thread, al, "Releasing cpu {} from {} as it is not alive."))
+                LOGGER.warn("Affinity lock for " + thread + " was discarded rather than release()d in a controlled manner.", boundHere);
+        }
+    }
+
+    public final String dumpLocks() {
+        return dumpLocks(table.logicalCoreLocks);
     }
 
-    private void releaseAffinityLock(final Thread t, final AffinityLock al, final String format) {
-        LOGGER.info(format, al.cpuId(), t);
-        al.assignedThread = null;
+    protected AffinityLock newLock(int cpuId, boolean base, boolean reservable) {
+        return new AffinityLock(cpuId, base, reservable, this);
+    }
+
+    /**
+     * @return true if the lock was still assigned to the thread and has been released.
+     */
+    private static boolean releaseAffinityLock(final Table table, final Thread at, final AffinityLock al, final String format) {
+        // only one thread releases a lock, even if several find the same dead thread.
+        if (!al.unassign(at))
+            return false;
+        LOGGER.info(format, al.cpuId(), at);
         al.bound = false;
         al.boundHere = null;
+        al.resetPriority();
 
         LockCheck.releaseLock(al.cpuId());
+        // a lock from before the layout changed has no bit in the current table
+        if (table.logicalCoreLocks.length > al.cpuId() && table.logicalCoreLocks[al.cpuId()] == al)
+            table.unclaim(al.cpuId());
+        return true;
     }
 
     public AffinityLock noLock() {
         return newLock(AffinityLock.ANY_CPU, false, false);
     }
+
+    /**
+     * The locks assigned to one thread. Only the list is referred to elsewhere, so this is unreachable once the
+     * thread has died.
+     */
+    private static final class HeldLocks {
+        final List<AffinityLock> locks = new ArrayList<>();
+    }
+
+    /**
+     * The locks for one CpuLayout.
+     * <p>
+     * Each cpu has a bit in a free mask which is cleared atomically to claim the cpu within this process,
+     * so threads acquiring different cpus don't contend. Only once claimed is the cpu locked against other
+     * processes.
+     */
+    private final class Table {
+        final CpuLayout cpuLayout;
+        final FlatCpuLayout flatCpuLayout;
+        /**
+         * The lock belonging to each logical core. 1-to-1 relationship
+         */
+        final AffinityLock[] logicalCoreLocks;
+        /**
+         * The locks belonging to physical cores. Since a physical core can host multiple logical cores
+         * the relationship is one to many.
+         */
+        final NavigableMap<Integer, AffinityLock[]> physicalCoreLocks = new TreeMap<>();
+        /**
+         * The cpus which can be chosen when no cpu was specified.
+         */
+        final long[] reservable;
+        /**
+         * The online cpus not claimed by a thread in this process.
+         */
+        final AtomicLongArray free;
+
+        Table(CpuLayout cpuLayout) {
+            this.cpuLayout = cpuLayout;
+            this.flatCpuLayout = FlatCpuLayout.of(cpuLayout);
+            this.logicalCoreLocks = new AffinityLock[cpuLayout.cpus()];
+            final int words = (cpuLayout.cpus() + 63) >>> 6;
+            this.reservable = new long[words];
+            this.free = new AtomicLongArray(words);
+            for (int i = 0; i < cpuLayout.cpus(); i++) {
+                final boolean online = cpuLayout.isOnline(i);
+                final boolean base = online && AffinityLock.BASE_AFFINITY.get(i);
+                final boolean reservable = online && AffinityLock.RESERVED_AFFINITY.get(i);
+                LOGGER.trace("cpu {} base={} reservable= {}", i, base, reservable);
+                AffinityLock lock = logicalCoreLocks[i] = newLock(i, base, reservable);
+                if (!online)
+                    continue;
+                free.set(i >>> 6, free.get(i >>> 6) | (1L << i));
+                if (lock.isReservable())
+                    this.reservable[i >>> 6] |= 1L << i;
+
+                int layoutId = lock.cpuId();
+                int physicalCore = flatCpuLayout.physicalCoreId(layoutId);
+                AffinityLock[] locks = physicalCoreLocks.get(physicalCore);
+                if (locks == null) {
+                    physicalCoreLocks.put(physicalCore, locks = new AffinityLock[cpuLayout.threadsPerCore()]);
+                }
+                locks[cpuLayout.threadId(layoutId)] = lock;
+            }
+            shrink(physicalCoreLocks);
+        }
+
+        /**
+         * If some CPUs are hyper-threaded, but not others, fix up the HT CPUs
+         */
+        private void shrink(NavigableMap<Integer, AffinityLock[]> physicalCoreLocks) {
+            for (Map.Entry<Integer, AffinityLock[]> e : physicalCoreLocks.entrySet()) {
+                final AffinityLock[] locks = e.getValue();
+                for (int i=0; i<locks.length; i++) {
+                    if (locks[i] == null) {
+                        final AffinityLock[] locks2 = new AffinityLock[i];
+                        System.arraycopy(locks, 0, locks2, 0, i);
+                        physicalCoreLocks.put(e.getKey(), locks2);
+                        break;
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return whether the cpu is reservable and not claimed.
+         */
+        boolean isReservable(int cpuId) {
+            final int w = cpuId >>> 6;
+            return (reservable[w] & free.get(w) & (1L << cpuId)) != 0;
+        }
+
+        /**
+         * @return the highest reservable unclaimed cpu at or below cpuId, or -1 if none.
+         */
+        int previousReservable(int cpuId) {
+            if (cpuId < 0)
+                return -1;
+            int w = cpuId >>> 6;
+            long word = reservable[w] & free.get(w) & (-1L >>> (63 - (cpuId & 63)));
+            while (word == 0) {
+                if (--w < 0)
+                    return -1;
+                word = reservable[w] & free.get(w);
+            }
+            return (w << 6) + 63 - Long.numberOfLeadingZeros(word);
+        }
+
+        /**
+         * @return true if this call claimed the cpu, false if it was already claimed or is offline.
+         */
+        boolean claim(int cpuId) {
+            final int w = cpuId >>> 6;
+            final long bit = 1L << cpuId;
+            for (; ; ) {
+                final long word = free.get(w);
+                if ((word & bit) == 0)
+                    return false;
+                if (free.compareAndSet(w, word, word & ~bit))
+                    return true;
+            }
+        }
+
+        void unclaim(int cpuId) {
+            final int w = cpuId >>> 6;
+            final long bit = 1L << cpuId;
+            for (; ; ) {
+                final long word = free.get(w);
+                if (free.compareAndSet(w, word, word | bit))
+                    break;
+            }
+            signalRelease();
+        }
+    }
 }
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2016-2020 chronicle.software
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.openhft.affinity;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Identifies a process by its pid, its start time and the boot it was started in, as a pid alone can be reused
+ * by another process once the first has exited, or after a reboot.
+ * <p>
+ * Checking whether a process is still running reads its /proc/&lt;pid&gt;/stat, one small read, so it can be done
+ * for each lock held by another process whenever the locks are scanned.
+ */
+public final class ProcessIdentity {
+    static final String START = "start=";
+    static final String BOOT = "boot=";
+    /**
+     * The start time, when not known, e.g. for a lock taken by an older version.
+     */
+    public static final long UNKNOWN = -1;
+    private static final String BOOT_ID = readBootId();
+    private static final ProcessIdentity CURRENT = new ProcessIdentity(LockCheck.getPID(), startTime(LockCheck.getPID()), BOOT_ID);
+
+    private final long pid;
+    private final long startTime;
+    @NotNull
+    private final String bootId;
+
+    ProcessIdentity(long pid, long startTime, @NotNull String bootId) {
+        this.pid = pid;
+        this.startTime = startTime;
+        this.bootId = bootId;
+    }
+
+    /**
+     * @return the identity of this process.
+     */
+    @NotNull
+    public static ProcessIdentity current() {
+        return CURRENT;
+    }
+
+    /**
+     * @return the id of this boot of the machine, or "" if not known.
+     */
+    @NotNull
+    public static String currentBootId() {
+        return BOOT_ID;
+    }
+
+    private static String readBootId() {
+        try {
+            return new String(Files.readAllBytes(Paths.get("/proc/sys/kernel/random/boot_id")), StandardCharsets.US_ASCII).trim();
+        } catch (IOException | RuntimeException e) {
+            return "";
+        }
+    }
+
+    /**
+     * @return the start time of a process, in clock ticks since boot, or UNKNOWN if it is not running.
+     */
+    public static long startTime(long pid) {
+        final byte[] stat = new byte[512];
+        int length = 0;
+        try (FileInputStream in = new FileInputStream("/proc/" + pid + "/stat")) {
+            for (int n; length < stat.length && (n = in.read(stat, length, stat.length - length)) > 0; )
+                length += n;
+        } catch (IOException e) {
+            return UNKNOWN;
+        }
+        // the name in brackets may contain spaces, the start time is the 20th field after it.
+        int i = length - 1;
+        while (i >= 0 && stat[i] != ')')
+            i--;
+        if (i < 0)
+            return UNKNOWN;
+        for (int field = 0; i < length && field < 20; i++)
+            if (stat[i] == ' ')
+                field++;
+        long startTime = 0;
+        boolean digits = false;
+        for (; i < length && stat[i] >= '0' && stat[i] <= '9'; i++, digits = true)
+            startTime = startTime * 10 + stat[i] - '0';
+        return digits ? startTime : UNKNOWN;
+    }
+
+    /**
+     * @param lines of meta info, the pid first, then any of the lines written by {@link #toMetaInfo()}
+     * @return the identity recorded, or null if there is no pid.
+     */
+    @Nullable
+    public static ProcessIdentity parse(@Nullable String[] lines) {
+        if (lines == null || lines.length == 0)
+            return null;
+        final long pid;
+        try {
+            pid = Long.parseLong(lines[0].trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        long startTime = UNKNOWN;
+        String bootId = "";
+        for (int i = 1; i < lines.length; i++) {
+            final String line = lines[i].trim();
+            if (line.startsWith(START)) {
+                try {
+                    startTime = Long.parseLong(line.substring(START.length()));
+                } catch (NumberFormatException e) {
+                    //nothing
+                }
+            } else if (line.startsWith(BOOT)) {
+                bootId = line.substring(BOOT.length());
+            }
+        }
+        return new ProcessIdentity(pid, startTime, bootId);
+    }
+
+    public long pid() {
+        return pid;
+    }
+
+    /**
+     * @return the start time in clock ticks since boot, or UNKNOWN.
+     */
+    public long startTime() {
+        return startTime;
+    }
+
+    /**
+     * @return the boot id, or "" if not known.
+     */
+    @NotNull
+    public String bootId() {
+        return bootId;
+    }
+
+    /**
+     * @return whether the start time was recorded, so a reused pid can be told apart.
+     */
+    public boolean isVerifiable() {
+        return startTime != UNKNOWN;
+    }
+
+    /**
+     * @return whether this process is still running. Without a start time, only whether a process with its pid is.
+     */
+    public boolean isRunning() {
+        if (!bootId.isEmpty() && !BOOT_ID.isEmpty() && !bootId.equals(BOOT_ID))
+            return false;
+        if (startTime == UNKNOWN)
+            return new File("/proc/" + pid).exists();
+        return startTime(pid) == startTime;
+    }
+
+    /**
+     * @return the lines recorded after the pid.
+     */
+    @NotNull
+    String toMetaInfo() {
+        return START + startTime + "\n" + BOOT + bootId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof ProcessIdentity))
+            return false;
+        final ProcessIdentity that = (ProcessIdentity) o;
+        return pid == that.pid && startTime == that.startTime && bootId.equals(that.bootId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(pid) * 31 + Long.hashCode(startTime);
+    }
+
+    @Override
+    public String toString() {
+        return "process " + pid + (startTime == UNKNOWN ? "" : " started at " + startTime);
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2016-2020 chronicle.software
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.openhft.affinity;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Told when a reservation of a higher priority, in this process or another, needs the cpu of a lock.
+ * <p>
+ * It is called once per lock, on the thread asking for the cpu or a background thread, not the thread holding
+ * the lock. It should only tell the holder to give up the cpu, which it does at its next safe point by calling
+ * {@link AffinityLock#release()}, and possibly acquiring another cpu.
+ */
+@FunctionalInterface
+public interface RevocationListener {
+    /**
+     * @param lock     the lock whose cpu is wanted
+     * @param priority of the reservation which wants it
+     */
+    void onRevoke(@NotNull AffinityLock lock, int priority);
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2016-2020 chronicle.software
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.openhft.affinity.impl;
+
+import net.openhft.affinity.CpuLayout;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * An immutable snapshot of another CpuLayout held in flat int arrays, one entry per cpu.
+ * <p>
+ * Every lookup is an array read, so it can be used without locking or allocating, e.g. by
+ * {@link net.openhft.affinity.AffinityStrategies} while scanning every cpu. The hyper-thread siblings of each
+ * physical core are precomputed as bit masks.
+ */
+public final class FlatCpuLayout implements CpuLayout {
+    @NotNull
+    private final CpuLayout source;
+    private final int sockets;
+    private final int coresPerSocket;
+    private final int threadsPerCore;
+    private final int numaNodes;
+    private final int[] socketIds;
+    private final int[] coreIds;
+    private final int[] threadIds;
+    private final int[] physicalCoreIds;
+    private final int[] l2CacheIds;
+    private final int[] l3CacheIds;
+    private final int[] numaNodeIds;
+    private final long[] online;
+    private final int words;
+    /**
+     * The cpus of each physical core, {@code words} longs per physical core.
+     */
+    private final long[] siblingMasks;
+    private final int[] nodeIds;
+    private final int[] numaDistances;
+
+    private FlatCpuLayout(@NotNull CpuLayout source) {
+        this.source = source;
+        final int cpus = source.cpus();
+        sockets = source.sockets();
+        coresPerSocket = source.coresPerSocket();
+        threadsPerCore = source.threadsPerCore();
+        numaNodes = source.numaNodes();
+        socketIds = new int[cpus];
+        coreIds = new int[cpus];
+        threadIds = new int[cpus];
+        physicalCoreIds = new int[cpus];
+        l2CacheIds = new int[cpus];
+        l3CacheIds = new int[cpus];
+        numaNodeIds = new int[cpus];
+        words = (cpus + 63) >>> 6;
+        online = new long[words];
+
+        // core ids can be sparse, e.g. 0-2 and 8-10 on each socket, so coresPerSocket can't be used as the stride
+        int maxCoreId = 0;
+        for (int i = 0; i < cpus; i++)
+            if (source.isOnline(i))
+                maxCoreId = Math.max(maxCoreId, source.coreId(i));
+        final int coreStride = maxCoreId + 1;
+
+        int maxPhysicalCore = -1;
+        for (int i = 0; i < cpus; i++) {
+            if (!source.isOnline(i)) {
+                socketIds[i] = coreIds[i] = threadIds[i] = physicalCoreIds[i] = -1;
+                l2CacheIds[i] = l3CacheIds[i] = numaNodeIds[i] = -1;
+                continue;
+            }
+            online[i >>> 6] |= 1L << i;
+            socketIds[i] = source.socketId(i);
+            coreIds[i] = source.coreId(i);
+            threadIds[i] = source.threadId(i);
+            physicalCoreIds[i] = socketIds[i] * coreStride + coreIds[i];
+            l2CacheIds[i] = source.l2CacheId(i);
+            l3CacheIds[i] = source.l3CacheId(i);
+            numaNodeIds[i] = source.numaNodeId(i);
+            maxPhysicalCore = Math.max(maxPhysicalCore, physicalCoreIds[i]);
+        }
+
+        siblingMasks = new long[(maxPhysicalCore + 1) * words];
+        for (int i = 0; i < cpus; i++) {
+            if (physicalCoreIds[i] >= 0)
+                siblingMasks[physicalCoreIds[i] * words + (i >>> 6)] |= 1L << i;
+        }
+
+        nodeIds = Arrays.stream(numaNodeIds).filter(n -> n >= 0).distinct().sorted().toArray();
+        numaDistances = new int[nodeIds.length * nodeIds.length];
+        for (int n = 0; n < nodeIds.length; n++)
+            for (int m = 0; m < nodeIds.length; m++)
+                numaDistances[n * nodeIds.length + m] = source.numaDistance(nodeIds[n], nodeIds[m]);
+    }
+
+    /**
+     * @param cpuLayout to take a snapshot of
+     * @return a flat snapshot of the layout, or the layout itself if it is already flat.
+     */
+    @NotNull
+    public static FlatCpuLayout of(@NotNull CpuLayout cpuLayout) {
+        return cpuLayout instanceof FlatCpuLayout
+                ? (FlatCpuLayout) cpuLayout
+                : new FlatCpuLayout(cpuLayout);
+    }
+
+    /**
+     * @return the layout this is a snapshot of.
+     */
+    @NotNull
+    public CpuLayout source() {
+        return source;
+    }
+
+    @Override
+    public int cpus() {
+        return socketIds.length;
+    }
+
+    @Override
+    public int sockets() {
+        return sockets;
+    }
+
+    @Override
+    public int coresPerSocket() {
+        return coresPerSocket;
+    }
+
+    @Override
+    public int threadsPerCore() {
+        return threadsPerCore;
+    }
+
+    @Override
+    public int socketId(int cpuId) {
+        return socketIds[cpuId];
+    }
+
+    @Override
+    public int coreId(int cpuId) {
+        return coreIds[cpuId];
+    }
+
+    @Override
+    public int threadId(int cpuId) {
+        return threadIds[cpuId];
+    }
+
+    /**
+     * @param cpuId the logical processor number
+     * @return a machine wide id for the physical core this cpu is on, or -1 if offline.
+     */
+    public int physicalCoreId(int cpuId) {
+        return physicalCoreIds[cpuId];
+    }
+
+    @Override
+    public boolean isOnline(int cpuId) {
+        return (online[cpuId >>> 6] & (1L << cpuId)) != 0;
+    }
+
+    @Override
+    public int l2CacheId(int cpuId) {
+        return l2CacheIds[cpuId];
+    }
+
+    @Override
+    public int l3CacheId(int cpuId) {
+        return l3CacheIds[cpuId];
+    }
+
+    @Override
+    public int numaNodes() {
+        return numaNodes;
+    }
+
+    @Override
+    public int numaNodeId(int cpuId) {
+        return numaNodeIds[cpuId];
+    }
+
+    @Override
+    public int numaDistance(int nodeId, int nodeId2) {
+        final int index = Arrays.binarySearch(nodeIds, nodeId);
+        final int index2 = Arrays.binarySearch(nodeIds, nodeId2);
+        if (index < 0 || index2 < 0)
+            return CpuLayout.super.numaDistance(nodeId, nodeId2);
+        return numaDistances[index * nodeIds.length + index2];
+    }
+
+    /**
+     * @param cpuId  the logical processor number
+     * @param cpuId2 another logical processor number
+     * @return whether both cpus are online hyper-threads of the same physical core.
+     */
+    public boolean isSibling(int cpuId, int cpuId2) {
+        final int core = physicalCoreIds[cpuId];
+        return core >= 0 && (siblingMasks[core * words + (cpuId2 >>> 6)] & (1L << cpuId2)) != 0;
+    }
+
+    /**
+     * Iterate over the siblings of a cpu in the same way as {@link java.util.BitSet#nextSetBit(int)}
+     *
+     * @param cpuId     the logical processor number
+     * @param fromCpuId the first cpu to consider
+     * @return the next cpu on the same physical core, including cpuId itself, or -1 if there are no more.
+     */
+    public int nextSibling(int cpuId, int fromCpuId) {
+        final int core = physicalCoreIds[cpuId];
+        if (core < 0 || fromCpuId >= cpus())
+            return -1;
+        final int base = core * words;
+        int w = fromCpuId >>> 6;
+        long word = siblingMasks[base + w] & (-1L << fromCpuId);
+        while (word == 0) {
+            if (++w == words)
+                return -1;
+            word = siblingMasks[base + w];
+        }
+        return (w << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    @NotNull
+    @Override
+    public String toString() {
+        return source.toString();
+    }
+
+    @Override
+    public boolean equals(@Nullable Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        FlatCpuLayout that = (FlatCpuLayout) o;
+
+        return sockets == that.sockets
+                && coresPerSocket == that.coresPerSocket
+                && threadsPerCore == that.threadsPerCore
+                && Arrays.equals(socketIds, that.socketIds)
+                && Arrays.equals(coreIds, that.coreIds)
+                && Arrays.equals(threadIds, that.threadIds)
+                && Arrays.equals(l2CacheIds, that.l2CacheIds)
+                && Arrays.equals(l3CacheIds, that.l3CacheIds)
+                && Arrays.equals(numaNodeIds, that.numaNodeIds)
+                && Arrays.equals(numaDistances, that.numaDistances);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Arrays.hashCode(socketIds);
+        result = 31 * result + Arrays.hashCode(coreIds);
+        result = 31 * result + Arrays.hashCode(threadIds);
+        result = 31 * result + Arrays.hashCode(numaNodeIds);
+        return result;
+    }
+}
@@ -19,6 +19,7 @@ package net.openhft.affinity.impl;
 
 import com.sun.jna.*;
 import com.sun.jna.ptr.IntByReference;
+import net.openhft.affinity.CpuSet;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.Arrays;
@@ -32,6 +33,16 @@ public class LinuxHelper {
     private static final VersionHelper VERSION_2_6 = new VersionHelper(2, 6, 0);
 
     private static final VersionHelper version;
+    private static final int EINVAL = 22;
+    /**
+     * The largest cpu mask passed to the kernel in bytes, enough for 1M cpus.
+     */
+    private static final int MAX_CPU_SET_SIZE = 1 << 17;
+    /**
+     * The size of the cpu mask passed to the kernel in bytes. This starts as the size of a glibc cpu_set_t,
+     * enough for 1024 cpus, and grows if the kernel was built for more.
+     */
+    private static volatile int cpuSetSize = cpu_set_t.SIZE_OF_CPU_SET_T;
 
     static {
         final utsname uname = new utsname();
@@ -47,6 +58,11 @@ public class LinuxHelper {
         version = ver;
     }
 
+    /**
+     * @return the affinity of the current thread, limited to the first 1024 cpus.
+     * @deprecated use {@link #sched_getaffinity(int)} which supports any number of cpus.
+     */
+    @Deprecated
     public static
     @NotNull
     cpu_set_t sched_getaffinity() {
@@ -66,31 +82,159 @@ public class LinuxHelper {
         return cpuset;
     }
 
+    /**
+     * @param pid the thread id, or 0 for the current thread
+     * @return the affinity of the thread, with a mask sized for however many cpus the kernel supports.
+     */
+    @NotNull
+    public static BitSet sched_getaffinity(final int pid) {
+        final CLibrary lib = CLibrary.INSTANCE;
+        int size = version.isSameOrNewer(VERSION_2_6) ? cpuSetSize : NativeLong.SIZE;
+        while (true) {
+            final Memory cpuset = new Memory(size);
+            cpuset.clear();
+            try {
+                if (lib.sched_getaffinity(pid, size, cpuset) != 0) {
+                    throw new IllegalStateException("sched_getaffinity(" + pid + ", " + size +
+                            ", cpuset) failed; errno=" + Native.getLastError());
+                }
+                if (size > cpuSetSize)
+                    cpuSetSize = size;
+                return toBitSet(cpuset, size);
+
+            } catch (LastErrorException e) {
+                // the mask is smaller than the kernel's, try again with a larger one.
+                if (e.getErrorCode() == EINVAL && size >= cpu_set_t.SIZE_OF_CPU_SET_T && size < MAX_CPU_SET_SIZE) {
+                    size *= 2;
+                    continue;
+                }
+                throw new IllegalStateException("sched_getaffinity(" + pid + ", (" +
+                        size + ") , cpuset) failed; errno=" + e.getErrorCode(), e);
+            }
+        }
+    }
+
 	public static void sched_setaffinity(final BitSet affinity) {
 		sched_setaffinity(0, affinity);
 	}
 
     public static void sched_setaffinity(final int pid, final BitSet affinity) {
         final CLibrary lib = CLibrary.INSTANCE;
-        final cpu_set_t cpuset = new cpu_set_t();
-        final int size = version.isSameOrNewer(VERSION_2_6) ? cpu_set_t.SIZE_OF_CPU_SET_T : NativeLong.SIZE;
-        final long[] bits = affinity.toLongArray();
-        for (int i = 0; i < bits.length; i++) {
-            if (Platform.is64Bit()) {
-                cpuset.__bits[i].setValue(bits[i]);
-            } else {
-                cpuset.__bits[i * 2].setValue(bits[i] & 0xFFFFFFFFL);
-                cpuset.__bits[i * 2 + 1].setValue((bits[i] >>> 32) & 0xFFFFFFFFL);
+        final int size = version.isSameOrNewer(VERSION_2_6) ? cpuSetSize(affinity.length()) : NativeLong.SIZE;
+        final Memory cpuset = new Memory(size);
+        fromBitSet(affinity, cpuset, size);
+        try {
+            if (lib.sched_setaffinity(pid, size, cpuset) != 0) {
+                throw new IllegalStateException("sched_setaffinity(" + pid + ", " + size +
+                        ", 0x" + CpuSet.valueOf(affinity).toHexString() + ") failed; errno=" + Native.getLastError());
             }
+        } catch (LastErrorException e) {
+            throw new IllegalStateException("sched_setaffinity(" + pid + ", " + size +
+                    ", 0x" + CpuSet.valueOf(affinity).toHexString() + ") failed; errno=" + e.getErrorCode(), e);
+        }
+    }
+
+    /**
+     * Read the affinity of a thread into a set, without creating garbage once the set and this thread's buffer
+     * have the capacity for every cpu.
+     *
+     * @param pid      the thread id, or 0 for the current thread
+     * @param affinity to overwrite
+     */
+    public static void sched_getaffinity(final int pid, @NotNull final CpuSet affinity) {
+        int size = cpuSetSize;
+        while (true) {
+            final Memory cpuset = CpuSetBuffer.get(size);
+            try {
+                if (Direct.sched_getaffinity(pid, size, cpuset) != 0) {
+                    throw new IllegalStateException("sched_getaffinity(" + pid + ", " + size +
+                            ", cpuset) failed; errno=" + Native.getLastError());
+                }
+                if (size > cpuSetSize)
+                    cpuSetSize = size;
+                affinity.clear();
+                for (int i = 0, words = size / NativeLong.SIZE; i < words; i++) {
+                    if (NativeLong.SIZE == 8)
+                        affinity.word(i, cpuset.getLong(i * 8L));
+                    else
+                        affinity.word(i >>> 1, affinity.word(i >>> 1) | (cpuset.getInt(i * 4L) & 0xFFFFFFFFL) << ((i & 1) * 32));
+                }
+                return;
+
+            } catch (LastErrorException e) {
+                if (e.getErrorCode() == EINVAL && size < MAX_CPU_SET_SIZE) {
+                    size *= 2;
+                    continue;
+                }
+                throw new IllegalStateException("sched_getaffinity(" + pid + ", (" +
+                        size + ") , cpuset) failed; errno=" + e.getErrorCode(), e);
+            }
+        }
+    }
+
+    /**
+     * Set the affinity of a thread without creating garbage, once this thread's buffer has the capacity.
+     *
+     * @param pid      the thread id, or 0 for the current thread
+     * @param affinity the cpus it may run on
+     */
+    public static void sched_setaffinity(final int pid, @NotNull final CpuSet affinity) {
+        final int size = cpuSetSize(affinity.length());
+        final Memory cpuset = CpuSetBuffer.get(size);
+        for (int i = 0, words = size / NativeLong.SIZE; i < words; i++) {
+            if (NativeLong.SIZE == 8)
+                cpuset.setLong(i * 8L, affinity.word(i));
+            else
+                cpuset.setInt(i * 4L, (int) (affinity.word(i >>> 1) >>> ((i & 1) * 32)));
         }
         try {
-            if (lib.sched_setaffinity(pid, size, cpuset) != 0) {
+            if (Direct.sched_setaffinity(pid, size, cpuset) != 0) {
                 throw new IllegalStateException("sched_setaffinity(" + pid + ", " + size +
-                        ", 0x" + Utilities.toHexString(affinity) + ") failed; errno=" + Native.getLastError());
+                        ", 0x" + affinity.toHexString() + ") failed; errno=" + Native.getLastError());
             }
         } catch (LastErrorException e) {
             throw new IllegalStateException("sched_setaffinity(" + pid + ", " + size +
-                    ", 0x" + Utilities.toHexString(affinity) + ") failed; errno=" + e.getErrorCode(), e);
+                    ", 0x" + affinity.toHexString() + ") failed; errno=" + e.getErrorCode(), e);
+        }
+    }
+
+    /**
+     * @param cpus the highest cpu + 1 which needs to fit in the mask
+     * @return the size in bytes of a mask which fits the cpus and is no smaller than the kernel's
+     */
+    static int cpuSetSize(int cpus) {
+        final int bits = 8 * NativeLong.SIZE;
+        return Math.max(cpuSetSize, (cpus + bits - 1) / bits * NativeLong.SIZE);
+    }
+
+    /**
+     * Read a kernel cpu mask, an array of native longs.
+     */
+    @NotNull
+    static BitSet toBitSet(final Pointer cpuset, final int size) {
+        final long[] longs = new long[(size + 7) / 8];
+        for (int i = 0, words = size / NativeLong.SIZE; i < words; i++) {
+            final long word = cpuset.getNativeLong((long) i * NativeLong.SIZE).longValue();
+            if (NativeLong.SIZE == 8)
+                longs[i] = word;
+            else
+                longs[i >>> 1] |= (word & 0xFFFFFFFFL) << ((i & 1) * 32);
+        }
+        return BitSet.valueOf(longs);
+    }
+
+    /**
+     * Write a kernel cpu mask, an array of native longs. Cpus which don't fit in size bytes are ignored.
+     */
+    static void fromBitSet(final BitSet affinity, final Pointer cpuset, final int size) {
+        final long[] longs = affinity.toLongArray();
+        for (int i = 0, words = size / NativeLong.SIZE; i < words; i++) {
+            final long word;
+            if (NativeLong.SIZE == 8)
+                word = i < longs.length ? longs[i] : 0L;
+            else
+                word = (i >>> 1) < longs.length ? (longs[i >>> 1] >>> ((i & 1) * 32)) & 0xFFFFFFFFL : 0L;
+            cpuset.setNativeLong((long) i * NativeLong.SIZE, new NativeLong(word));
         }
     }
 
@@ -157,6 +301,42 @@ public class LinuxHelper {
         }
     }
 
+    /**
+     * Direct mapping, unlike CLibrary, passes its arguments without boxing them into an array.
+     */
+    static final class Direct {
+        static {
+            Native.register(Direct.class, LIBRARY_NAME);
+        }
+
+        private Direct() {
+        }
+
+        static native int sched_setaffinity(int pid, int cpusetsize, Pointer cpuset) throws LastErrorException;
+
+        static native int sched_getaffinity(int pid, int cpusetsize, Pointer cpuset) throws LastErrorException;
+    }
+
+    /**
+     * The native cpu mask of each thread, reused by the calls with a CpuSet.
+     */
+    static final class CpuSetBuffer {
+        private static final ThreadLocal<Memory> BUFFER = new ThreadLocal<>();
+
+        private CpuSetBuffer() {
+        }
+
+        /**
+         * @return this thread's buffer, of at least size bytes.
+         */
+        static Memory get(int size) {
+            Memory memory = BUFFER.get();
+            if (memory == null || memory.size() < size)
+                BUFFER.set(memory = new Memory(size));
+            return memory;
+        }
+    }
+
     interface CLibrary extends Library {
         CLibrary INSTANCE = Native.load(LIBRARY_NAME, CLibrary.class);
 
@@ -168,6 +348,14 @@ public class LinuxHelper {
                               final int cpusetsize,
                               final cpu_set_t cpuset) throws LastErrorException;
 
+        int sched_setaffinity(final int pid,
+                              final int cpusetsize,
+                              final Pointer cpuset) throws LastErrorException;
+
+        int sched_getaffinity(final int pid,
+                              final int cpusetsize,
+                              final Pointer cpuset) throws LastErrorException;
+
         int getpid() throws LastErrorException;
 
         int sched_getcpu() throws LastErrorException;
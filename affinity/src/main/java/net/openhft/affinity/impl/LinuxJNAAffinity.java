@@ -17,8 +17,8 @@
 
 package net.openhft.affinity.impl;
 
-import com.sun.jna.NativeLong;
 import com.sun.jna.Platform;
+import net.openhft.affinity.CpuSet;
 import net.openhft.affinity.IAffinity;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -61,15 +61,7 @@ public enum LinuxJNAAffinity implements IAffinity {
 
     @Override
     public BitSet getAffinity() {
-        final LinuxHelper.cpu_set_t cpuset = LinuxHelper.sched_getaffinity();
-
-        BitSet ret = new BitSet(LinuxHelper.cpu_set_t.__CPU_SETSIZE);
-        int i = 0;
-        for (NativeLong nl : cpuset.__bits) {
-            for (int j = 0; j < Long.SIZE; j++)
-                ret.set(i++, ((nl.longValue() >>> j) & 1) != 0);
-        }
-        return ret;
+        return LinuxHelper.sched_getaffinity(0);
     }
 
     @Override
@@ -77,6 +69,26 @@ public enum LinuxJNAAffinity implements IAffinity {
         LinuxHelper.sched_setaffinity(affinity);
     }
 
+    @Override
+    public void getAffinity(CpuSet affinity) {
+        LinuxHelper.sched_getaffinity(0, affinity);
+    }
+
+    @Override
+    public void setAffinity(CpuSet affinity) {
+        LinuxHelper.sched_setaffinity(0, affinity);
+    }
+
+    @Override
+    public BitSet getAffinity(int threadId) {
+        return LinuxHelper.sched_getaffinity(threadId);
+    }
+
+    @Override
+    public void setAffinity(int threadId, final BitSet affinity) {
+        LinuxHelper.sched_setaffinity(threadId, affinity);
+    }
+
     @Override
     public int getCpu() {
         return LinuxHelper.sched_getcpu();
@@ -89,6 +101,9 @@ public enum LinuxJNAAffinity implements IAffinity {
 
     @Override
     public int getThreadId() {
+        // the id of a virtual thread is that of its current carrier
+        if (Utilities.isVirtual(Thread.currentThread()))
+            return LinuxHelper.syscall(SYS_gettid, NO_ARGS);
         Integer tid = THREAD_ID.get();
         if (tid == null)
             THREAD_ID.set(tid = LinuxHelper.syscall(SYS_gettid, NO_ARGS));
@@ -17,6 +17,7 @@
 
 package net.openhft.affinity.impl;
 
+import net.openhft.affinity.CpuSet;
 import net.openhft.affinity.IAffinity;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,7 +39,7 @@ public enum NullAffinity implements IAffinity {
 
     @Override
     public void setAffinity(final BitSet affinity) {
-        LOGGER.trace("unable to set mask to {} as the JNIa nd JNA libraries and not loaded", Utilities.toHexString(affinity));
+        LOGGER.trace("unable to set mask to {} as the JNIa nd JNA libraries and not loaded", CpuSet.valueOf(affinity).toHexString());
     }
 
     @Override
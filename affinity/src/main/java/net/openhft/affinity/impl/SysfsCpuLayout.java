@@ -0,0 +1,404 @@
+/*
+ * Copyright 2016-2020 chronicle.software
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.openhft.affinity.impl;
+
+import net.openhft.affinity.CpuLayout;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A CpuLayout read from the Linux sysfs topology in /sys/devices/system/cpu/cpuN/topology.
+ * <p>
+ * Unlike /proc/cpuinfo, sysfs lists the hyper-thread siblings of each core explicitly, so non-contiguous core
+ * ids, multiple dies per socket and offline cpus are handled. Core ids are renumbered densely within each socket
+ * and the thread id is the position of the cpu in its core's sibling list.
+ * <p>
+ * Cache groups come from cpuN/cache/indexM/shared_cpu_list and are identified by the lowest cpu sharing the cache.
+ * Without cache information the L2 is assumed to be per core and the L3 per socket.
+ * <p>
+ * NUMA nodes and their distances come from /sys/devices/system/node/nodeN/cpulist and distance, so sub-NUMA
+ * clustering shows up as more than one node per socket. Without them each socket is assumed to be a node.
+ */
+public class SysfsCpuLayout implements CpuLayout {
+    public static final String SYSFS_ROOT = "/sys";
+    static final String CPU_DIR = "devices/system/cpu";
+    static final String NODE_DIR = "devices/system/node";
+
+    private final int[] socketIds;
+    private final int[] dieIds;
+    private final int[] coreIds;
+    private final int[] threadIds;
+    private final int[] l2CacheIds;
+    private final int[] l3CacheIds;
+    private final int[] numaNodeIds;
+    private final int[] nodeIds;
+    private final int[][] numaDistances;
+    @NotNull
+    private final BitSet online;
+    private final int sockets;
+    private final int coresPerSocket;
+    private final int threadsPerCore;
+
+    SysfsCpuLayout(int[] socketIds, int[] dieIds, int[] coreIds, int[] threadIds,
+                   int[] l2CacheIds, int[] l3CacheIds, int[] numaNodeIds,
+                   int[] nodeIds, int[][] numaDistances, @NotNull BitSet online) {
+        this.socketIds = socketIds;
+        this.dieIds = dieIds;
+        this.coreIds = coreIds;
+        this.threadIds = threadIds;
+        this.l2CacheIds = l2CacheIds;
+        this.l3CacheIds = l3CacheIds;
+        this.numaNodeIds = numaNodeIds;
+        this.nodeIds = nodeIds;
+        this.numaDistances = numaDistances;
+        this.online = online;
+        Set<Integer> sockets = new HashSet<>();
+        int maxCore = -1, maxThread = -1;
+        for (int i = online.nextSetBit(0); i >= 0; i = online.nextSetBit(i + 1)) {
+            sockets.add(socketIds[i]);
+            maxCore = Math.max(maxCore, coreIds[i]);
+            maxThread = Math.max(maxThread, threadIds[i]);
+        }
+        this.sockets = sockets.size();
+        this.coresPerSocket = maxCore + 1;
+        this.threadsPerCore = maxThread + 1;
+    }
+
+    @NotNull
+    public static SysfsCpuLayout fromSysfs() throws IOException {
+        return fromSysfs(SYSFS_ROOT);
+    }
+
+    /**
+     * @param sysfsRoot the directory to use in place of /sys, e.g. a captured copy of another machine's sysfs.
+     * @return the layout
+     * @throws IOException if the topology could not be read
+     */
+    @NotNull
+    public static SysfsCpuLayout fromSysfs(String sysfsRoot) throws IOException {
+        final File cpuDir = new File(sysfsRoot, CPU_DIR);
+        final String[] names = cpuDir.list();
+        if (names == null)
+            throw new FileNotFoundException(cpuDir.getPath());
+        int cpus = 0;
+        for (String name : names) {
+            if (name.matches("cpu\\d+"))
+                cpus = Math.max(cpus, Integer.parseInt(name.substring(3)) + 1);
+        }
+        if (cpus == 0)
+            throw new FileNotFoundException("No cpus found in " + cpuDir);
+
+        final File onlineFile = new File(cpuDir, "online");
+        final BitSet online;
+        if (onlineFile.exists()) {
+            online = Utilities.parseCpuList(readLine(onlineFile));
+            online.clear(cpus, Math.max(cpus, online.length()));
+        } else {
+            online = new BitSet(cpus);
+            online.set(0, cpus);
+        }
+
+        final int[] socketIds = new int[cpus];
+        final int[] dieIds = new int[cpus];
+        final int[] kernelCoreIds = new int[cpus];
+        final int[] threadIds = new int[cpus];
+        final int[] firstSibling = new int[cpus];
+        final int[] l2CacheIds = new int[cpus];
+        final int[] l3CacheIds = new int[cpus];
+        Arrays.fill(socketIds, -1);
+        Arrays.fill(dieIds, -1);
+        Arrays.fill(threadIds, -1);
+        Arrays.fill(l2CacheIds, -1);
+        Arrays.fill(l3CacheIds, -1);
+        for (int i = 0; i < cpus; i++) {
+            final File topology = new File(cpuDir, "cpu" + i + "/topology");
+            if (!online.get(i) || !topology.isDirectory()) {
+                online.clear(i);
+                continue;
+            }
+            socketIds[i] = Math.max(0, readInt(new File(topology, "physical_package_id"), 0));
+            dieIds[i] = Math.max(0, readInt(new File(topology, "die_id"), 0));
+            kernelCoreIds[i] = readInt(new File(topology, "core_id"), i);
+            File siblingsFile = new File(topology, "core_cpus_list");
+            if (!siblingsFile.exists())
+                siblingsFile = new File(topology, "thread_siblings_list");
+            final BitSet siblings = siblingsFile.exists() ? Utilities.parseCpuList(readLine(siblingsFile)) : new BitSet();
+            siblings.set(i);
+            threadIds[i] = siblings.get(0, i).cardinality();
+            firstSibling[i] = siblings.nextSetBit(0);
+            readCaches(new File(cpuDir, "cpu" + i + "/cache"), i, l2CacheIds, l3CacheIds);
+        }
+
+        final Map<Integer, Integer> firstCpuOfSocket = new HashMap<>();
+        for (int i = online.nextSetBit(0); i >= 0; i = online.nextSetBit(i + 1)) {
+            firstCpuOfSocket.putIfAbsent(socketIds[i], i);
+            if (l2CacheIds[i] < 0)
+                l2CacheIds[i] = firstSibling[i];
+            if (l3CacheIds[i] < 0)
+                l3CacheIds[i] = firstCpuOfSocket.get(socketIds[i]);
+        }
+
+        // number the cores on each socket densely, ordered by die then kernel core id.
+        final Map<Integer, SortedSet<Long>> coresBySocket = new TreeMap<>();
+        for (int i = online.nextSetBit(0); i >= 0; i = online.nextSetBit(i + 1))
+            coresBySocket.computeIfAbsent(socketIds[i], k -> new TreeSet<>()).add(coreKey(dieIds[i], kernelCoreIds[i], firstSibling[i]));
+        final int[] coreIds = new int[cpus];
+        Arrays.fill(coreIds, -1);
+        for (int i = online.nextSetBit(0); i >= 0; i = online.nextSetBit(i + 1))
+            coreIds[i] = coresBySocket.get(socketIds[i]).headSet(coreKey(dieIds[i], kernelCoreIds[i], firstSibling[i])).size();
+
+        final int[] numaNodeIds = new int[cpus];
+        Arrays.fill(numaNodeIds, -1);
+        final int[] nodeIds = readNodeIds(new File(sysfsRoot, NODE_DIR));
+        final int[][] numaDistances = new int[nodeIds.length][];
+        for (int n = 0; n < nodeIds.length; n++) {
+            final File dir = new File(sysfsRoot, NODE_DIR + "/node" + nodeIds[n]);
+            final BitSet cpuList = Utilities.parseCpuList(readLine(new File(dir, "cpulist"), ""));
+            for (int i = cpuList.nextSetBit(0); i >= 0 && i < cpus; i = cpuList.nextSetBit(i + 1))
+                numaNodeIds[i] = nodeIds[n];
+            numaDistances[n] = readDistances(new File(dir, "distance"), nodeIds.length);
+        }
+        final SortedSet<Integer> socketNodes = new TreeSet<>();
+        for (int i = online.nextSetBit(0); i >= 0; i = online.nextSetBit(i + 1)) {
+            if (nodeIds.length == 0 || numaNodeIds[i] < 0)
+                numaNodeIds[i] = socketIds[i];
+            socketNodes.add(socketIds[i]);
+        }
+
+        return new SysfsCpuLayout(socketIds, dieIds, coreIds, threadIds, l2CacheIds, l3CacheIds, numaNodeIds,
+                nodeIds.length > 0 ? nodeIds : socketNodes.stream().mapToInt(Integer::intValue).toArray(),
+                numaDistances, online);
+    }
+
+    private static int[] readNodeIds(File nodeDir) {
+        final String[] names = nodeDir.list();
+        if (names == null)
+            return new int[0];
+        return Arrays.stream(names)
+                .filter(name -> name.matches("node\\d+"))
+                .mapToInt(name -> Integer.parseInt(name.substring(4)))
+                .sorted()
+                .toArray();
+    }
+
+    @Nullable
+    private static int[] readDistances(File distanceFile, int nodes) throws IOException {
+        final String line = readLine(distanceFile, "");
+        if (line.isEmpty())
+            return null;
+        final String[] words = line.split("\\s+");
+        if (words.length != nodes)
+            return null;
+        final int[] distances = new int[nodes];
+        try {
+            for (int i = 0; i < nodes; i++)
+                distances[i] = Integer.parseInt(words[i]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return distances;
+    }
+
+    private static void readCaches(File cacheDir, int cpuId, int[] l2CacheIds, int[] l3CacheIds) throws IOException {
+        final String[] indexes = cacheDir.list();
+        if (indexes == null)
+            return;
+        for (String index : indexes) {
+            if (!index.startsWith("index"))
+                continue;
+            final File dir = new File(cacheDir, index);
+            final File sharedCpuList = new File(dir, "shared_cpu_list");
+            if ("Instruction".equals(readLine(new File(dir, "type"), "")) || !sharedCpuList.exists())
+                continue;
+            final BitSet shared = Utilities.parseCpuList(readLine(sharedCpuList));
+            shared.set(cpuId);
+            switch (readInt(new File(dir, "level"), 0)) {
+                case 2:
+                    l2CacheIds[cpuId] = shared.nextSetBit(0);
+                    break;
+                case 3:
+                    l3CacheIds[cpuId] = shared.nextSetBit(0);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private static long coreKey(int dieId, int kernelCoreId, int firstSibling) {
+        return ((long) dieId << 42) | ((long) (kernelCoreId & 0x1FFFFF) << 21) | (firstSibling & 0x1FFFFF);
+    }
+
+    @NotNull
+    static String readLine(File file) throws IOException {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            final String line = br.readLine();
+            return line == null ? "" : line.trim();
+        }
+    }
+
+    @NotNull
+    static String readLine(File file, String defaultValue) throws IOException {
+        return file.exists() ? readLine(file) : defaultValue;
+    }
+
+    static int readInt(File file, int defaultValue) throws IOException {
+        if (!file.exists())
+            return defaultValue;
+        try {
+            return Integer.parseInt(readLine(file));
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    @Override
+    public int cpus() {
+        return socketIds.length;
+    }
+
+    @Override
+    public int sockets() {
+        return sockets;
+    }
+
+    @Override
+    public int coresPerSocket() {
+        return coresPerSocket;
+    }
+
+    @Override
+    public int threadsPerCore() {
+        return threadsPerCore;
+    }
+
+    @Override
+    public int socketId(int cpuId) {
+        return socketIds[cpuId];
+    }
+
+    /**
+     * @param cpuId the logical processor number
+     * @return which die on a socket this cpu is on.
+     */
+    public int dieId(int cpuId) {
+        return dieIds[cpuId];
+    }
+
+    @Override
+    public int coreId(int cpuId) {
+        return coreIds[cpuId];
+    }
+
+    @Override
+    public int threadId(int cpuId) {
+        return threadIds[cpuId];
+    }
+
+    @Override
+    public int l2CacheId(int cpuId) {
+        return l2CacheIds[cpuId];
+    }
+
+    @Override
+    public int l3CacheId(int cpuId) {
+        return l3CacheIds[cpuId];
+    }
+
+    @Override
+    public int numaNodes() {
+        return nodeIds.length;
+    }
+
+    @Override
+    public int numaNodeId(int cpuId) {
+        return numaNodeIds[cpuId];
+    }
+
+    @Override
+    public int numaDistance(int nodeId, int nodeId2) {
+        final int index = Arrays.binarySearch(nodeIds, nodeId);
+        final int index2 = Arrays.binarySearch(nodeIds, nodeId2);
+        if (index < 0 || index2 < 0 || index >= numaDistances.length || numaDistances[index] == null)
+            return CpuLayout.super.numaDistance(nodeId, nodeId2);
+        return numaDistances[index][index2];
+    }
+
+    @Override
+    public boolean isOnline(int cpuId) {
+        return online.get(cpuId);
+    }
+
+    @NotNull
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < cpus(); i++) {
+            sb.append(i).append(": ");
+            if (online.get(i)) {
+                sb.append("CpuInfo{socketId=").append(socketIds[i])
+                        .append(", dieId=").append(dieIds[i])
+                        .append(", coreId=").append(coreIds[i])
+                        .append(", threadId=").append(threadIds[i])
+                        .append(", l2CacheId=").append(l2CacheIds[i])
+                        .append(", l3CacheId=").append(l3CacheIds[i])
+                        .append(", numaNodeId=").append(numaNodeIds[i])
+                        .append('}');
+            } else {
+                sb.append("offline");
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public boolean equals(@Nullable Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        SysfsCpuLayout that = (SysfsCpuLayout) o;
+
+        return Arrays.equals(socketIds, that.socketIds)
+                && Arrays.equals(dieIds, that.dieIds)
+                && Arrays.equals(coreIds, that.coreIds)
+                && Arrays.equals(threadIds, that.threadIds)
+                && Arrays.equals(l2CacheIds, that.l2CacheIds)
+                && Arrays.equals(l3CacheIds, that.l3CacheIds)
+                && Arrays.equals(numaNodeIds, that.numaNodeIds)
+                && Arrays.deepEquals(numaDistances, that.numaDistances)
+                && online.equals(that.online);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Arrays.hashCode(socketIds);
+        result = 31 * result + Arrays.hashCode(dieIds);
+        result = 31 * result + Arrays.hashCode(coreIds);
+        result = 31 * result + Arrays.hashCode(threadIds);
+        result = 31 * result + Arrays.hashCode(l2CacheIds);
+        result = 31 * result + Arrays.hashCode(l3CacheIds);
+        result = 31 * result + Arrays.hashCode(numaNodeIds);
+        result = 31 * result + online.hashCode();
+        return result;
+    }
+}
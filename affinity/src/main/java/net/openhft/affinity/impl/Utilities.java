@@ -17,8 +17,13 @@
 
 package net.openhft.affinity.impl;
 
+import net.openhft.affinity.CpuSet;
+
 import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.util.BitSet;
 
 /*
@@ -27,6 +32,7 @@ import java.util.BitSet;
 public final class Utilities {
     public static final boolean ISLINUX = "Linux".equals(System.getProperty("os.name"));
     static final boolean IS64BIT = is64Bit0();
+    private static final MethodHandle IS_VIRTUAL = isVirtual0();
 
     private Utilities() {
         throw new InstantiationError("Must not instantiate this class");
@@ -36,18 +42,12 @@ public final class Utilities {
      * Creates a hexademical representation of the bit set
      *
      * @param set the bit set to convert
-     * @return the hexademical string representation
+     * @return the hexademical string representation, most significant cpu first
+     * @deprecated use {@link CpuSet#toHexString()}
      */
+    @Deprecated
     public static String toHexString(final BitSet set) {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        PrintWriter writer = new PrintWriter(out);
-        final long[] longs = set.toLongArray();
-        for (long aLong : longs) {
-            writer.write(Long.toHexString(aLong));
-        }
-        writer.flush();
-
-        return new String(out.toByteArray(), java.nio.charset.StandardCharsets.UTF_8);
+        return CpuSet.valueOf(set).toHexString();
     }
 
     public static String toBinaryString(BitSet set) {
@@ -62,6 +62,41 @@ public final class Utilities {
         return new String(out.toByteArray(), java.nio.charset.StandardCharsets.UTF_8);
     }
 
+    /**
+     * Parses a cpu list in the Linux kernel format e.g. "0-3,8,10-11"
+     *
+     * @param cpuList the list to parse, may be empty
+     * @return the bit set of cpus in the list
+     */
+    public static BitSet parseCpuList(final String cpuList) {
+        return CpuSet.parse(cpuList).toBitSet();
+    }
+
+    /**
+     * A virtual thread runs on whichever carrier thread is free, so its native thread id and affinity are those of
+     * its current carrier, and can change whenever it blocks.
+     *
+     * @param thread to check
+     * @return whether the thread is a virtual thread, always false before Java 21
+     */
+    public static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null)
+            return false;
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(thread);
+        } catch (Throwable t) {
+            throw new AssertionError(t);
+        }
+    }
+
+    private static MethodHandle isVirtual0() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
     public static boolean is64Bit() {
         return IS64BIT;
     }
@@ -31,6 +31,10 @@ import static java.lang.Integer.parseInt;
  * @author peter.lawrey
  */
 public class VanillaCpuLayout implements CpuLayout {
+    /**
+     * @deprecated there is no longer a limit on the number of cpus.
+     */
+    @Deprecated
     public static final int MAX_CPUS_SUPPORTED = 256;
 
     @NotNull
@@ -80,7 +84,7 @@ public class VanillaCpuLayout implements CpuLayout {
     @NotNull
     public static VanillaCpuLayout fromProperties(@NotNull Properties prop) {
         List<CpuInfo> cpuDetails = new ArrayList<>();
-        for (int i = 0; i < MAX_CPUS_SUPPORTED; i++) {
+        for (int i = 0; ; i++) {
             String line = prop.getProperty("" + i);
             if (line == null) break;
             String[] word = line.trim().split(" *, *");
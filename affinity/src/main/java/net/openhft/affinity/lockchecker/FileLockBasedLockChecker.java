@@ -19,6 +19,7 @@
 package net.openhft.affinity.lockchecker;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -28,19 +29,31 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.OpenOption;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileTime;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.PosixFilePermissions;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static java.nio.file.StandardOpenOption.*;
-import static net.openhft.affinity.impl.VanillaCpuLayout.MAX_CPUS_SUPPORTED;
 
 public class FileLockBasedLockChecker implements LockChecker {
 
@@ -50,10 +63,47 @@ public class FileLockBasedLockChecker implements LockChecker {
     private static final Set<OpenOption> LOCK_FILE_OPEN_OPTIONS = new HashSet<>(Arrays.asList(READ, WRITE, CREATE, SYNC));
     private static final Logger LOGGER = LoggerFactory.getLogger(FileLockBasedLockChecker.class);
     private static final FileLockBasedLockChecker instance = new FileLockBasedLockChecker();
-    private final LockReference[] locks = new LockReference[MAX_CPUS_SUPPORTED];
+    private static final int MUTEXES = 256;
+    private static final Pattern LOCK_FILE = Pattern.compile("cpu-(\\d{1,9})\\.lock");
+    /**
+     * Locked while a request to release a cpu is compared with the one already made and replaced.
+     */
+    private static final String REVOCATION_LOCK = "revocations.lock";
+    private static final Object REVOCATION_MUTEX = new Object();
+    /**
+     * The locks held by this process, by cpu.
+     */
+    private final ConcurrentMap<Integer, LockReference> locks = new ConcurrentHashMap<>();
+    /**
+     * Operations on the same cpu are serialised by one of these, so different cpus can be locked concurrently.
+     */
+    private final Object[] mutexes = new Object[MUTEXES];
+    /**
+     * The directory of the lock files, or null for java.io.tmpdir.
+     */
+    @Nullable
+    private final File directory;
+    private final long leaseMS;
+    private volatile File lastDirectory;
+    private boolean renewing = false;
+    @Nullable
+    private volatile IntConsumer leaseLostListener;
+    private volatile IntPredicate responsive = id -> true;
 
     protected FileLockBasedLockChecker() {
-        //nothing
+        this(null, 0);
+    }
+
+    /**
+     * @param directory of the lock files, or null for java.io.tmpdir
+     * @param leaseMS   how long a lock lasts without being renewed before another process can take it, or 0 if it
+     *                  lasts until released, e.g. by the holder exiting
+     */
+    public FileLockBasedLockChecker(@Nullable File directory, long leaseMS) {
+        for (int i = 0; i < MUTEXES; i++)
+            mutexes[i] = new Object();
+        this.directory = directory;
+        this.leaseMS = leaseMS;
     }
 
     public static LockChecker getInstance() {
@@ -61,9 +111,15 @@ public class FileLockBasedLockChecker implements LockChecker {
     }
 
     @Override
-    public synchronized boolean isLockFree(int id) {
+    public boolean isLockFree(int id) {
+        synchronized (mutex(id)) {
+            return isLockFree0(id);
+        }
+    }
+
+    private boolean isLockFree0(int id) {
         // check if this process already has the lock
-        if (locks[id] != null) {
+        if (lockReference(id) != null) {
             return false;
         }
 
@@ -78,14 +134,14 @@ public class FileLockBasedLockChecker implements LockChecker {
                     }
                     return true;
                 } else {
-                    // another process has an exclusive lock
-                    return false;
+                    // another process has an exclusive lock, unless its lease has run out
+                    return leaseExpired(lockFile);
                 }
             } catch (OverlappingFileLockException e) {
                 // someone else (in the same JVM) has an exclusive lock
                 /*
                  * This shouldn't happen under normal circumstances, we have the singleton
-                 * {@link #locks} array to prevent overlapping locks from the same JVM, but
+                 * {@link #locks} map to prevent overlapping locks from the same JVM, but
                  * it can occur when there are multiple classloaders in the JVM
                  */
                 return false;
@@ -99,14 +155,46 @@ public class FileLockBasedLockChecker implements LockChecker {
         }
     }
 
+    /**
+     * Take a lock whose holder stopped renewing it for longer than the lease, e.g. as it hung.
+     *
+     * @return true if the lock file was deleted, or was already.
+     */
+    private boolean leaseExpired(File lockFile) throws IOException {
+        if (leaseMS <= 0)
+            return false;
+        final long age;
+        try {
+            age = System.currentTimeMillis() - Files.getLastModifiedTime(lockFile.toPath()).toMillis();
+        } catch (NoSuchFileException e) {
+            return true;
+        }
+        if (age < leaseMS)
+            return false;
+        // whoever holds the file lock keeps an unlinked file, and the next to lock the cpu creates a new one.
+        if (!lockFile.delete())
+            return false;
+        LOGGER.warn("Took lock file {} as its lease wasn't renewed for {} ms", lockFile, age);
+        return true;
+    }
+
     @Override
-    public synchronized boolean obtainLock(int id, String metaInfo) throws IOException {
+    public boolean obtainLock(int id, String metaInfo) throws IOException {
+        synchronized (mutex(id)) {
+            final boolean obtained = obtainLock0(id, metaInfo);
+            if (obtained && leaseMS > 0)
+                startRenewing();
+            return obtained;
+        }
+    }
+
+    private boolean obtainLock0(int id, String metaInfo) throws IOException {
         int attempt = 0;
         while (attempt < MAX_LOCK_RETRIES) {
             try {
                 LockReference lockReference = tryAcquireLockOnFile(id, metaInfo);
                 if (lockReference != null) {
-                    locks[id] = lockReference;
+                    locks.put(id, lockReference);
                     return true;
                 }
                 return false;
@@ -135,8 +223,10 @@ public class FileLockBasedLockChecker implements LockChecker {
         try {
             final FileLock fileLock = fileChannel.tryLock(0, Long.MAX_VALUE, false);
             if (fileLock == null) {
-                // someone else has a lock (exclusive or shared), fail to acquire
+                // someone else has a lock (exclusive or shared), fail to acquire unless its lease has run out
                 closeQuietly(fileChannel);
+                if (leaseExpired(lockFile))
+                    throw new ConcurrentLockFileDeletionException();
                 return null;
             } else {
                 if (!lockFile.exists()) {
@@ -146,17 +236,19 @@ public class FileLockBasedLockChecker implements LockChecker {
                 } else {
                     // we have the lock, the file exists. That's success.
                     writeMetaInfoToFile(fileChannel, metaInfo);
-                    return new LockReference(fileChannel, fileLock);
+                    return new LockReference(fileChannel, fileLock, fileKey(lockFile));
                 }
             }
         } catch (OverlappingFileLockException e) {
             // someone else (in the same JVM) has a lock, fail to acquire
             /*
              * This shouldn't happen under normal circumstances, we have the singleton
-             * {@link #locks} array to prevent overlapping locks from the same JVM, but
+             * {@link #locks} map to prevent overlapping locks from the same JVM, but
              * it can occur when there are multiple classloaders in the JVM
              */
             closeQuietly(fileChannel);
+            if (leaseExpired(lockFile))
+                throw new ConcurrentLockFileDeletionException();
             return null;
         }
     }
@@ -169,21 +261,106 @@ public class FileLockBasedLockChecker implements LockChecker {
         }
     }
 
+    @Nullable
+    private static Object fileKey(File file) {
+        try {
+            return Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
     @Override
-    public synchronized boolean releaseLock(int id) {
-        if (locks[id] != null) {
-            final File lockFile = toFile(id);
-            if (!lockFile.delete()) {
-                LOGGER.warn("Couldn't delete lock file on release: " + lockFile);
+    public void onLeaseLost(@NotNull IntConsumer listener) {
+        leaseLostListener = listener;
+    }
+
+    @Override
+    public void renewWhile(@NotNull IntPredicate responsive) {
+        this.responsive = responsive;
+    }
+
+    private synchronized void startRenewing() {
+        if (renewing)
+            return;
+        renewing = true;
+        final Thread thread = new Thread(this::renewLeases, "affinity-lock-lease");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Renew the lease of every lock held whose holder is responsive by touching its file, or report it lost if
+     * another process took it.
+     */
+    private void renewLeases() {
+        final long periodMS = Math.max(1, leaseMS / 3);
+        for (; ; ) {
+            try {
+                Thread.sleep(periodMS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (Map.Entry<Integer, LockReference> entry : locks.entrySet()) {
+                final int id = entry.getKey();
+                final boolean lost;
+                synchronized (mutex(id)) {
+                    if (locks.get(id) != entry.getValue())
+                        continue;
+                    final File lockFile = toFile(id);
+                    final Object fileKey = entry.getValue().fileKey;
+                    // the lease of a holder which has hung is left to run out
+                    lost = fileKey != null && !fileKey.equals(fileKey(lockFile)) || responsive.test(id) && !touch(lockFile);
+                    if (lost) {
+                        // the file is no longer ours, so it mustn't be deleted on release.
+                        locks.remove(id);
+                        closeQuietly(entry.getValue().lock, entry.getValue().channel);
+                        LOGGER.warn("Lost lock file {} as its lease was taken by another process", lockFile);
+                    }
+                }
+                final IntConsumer listener = leaseLostListener;
+                if (lost && listener != null) {
+                    try {
+                        listener.accept(id);
+                    } catch (RuntimeException e) {
+                        LOGGER.warn("Failed to pass on the loss of cpu lock " + id, e);
+                    }
+                }
             }
-            closeQuietly(locks[id].lock, locks[id].channel);
-            locks[id] = null;
+        }
+    }
+
+    private static boolean touch(File lockFile) {
+        try {
+            Files.setLastModifiedTime(lockFile.toPath(), FileTime.fromMillis(System.currentTimeMillis()));
             return true;
+        } catch (IOException e) {
+            return false;
         }
-        return false;
     }
 
-    private void closeQuietly(AutoCloseable... closeables) {
+    @Override
+    public boolean releaseLock(int id) {
+        synchronized (mutex(id)) {
+            final LockReference lockReference = locks.remove(id);
+            if (lockReference != null) {
+                final File lockFile = toFile(id);
+                final Object fileKey = lockReference.fileKey;
+                // another process may have taken the cpu with a lock file of its own, as the lease ran out
+                final boolean replaced = fileKey != null && !fileKey.equals(fileKey(lockFile));
+                if (replaced) {
+                    LOGGER.warn("Not deleting lock file on release as another process replaced it: " + lockFile);
+                } else if (!lockFile.delete()) {
+                    LOGGER.warn("Couldn't delete lock file on release: " + lockFile);
+                }
+                closeQuietly(lockReference.lock, lockReference.channel);
+                return !replaced;
+            }
+            return false;
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable... closeables) {
         for (AutoCloseable closeable : closeables) {
             try {
                 if (closeable != null) {
@@ -195,11 +372,95 @@ public class FileLockBasedLockChecker implements LockChecker {
         }
     }
 
+    /**
+     * Reads only the lock files present, rather than checking every id, and deletes none of them.
+     */
+    @Override
+    public SortedMap<Integer, String[]> getLockedMetaInfo(int ids) {
+        final SortedMap<Integer, String[]> locked = new TreeMap<>();
+        final String[] names = tmpDir().list();
+        if (names == null)
+            return locked;
+        for (String name : names) {
+            final Matcher matcher = LOCK_FILE.matcher(name);
+            if (!matcher.matches())
+                continue;
+            final int id;
+            try {
+                id = Integer.parseInt(matcher.group(1));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            try {
+                final String[] lines = getMetaInfoLines(id);
+                if (lines == null)
+                    continue;
+                final String state = unheldState(id);
+                if (state == null) {
+                    locked.put(id, lines);
+                } else {
+                    final String[] reported = Arrays.copyOf(lines, lines.length + 1);
+                    reported[lines.length] = state;
+                    locked.put(id, reported);
+                }
+            } catch (NoSuchFileException e) {
+                // released meanwhile
+            } catch (IOException e) {
+                LOGGER.debug("Unable to read lock file " + name, e);
+            }
+        }
+        return locked;
+    }
+
+    /**
+     * Check whether a lock file is still held, changing nothing, unlike {@link #isLockFree(int)}.
+     *
+     * @return {@link #ORPHANED} if no process holds the file, {@link #EXPIRED} if its lease ran out, or null if it is
+     * held.
+     */
+    @Nullable
+    private String unheldState(int id) throws IOException {
+        if (lockReference(id) != null)
+            return null;
+        final File lockFile = toFile(id);
+        try (FileChannel channel = FileChannel.open(lockFile.toPath(), READ);
+             FileLock fileLock = channel.tryLock(0, Long.MAX_VALUE, true)) {
+            // if we can acquire a shared lock, nobody has an exclusive lock
+            if (fileLock != null)
+                return ORPHANED;
+        } catch (OverlappingFileLockException e) {
+            // held by another classloader in this JVM
+        }
+        final long age = System.currentTimeMillis() - Files.getLastModifiedTime(lockFile.toPath()).toMillis();
+        return leaseMS > 0 && age >= leaseMS ? EXPIRED : null;
+    }
+
+    @Override
+    public boolean releaseStaleLock(int id, String[] metaInfoLines) throws IOException {
+        synchronized (mutex(id)) {
+            if (lockReference(id) != null || !Arrays.equals(metaInfoLines, getMetaInfoLines(id)))
+                return false;
+            // whoever holds the file lock keeps an unlinked file, and the next to lock the cpu creates a new one.
+            final File lockFile = toFile(id);
+            if (!lockFile.delete()) {
+                LOGGER.warn("Couldn't delete stale lock file " + lockFile);
+                return false;
+            }
+            return true;
+        }
+    }
+
     @Override
     public String getMetaInfo(int id) throws IOException {
+        final String[] lines = getMetaInfoLines(id);
+        return lines == null ? null : lines[0];
+    }
+
+    @Override
+    public String[] getMetaInfoLines(int id) throws IOException {
         final File file = toFile(id);
 
-        LockReference lr = locks[id];
+        LockReference lr = lockReference(id);
         if (lr != null) {
             return readMetaInfoFromLockFileChannel(file, lr.channel);
         } else {
@@ -211,15 +472,71 @@ public class FileLockBasedLockChecker implements LockChecker {
         }
     }
 
-    private String readMetaInfoFromLockFileChannel(File lockFile, FileChannel lockFileChannel) throws IOException {
-        ByteBuffer buffer = ByteBuffer.allocate(64);
+    /**
+     * @return the lines of meta info, without the date written after them.
+     */
+    private String[] readMetaInfoFromLockFileChannel(File lockFile, FileChannel lockFileChannel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(512);
         int len = lockFileChannel.read(buffer, 0);
         String content = len < 1 ? "" : new String(buffer.array(), 0, len);
         if (content.isEmpty()) {
             LOGGER.warn("Empty lock file {}", lockFile.getAbsolutePath());
             return null;
         }
-        return content.substring(0, content.indexOf("\n"));
+        final int end = content.lastIndexOf('\n');
+        return (end < 0 ? content : content.substring(0, end)).split("\n");
+    }
+
+    @Override
+    public boolean requestRevocation(int id, String metaInfo) throws IOException {
+        final File requestFile = toRevocationFile(id);
+        // one process at a time compares its request with the one already made, so a lower priority doesn't replace it.
+        synchronized (REVOCATION_MUTEX) {
+            try (FileChannel fc = FileChannel.open(new File(tmpDir(), REVOCATION_LOCK).toPath(), LOCK_FILE_OPEN_OPTIONS, LOCK_FILE_ATTRIBUTES)) {
+                final FileLock lock = fc.lock();
+                try {
+                    if (!RevocationRequests.canReplace(getRevocationRequest(id), metaInfo.split("\n")))
+                        return false;
+                    // write the request in full before it appears, so a process watching for it never reads it half written.
+                    final File tmpFile = new File(requestFile.getParentFile(), requestFile.getName() + "." + System.nanoTime() + ".tmp");
+                    Files.write(tmpFile.toPath(), String.format("%s%n%s", metaInfo, dfTL.get().format(new Date())).getBytes());
+                    Files.move(tmpFile.toPath(), requestFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    return true;
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+    }
+
+    @Override
+    public String[] getRevocationRequest(int id) throws IOException {
+        final File requestFile = toRevocationFile(id);
+        try (FileChannel fc = FileChannel.open(requestFile.toPath(), READ)) {
+            return readMetaInfoFromLockFileChannel(requestFile, fc);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void cancelRevocation(int id) {
+        final File requestFile = toRevocationFile(id);
+        if (requestFile.exists() && !requestFile.delete())
+            LOGGER.warn("Couldn't delete revocation request " + requestFile);
+    }
+
+    private LockReference lockReference(int id) {
+        return locks.get(id);
+    }
+
+    private Object mutex(int id) {
+        return mutexes[id & (MUTEXES - 1)];
+    }
+
+    @Override
+    public File lockDirectory() {
+        return tmpDir();
     }
 
     @NotNull
@@ -228,15 +545,32 @@ public class FileLockBasedLockChecker implements LockChecker {
         return new File(tmpDir(), "cpu-" + id + ".lock");
     }
 
+    @NotNull
+    protected File toRevocationFile(int id) {
+        assert id >= 0;
+        return new File(tmpDir(), "cpu-" + id + ".revoke");
+    }
+
+    /**
+     * @return the directory of the lock files, which is created the first time it is used.
+     */
     private File tmpDir() {
-        final File tempDir = new File(System.getProperty("java.io.tmpdir"));
+        final File tempDir = directory != null ? directory : new File(System.getProperty("java.io.tmpdir"));
+        if (tempDir.equals(lastDirectory))
+            return lastDirectory;
 
         if (!tempDir.exists())
             tempDir.mkdirs();
 
+        lastDirectory = tempDir;
         return tempDir;
     }
 
+    @Override
+    public String toString() {
+        return "FileLockBasedLockChecker{" + tmpDir() + (leaseMS > 0 ? ", lease " + leaseMS + " ms" : "") + '}';
+    }
+
     /**
      * Thrown when another process deleted the lock file between us opening the file and acquiring the lock
      */
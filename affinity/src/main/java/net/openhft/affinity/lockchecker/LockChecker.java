@@ -18,7 +18,12 @@
 
 package net.openhft.affinity.lockchecker;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
 
 /**
  * @author Tom Shercliff
@@ -26,6 +31,15 @@ import java.io.IOException;
 
 public interface LockChecker {
 
+    /**
+     * Added to the meta info read by {@link #getLockedMetaInfo(int)} of a lock whose lease ran out.
+     */
+    String EXPIRED = "state=EXPIRED";
+    /**
+     * Added to the meta info read by {@link #getLockedMetaInfo(int)} of a lock left by a holder no longer running.
+     */
+    String ORPHANED = "state=ORPHANED";
+
     boolean isLockFree(int id);
 
     boolean obtainLock(int id, String metaInfo) throws IOException;
@@ -33,4 +47,104 @@ public interface LockChecker {
     boolean releaseLock(int id);
 
     String getMetaInfo(int id) throws IOException;
+
+    /**
+     * @return every line of the meta info given when the lock was obtained, or null if it is not locked.
+     */
+    default String[] getMetaInfoLines(int id) throws IOException {
+        final String metaInfo = getMetaInfo(id);
+        return metaInfo == null ? null : new String[]{metaInfo};
+    }
+
+    /**
+     * Read the meta info of every lock held, by any process, in one pass.
+     * Where the checker can tell, locks no longer held but not freed yet are read too, ending {@link #EXPIRED} or
+     * {@link #ORPHANED}, and are left as they are.
+     *
+     * @param ids the number of ids to check, if the checker can't find the locks held more directly
+     * @return the lines of meta info of each lock held, by id.
+     */
+    default SortedMap<Integer, String[]> getLockedMetaInfo(int ids) {
+        final SortedMap<Integer, String[]> locked = new TreeMap<>();
+        for (int id = 0; id < ids; id++) {
+            if (isLockFree(id))
+                continue;
+            try {
+                final String[] lines = getMetaInfoLines(id);
+                if (lines != null)
+                    locked.put(id, lines);
+            } catch (IOException e) {
+                // released or unreadable, leave it out
+            }
+        }
+        return locked;
+    }
+
+    /**
+     * Tell a listener of locks held by this process which another process took once their lease ran out.
+     *
+     * @param listener given the id of each lock lost
+     */
+    default void onLeaseLost(IntConsumer listener) {
+    }
+
+    /**
+     * Only renew the lease of a lock held by this process while its holder is responsive, so another process can
+     * take it from a holder which has hung rather than only from a process which has.
+     *
+     * @param responsive given the id of each lock held, tests whether its lease is to be renewed
+     */
+    default void renewWhile(IntPredicate responsive) {
+    }
+
+    /**
+     * Free a lock still held for a process which is no longer running, e.g. by a child which inherited it.
+     *
+     * @param metaInfoLines as read when the holder was found not to be running, so a lock taken since is kept
+     * @return true if it was freed, false if it has changed or this is not supported.
+     */
+    default boolean releaseStaleLock(int id, String[] metaInfoLines) throws IOException {
+        return false;
+    }
+
+    /**
+     * Ask the holder of a lock, which may be another process, to release it.
+     *
+     * @param metaInfo describing who is asking, the pid first
+     * @return false if requests are not supported, or a request of the same or a higher priority from another
+     * process still running has been made.
+     */
+    default boolean requestRevocation(int id, String metaInfo) throws IOException {
+        return false;
+    }
+
+    /**
+     * @return the lines of the meta info of the last request to release this lock, or null if there is none.
+     */
+    default String[] getRevocationRequest(int id) throws IOException {
+        return null;
+    }
+
+    /**
+     * Withdraw a request to release a lock.
+     */
+    default void cancelRevocation(int id) {
+    }
+
+    /**
+     * @return the directory holding a file per locked id, which is deleted on release, or null if locks are not held
+     * in files.
+     */
+    default File lockDirectory() {
+        return null;
+    }
+
+    /**
+     * Tell a listener of requests to release locks held by this process, for checkers which can't be watched through
+     * {@link #lockDirectory()}.
+     *
+     * @param listener given the id of each lock requested
+     */
+    default void onRevocationRequest(IntConsumer listener) {
+    }
 }
@@ -28,10 +28,19 @@ import java.nio.channels.FileLock;
 public class LockReference {
     protected final FileChannel channel;
     protected final FileLock lock;
+    /**
+     * Identifies the file locked, so a file of the same name created by another process can be told apart.
+     */
+    protected final Object fileKey;
 
     public LockReference(final FileChannel channel, final FileLock lock) {
+        this(channel, lock, null);
+    }
+
+    public LockReference(final FileChannel channel, final FileLock lock, final Object fileKey) {
         this.channel = channel;
         this.lock = lock;
+        this.fileKey = fileKey;
     }
 
     public FileChannel getChannel() {
@@ -0,0 +1,520 @@
+/*
+ * Copyright 2016-2022 chronicle.software
+ *
+ *       https://chronicle.software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.affinity.lockchecker;
+
+import net.openhft.affinity.Affinity;
+import net.openhft.affinity.ProcessIdentity;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.OpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+import java.util.function.LongSupplier;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Locks held in a table of slots in one memory mapped file, by default under /dev/shm, shared by every process.
+ * <p>
+ * A slot holds the pid, tid and start time of the process holding it, and a heartbeat which a daemon thread of that
+ * process refreshes every second. Checking a lock only reads memory, unless the heartbeat has stopped, when the owner
+ * is looked up in /proc in case it died, and its slot is freed if so. A slot is only claimed, released or freed
+ * holding a lock of its region of the file, so no process sees a slot half claimed, while different slots can be
+ * updated at the same time.
+ * <p>
+ * Slot layout, 256 bytes each after a 256 byte header
+ * <pre>
+ *  0 owner      pid &lt;&lt; 32 | tid, or 0 if free
+ *  8 start time of the owner process in clock ticks since boot
+ * 16 heartbeat  in ms since the epoch, or 0 if free
+ * 24 revocation pid &lt;&lt; 32 | priority of a request to release it, or 0
+ * 32 boot       the first 64 bits of the boot id the owner was started in, or 0 if not known
+ * 40 length of the meta info
+ * 44 meta info, up to 212 bytes, without the start time and boot id lines as they have their own fields
+ * </pre>
+ */
+public class MappedLockChecker implements LockChecker {
+    public static final String DEFAULT_TABLE = new File("/dev/shm").isDirectory()
+            ? "/dev/shm/affinity-cpu-locks"
+            : new File(System.getProperty("java.io.tmpdir"), "affinity-cpu-locks").getPath();
+    static final int SLOTS = 4096;
+    static final long HEARTBEAT_MS = 1000;
+    /**
+     * How long without a heartbeat before the owner is checked in /proc.
+     */
+    static final long STALE_MS = 5 * HEARTBEAT_MS;
+    private static final Logger LOGGER = LoggerFactory.getLogger(MappedLockChecker.class);
+    private static final int MUTEXES = 256;
+    /**
+     * A process can only hold one lock of a region of a file at a time, so updates of the same slot by different
+     * threads, or checkers of the same table, are serialised by one of these.
+     */
+    private static final Object[] SLOT_MUTEXES = new Object[MUTEXES];
+    private static final long MAGIC = 0x4146464C4F434B33L; // AFFLOCK3
+    private static final int SLOT_SIZE = 256;
+    private static final int OWNER = 0;
+    private static final int START_TIME = 8;
+    private static final int HEARTBEAT = 16;
+    private static final int REVOCATION = 24;
+    private static final int BOOT = 32;
+    private static final int META_LENGTH = 40;
+    private static final int META = 44;
+    private static final int META_CAPACITY = SLOT_SIZE - META;
+    private static final FileAttribute<Set<PosixFilePermission>> TABLE_ATTRIBUTES = PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-rw-rw-"));
+    private static final Set<OpenOption> TABLE_OPEN_OPTIONS = new HashSet<>(Arrays.asList(READ, WRITE, CREATE));
+    private static final String PRIORITY = RevocationRequests.PRIORITY;
+    private static final String START_LINE = "start=";
+    private static final String BOOT_LINE = "boot=";
+
+    static {
+        for (int i = 0; i < MUTEXES; i++)
+            SLOT_MUTEXES[i] = new Object();
+    }
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    /**
+     * Kept open to lock the regions of slots, and opened again if an interrupt closes it.
+     */
+    private volatile FileChannel channel;
+    private final int pid;
+    private final long startTime;
+    private final long boot;
+    /**
+     * The ids of the slots held by this process.
+     */
+    private final Set<Integer> held = ConcurrentHashMap.newKeySet();
+    private final long leaseMS;
+    private final long heartbeatMS;
+    @Nullable
+    private volatile IntConsumer revocationListener;
+    @Nullable
+    private volatile IntConsumer leaseLostListener;
+    private volatile IntPredicate responsive = id -> true;
+    private boolean heartbeating = false;
+
+    public MappedLockChecker(@NotNull File file) throws IOException {
+        this(file, 0);
+    }
+
+    /**
+     * @param leaseMS how long a lock lasts without a heartbeat before another process can take it, even though its
+     *                holder is still running, or 0 if it lasts while its holder runs
+     */
+    public MappedLockChecker(@NotNull File file, long leaseMS) throws IOException {
+        this.file = file;
+        this.leaseMS = leaseMS;
+        this.heartbeatMS = leaseMS > 0 ? Math.max(1, Math.min(HEARTBEAT_MS, leaseMS / 3)) : HEARTBEAT_MS;
+        channel = FileChannel.open(file.toPath(), TABLE_OPEN_OPTIONS, TABLE_ATTRIBUTES);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) SLOT_SIZE * (SLOTS + 1));
+        buffer.order(ByteOrder.nativeOrder());
+        // the header is the region before the first slot
+        final long magic = locked(0, () -> {
+            final long existing = buffer.getLong(0);
+            if (existing == 0)
+                buffer.putLong(0, MAGIC);
+            return existing;
+        });
+        if (magic != 0 && magic != MAGIC)
+            throw new IOException(file + " is not a cpu lock table");
+        final ProcessIdentity current = ProcessIdentity.current();
+        pid = (int) current.pid();
+        startTime = current.startTime();
+        boot = boot(current.bootId());
+    }
+
+    private static long boot(String bootId) {
+        final String hex = bootId.replace("-", "");
+        try {
+            return hex.length() < 16 ? 0 : Long.parseUnsignedLong(hex.substring(0, 16), 16);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private int slot(int id) {
+        if (id < 0 || id >= SLOTS)
+            throw new IllegalArgumentException("cpu " + id + " is beyond the " + SLOTS + " slots of " + file);
+        return SLOT_SIZE * (id + 1);
+    }
+
+    /**
+     * Update a slot holding the lock of its region of the table, which every process holds to update it.
+     */
+    private long locked(int slot, @NotNull LongSupplier update) throws IOException {
+        synchronized (SLOT_MUTEXES[slot / SLOT_SIZE & (MUTEXES - 1)]) {
+            final FileLock lock = lock(slot);
+            try {
+                return update.getAsLong();
+            } finally {
+                // not if an interrupt of another thread closed the channel, which released it
+                if (lock.isValid())
+                    lock.release();
+            }
+        }
+    }
+
+    private FileLock lock(int slot) throws IOException {
+        // an interrupt closes the channel, releasing the locks of every thread, so it is only seen while waiting
+        final boolean interrupted = Thread.interrupted();
+        try {
+            for (; ; ) {
+                final FileChannel channel = this.channel;
+                try {
+                    return channel.lock(slot, SLOT_SIZE, false);
+                } catch (ClosedByInterruptException e) {
+                    throw e;
+                } catch (ClosedChannelException e) {
+                    reopen(channel);
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void reopen(FileChannel closed) throws IOException {
+        if (channel == closed)
+            channel = FileChannel.open(file.toPath(), READ, WRITE);
+    }
+
+    private static int pidOf(long owner) {
+        return (int) (owner >>> 32);
+    }
+
+    @Override
+    public boolean isLockFree(int id) {
+        return freeIfDead(slot(id)) == 0;
+    }
+
+    /**
+     * @return the owner of the slot, or 0 if free, having freed it if the owner has died.
+     */
+    private long freeIfDead(int slot) {
+        final long owner = buffer.getLong(slot + OWNER);
+        if (owner == 0 || pidOf(owner) == pid || isAlive(slot, owner))
+            return owner;
+        try {
+            // decide again holding the slot, as it may have been released and claimed again meanwhile
+            return locked(slot, () -> {
+                final long current = buffer.getLong(slot + OWNER);
+                if (current != owner || isAlive(slot, owner))
+                    return current;
+                if (leaseExpired(slot))
+                    LOGGER.warn("Freed cpu lock {} of process {} as its lease wasn't renewed for {} ms", slot / SLOT_SIZE - 1, pidOf(owner), System.currentTimeMillis() - buffer.getLong(slot + HEARTBEAT));
+                else
+                    LOGGER.info("Freed cpu lock {} of process {} which is no longer running", slot / SLOT_SIZE - 1, pidOf(owner));
+                clear(slot);
+                return 0;
+            });
+        } catch (IOException e) {
+            LOGGER.warn("Failed to free cpu lock {} of process {}", slot / SLOT_SIZE - 1, pidOf(owner), e);
+            return owner;
+        }
+    }
+
+    private boolean leaseExpired(int slot) {
+        final long heartbeat = buffer.getLong(slot + HEARTBEAT);
+        return leaseMS > 0 && heartbeat != 0 && System.currentTimeMillis() - heartbeat >= leaseMS;
+    }
+
+    /**
+     * @return true unless the lease of the owner has expired, or its heartbeat has stopped and it is no longer
+     * running, its pid has been reused, or it was started before a reboot.
+     */
+    private boolean isAlive(int slot, long owner) {
+        if (leaseExpired(slot))
+            return false;
+        // a heartbeat of 0 with an owner is a claim which never finished, so its owner died
+        final long heartbeat = buffer.getLong(slot + HEARTBEAT);
+        if (heartbeat != 0 && System.currentTimeMillis() - heartbeat < STALE_MS)
+            return true;
+        final long ownerBoot = buffer.getLong(slot + BOOT);
+        final long ownerStartTime = ProcessIdentity.startTime(pidOf(owner));
+        return (ownerBoot == 0 || boot == 0 || ownerBoot == boot)
+                && ownerStartTime != ProcessIdentity.UNKNOWN && ownerStartTime == buffer.getLong(slot + START_TIME);
+    }
+
+    private void clear(int slot) {
+        buffer.putLong(slot + OWNER, 0);
+        buffer.putLong(slot + HEARTBEAT, 0);
+        buffer.putLong(slot + START_TIME, 0);
+        buffer.putLong(slot + BOOT, 0);
+        buffer.putInt(slot + META_LENGTH, 0);
+    }
+
+    @Override
+    public boolean obtainLock(int id, String metaInfo) throws IOException {
+        final int slot = slot(id);
+        if (freeIfDead(slot) != 0)
+            return false;
+        final long owner = ((long) pid << 32) | (threadId() & 0xFFFFFFFFL);
+        final byte[] bytes = withoutIdentity(metaInfo).getBytes(StandardCharsets.UTF_8);
+        final int length = Math.min(bytes.length, META_CAPACITY);
+        final boolean obtained = locked(slot, () -> {
+            if (buffer.getLong(slot + OWNER) != 0)
+                return 0;
+            buffer.putLong(slot + HEARTBEAT, System.currentTimeMillis());
+            buffer.putLong(slot + START_TIME, startTime);
+            buffer.putLong(slot + BOOT, boot);
+            buffer.putLong(slot + REVOCATION, 0);
+            for (int i = 0; i < length; i++)
+                buffer.put(slot + META + i, bytes[i]);
+            buffer.putInt(slot + META_LENGTH, length);
+            // the owner last, so a slot with an owner always has the rest
+            buffer.putLong(slot + OWNER, owner);
+            return 1;
+        }) != 0;
+        if (!obtained)
+            return false;
+        held.add(id);
+        startHeartbeat();
+        return true;
+    }
+
+    private static String withoutIdentity(String metaInfo) {
+        final StringBuilder sb = new StringBuilder(metaInfo.length());
+        for (String line : metaInfo.split("\n")) {
+            if (line.startsWith(START_LINE) || line.startsWith(BOOT_LINE))
+                continue;
+            if (sb.length() > 0)
+                sb.append('\n');
+            sb.append(line);
+        }
+        return sb.toString();
+    }
+
+    private static int threadId() {
+        try {
+            return Affinity.getThreadId();
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public boolean releaseLock(int id) {
+        final int slot = slot(id);
+        final long owner = buffer.getLong(slot + OWNER);
+        if (owner == 0 || pidOf(owner) != pid)
+            return false;
+        held.remove(id);
+        try {
+            return locked(slot, () -> {
+                if (buffer.getLong(slot + OWNER) != owner)
+                    return 0;
+                clear(slot);
+                return 1;
+            }) != 0;
+        } catch (IOException e) {
+            LOGGER.warn("Failed to release cpu lock {}", id, e);
+            return false;
+        }
+    }
+
+    @Override
+    public String getMetaInfo(int id) {
+        final String[] lines = getMetaInfoLines(id);
+        return lines == null ? null : lines[0];
+    }
+
+    @Override
+    public String[] getMetaInfoLines(int id) {
+        final int slot = slot(id);
+        if (freeIfDead(slot) == 0 || buffer.getLong(slot + HEARTBEAT) == 0)
+            return null;
+        return readMetaInfo(slot);
+    }
+
+    private String[] readMetaInfo(int slot) {
+        final int length = Math.max(0, Math.min(buffer.getInt(slot + META_LENGTH), META_CAPACITY));
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = buffer.get(slot + META + i);
+        return (new String(bytes, StandardCharsets.UTF_8) + '\n' + START_LINE + buffer.getLong(slot + START_TIME)).split("\n");
+    }
+
+    /**
+     * Reads the whole table, which only costs memory reads, and frees none of the slots.
+     */
+    @Override
+    public SortedMap<Integer, String[]> getLockedMetaInfo(int ids) {
+        final SortedMap<Integer, String[]> locked = new TreeMap<>();
+        for (int id = 0; id < SLOTS; id++) {
+            final int slot = slot(id);
+            final long owner = buffer.getLong(slot + OWNER);
+            if (owner == 0 || buffer.getLong(slot + HEARTBEAT) == 0)
+                continue;
+            final String[] lines = readMetaInfo(slot);
+            if (pidOf(owner) == pid || isAlive(slot, owner)) {
+                locked.put(id, lines);
+            } else {
+                final String[] reported = Arrays.copyOf(lines, lines.length + 1);
+                reported[lines.length] = leaseExpired(slot) ? EXPIRED : ORPHANED;
+                locked.put(id, reported);
+            }
+        }
+        return locked;
+    }
+
+    @Override
+    public boolean requestRevocation(int id, String metaInfo) throws IOException {
+        final String[] lines = metaInfo.split("\n");
+        final int priority = RevocationRequests.priorityOf(lines);
+        final int requester = Integer.parseInt(lines[0].trim());
+        final long request = ((long) requester << 32) | (priority & 0xFFFFFFFFL);
+        final int slot = slot(id);
+        // only replace a request of a lower priority, or one from a process no longer running
+        return locked(slot, () -> {
+            final long existing = buffer.getLong(slot + REVOCATION);
+            if (existing != 0 && !RevocationRequests.canReplace(revocationRequest(existing), lines))
+                return 0;
+            buffer.putLong(slot + REVOCATION, request);
+            return 1;
+        }) != 0;
+    }
+
+    private static String[] revocationRequest(long revocation) {
+        return new String[]{Integer.toString(pidOf(revocation)), PRIORITY + (int) revocation};
+    }
+
+    @Override
+    public String[] getRevocationRequest(int id) {
+        final long revocation = buffer.getLong(slot(id) + REVOCATION);
+        if (revocation == 0)
+            return null;
+        return revocationRequest(revocation);
+    }
+
+    @Override
+    public void cancelRevocation(int id) {
+        final int slot = slot(id);
+        try {
+            locked(slot, () -> {
+                buffer.putLong(slot + REVOCATION, 0);
+                return 0;
+            });
+        } catch (IOException e) {
+            LOGGER.warn("Failed to cancel the request to release cpu lock {}", id, e);
+        }
+    }
+
+    @Override
+    public void onRevocationRequest(@NotNull IntConsumer listener) {
+        revocationListener = listener;
+    }
+
+    @Override
+    public void onLeaseLost(@NotNull IntConsumer listener) {
+        leaseLostListener = listener;
+    }
+
+    @Override
+    public void renewWhile(@NotNull IntPredicate responsive) {
+        this.responsive = responsive;
+    }
+
+    private synchronized void startHeartbeat() {
+        if (heartbeating)
+            return;
+        heartbeating = true;
+        final Thread thread = new Thread(this::heartbeat, "affinity-lock-heartbeat");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Refresh the heartbeat of every slot held, unless it is leased and its holder isn't responsive, and pass on
+     * requests to release them.
+     */
+    private void heartbeat() {
+        for (; ; ) {
+            try {
+                Thread.sleep(heartbeatMS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            for (int id : held) {
+                final int slot = slot(id);
+                // the lease of a holder which has hung is left to run out
+                final boolean renew = leaseMS <= 0 || responsive.test(id);
+                final boolean lost;
+                try {
+                    // holding the slot, so the heartbeat of another process which just took it isn't overwritten
+                    lost = locked(slot, () -> {
+                        if (pidOf(buffer.getLong(slot + OWNER)) != pid)
+                            return 1;
+                        if (renew)
+                            buffer.putLong(slot + HEARTBEAT, System.currentTimeMillis());
+                        return 0;
+                    }) != 0;
+                } catch (IOException e) {
+                    LOGGER.warn("Failed to renew cpu lock {}", id, e);
+                    continue;
+                }
+                if (lost) {
+                    // taken by another process as its lease ran out
+                    held.remove(id);
+                    LOGGER.warn("Lost cpu lock {} as its lease was taken by another process", id);
+                    tell(leaseLostListener, id);
+                    continue;
+                }
+                if (buffer.getLong(slot + REVOCATION) != 0)
+                    tell(revocationListener, id);
+            }
+        }
+    }
+
+    private static void tell(@Nullable IntConsumer listener, int id) {
+        if (listener == null)
+            return;
+        try {
+            listener.accept(id);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to pass on a change to cpu lock {}", id, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MappedLockChecker{" + file + (leaseMS > 0 ? ", lease " + leaseMS + " ms" : "") + '}';
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2016-2022 chronicle.software
+ *
+ *       https://chronicle.software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.affinity.lockchecker;
+
+import net.openhft.affinity.ProcessIdentity;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Decides whether a request to release a lock can replace the one already made, so a request of a higher priority
+ * is never replaced by a lower one, which the holder would ignore.
+ */
+final class RevocationRequests {
+    static final String PRIORITY = "priority=";
+
+    private RevocationRequests() {
+    }
+
+    /**
+     * @param existing the lines of the request already made, or null if there is none
+     * @param request  the lines of the new request, the pid first
+     * @return true if there is no request, it is from the same process or one no longer running, or of a lower
+     * priority.
+     */
+    static boolean canReplace(@Nullable String[] existing, @NotNull String[] request) {
+        if (existing == null || existing.length == 0)
+            return true;
+        if (existing[0].trim().equals(request[0].trim()))
+            return true;
+        final ProcessIdentity requester = ProcessIdentity.parse(existing);
+        if (requester == null || !requester.isRunning())
+            return true;
+        return priorityOf(request) > priorityOf(existing);
+    }
+
+    /**
+     * @return the priority of a request, or 0 if it has none.
+     */
+    static int priorityOf(@NotNull String[] lines) {
+        for (String line : lines)
+            if (line.startsWith(PRIORITY)) {
+                try {
+                    return Integer.parseInt(line.substring(PRIORITY.length()).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        return 0;
+    }
+}
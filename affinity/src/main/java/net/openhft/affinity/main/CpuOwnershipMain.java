@@ -0,0 +1,68 @@
+/*
+ * Copyright 2016-2022 chronicle.software
+ *
+ *       https://chronicle.software
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.openhft.affinity.main;
+
+import net.openhft.affinity.CpuOwnership;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Prints which process and thread holds each cpu locked on this machine, by any JVM.
+ * <pre>
+ * java -cp affinity.jar net.openhft.affinity.main.CpuOwnershipMain [--csv]
+ * </pre>
+ */
+public class CpuOwnershipMain {
+
+    public static void main(String[] args) {
+        boolean csv = false;
+        for (String arg : args) {
+            if ("--csv".equals(arg)) {
+                csv = true;
+            } else {
+                System.err.println("Usage: CpuOwnershipMain [--csv]");
+                System.exit(1);
+            }
+        }
+        print(CpuOwnership.snapshot(), csv, System.out);
+    }
+
+    static void print(List<CpuOwnership> owners, boolean csv, PrintStream out) {
+        final String format = csv ? "%s,%s,%s,%s,%s,%s,%s,%s,%s%n" : "%4s %8s %8s %-9s %8s %-24s %-7s %-8s %s%n";
+        out.printf(format, "cpu", "pid", "tid", "role", "priority", "acquired", "running", "state", "thread");
+        for (CpuOwnership owner : owners) {
+            out.printf(format,
+                    owner.cpu(),
+                    owner.pid(),
+                    owner.tid() < 0 ? "" : owner.tid(),
+                    owner.role(),
+                    owner.priority(),
+                    owner.acquired() == 0 ? "" : Instant.ofEpochMilli(owner.acquired()),
+                    owner.isRunning(),
+                    owner.state(),
+                    csv ? quote(owner.threadName()) : owner.threadName());
+        }
+    }
+
+    private static String quote(String s) {
+        return s.indexOf(',') < 0 && s.indexOf('"') < 0 ? s : '"' + s.replace("\"", "\"\"") + '"';
+    }
+}
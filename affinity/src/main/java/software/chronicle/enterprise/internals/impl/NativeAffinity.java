@@ -17,23 +17,52 @@
 
 package software.chronicle.enterprise.internals.impl;
 
+import net.openhft.affinity.CpuSet;
 import net.openhft.affinity.IAffinity;
-
+import net.openhft.affinity.LockCheck;
+import net.openhft.affinity.impl.LinuxHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.BitSet;
 
+/**
+ * JNI implementation using libCEInternals, either from java.library.path or, for linux-x86_64 and linux-aarch64,
+ * packaged in the jar and extracted when first used.
+ */
 public enum NativeAffinity implements IAffinity {
     INSTANCE;
 
+    /**
+     * Whether the library was loaded and gave the same answers as the JVM, so it is safe to use.
+     */
     public static final boolean LOADED;
+    private static final Logger LOGGER = LoggerFactory.getLogger(NativeAffinity.class);
+    private static final String LIBRARY = "CEInternals";
+    /**
+     * The longs of a cpu_set_t, the most cpus the library supports.
+     */
+    private static final int WORDS = CpuSet.DEFAULT_CPUS / 64;
+    private static final ThreadLocal<long[]> MASK = ThreadLocal.withInitial(() -> new long[WORDS]);
+    private static final boolean IS_LINUX = "linux".equals(os());
 
     static {
-        LOADED = loadAffinityNativeLibrary();
+        LOADED = loadAffinityNativeLibrary() && verify();
     }
 
     private native static byte[] getAffinity0();
 
     private native static void setAffinity0(byte[] affinity);
 
+    private native static boolean getAffinity1(long[] affinity);
+
+    private native static void setAffinity1(long[] affinity);
+
     private native static int getCpu0();
 
     private native static int getProcessId0();
@@ -44,13 +73,67 @@ public enum NativeAffinity implements IAffinity {
 
     private static boolean loadAffinityNativeLibrary() {
         try {
-            System.loadLibrary("CEInternals");
+            System.loadLibrary(LIBRARY);
             return true;
         } catch (UnsatisfiedLinkError e) {
+            // not installed, try the copy in the jar
+        }
+        final String resource = "/META-INF/native/" + os() + "-" + arch() + "/" + System.mapLibraryName(LIBRARY);
+        try (InputStream in = NativeAffinity.class.getResourceAsStream(resource)) {
+            if (in == null)
+                return false;
+            final File file = File.createTempFile("lib" + LIBRARY, ".so");
+            try {
+                Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                System.load(file.getAbsolutePath());
+            } finally {
+                // once loaded it is no longer needed
+                if (!file.delete())
+                    file.deleteOnExit();
+            }
+            return true;
+        } catch (IOException | UnsatisfiedLinkError e) {
+            LOGGER.debug("Unable to load {}", resource, e);
             return false;
         }
     }
 
+    /**
+     * @return whether the library answers for this process and thread, i.e. was built from the same sources.
+     */
+    private static boolean verify() {
+        try {
+            final byte[] affinity = getAffinity0();
+            if (getProcessId0() == LockCheck.getPID()
+                    && getThreadId0() > 0
+                    && getCpu0() >= 0
+                    && affinity != null && !BitSet.valueOf(affinity).isEmpty()
+                    && getAffinity1(new long[WORDS]))
+                return true;
+            LOGGER.warn("lib{} loaded but gave unexpected results, not using it", LIBRARY);
+        } catch (UnsatisfiedLinkError e) {
+            LOGGER.warn("lib{} loaded but doesn't match this version, not using it", LIBRARY, e);
+        }
+        return false;
+    }
+
+    static String os() {
+        final String os = System.getProperty("os.name").toLowerCase();
+        return os.startsWith("linux") ? "linux" : os.startsWith("mac") ? "darwin" : os.replace(' ', '_');
+    }
+
+    static String arch() {
+        final String arch = System.getProperty("os.arch");
+        switch (arch) {
+            case "amd64":
+                return "x86_64";
+            case "arm64":
+                return "aarch64";
+            default:
+                return arch;
+        }
+    }
+
     @Override
     public BitSet getAffinity() {
         final byte[] buff = getAffinity0();
@@ -65,6 +148,45 @@ public enum NativeAffinity implements IAffinity {
         setAffinity0(affinity.toByteArray());
     }
 
+    /**
+     * The library only handles the current thread, so other threads of this process are handled by JNA on Linux.
+     */
+    @Override
+    public BitSet getAffinity(int threadId) {
+        if (threadId == 0 || threadId == getThreadId() || !IS_LINUX)
+            return IAffinity.super.getAffinity(threadId);
+        return LinuxHelper.sched_getaffinity(threadId);
+    }
+
+    @Override
+    public void setAffinity(int threadId, BitSet affinity) {
+        if (threadId == 0 || threadId == getThreadId() || !IS_LINUX) {
+            IAffinity.super.setAffinity(threadId, affinity);
+            return;
+        }
+        LinuxHelper.sched_setaffinity(threadId, affinity);
+    }
+
+    @Override
+    public void getAffinity(CpuSet affinity) {
+        final long[] mask = MASK.get();
+        if (!getAffinity1(mask))
+            throw new IllegalStateException("sched_getaffinity failed");
+        affinity.clear();
+        for (int i = 0; i < WORDS; i++)
+            affinity.word(i, mask[i]);
+    }
+
+    @Override
+    public void setAffinity(CpuSet affinity) {
+        if (affinity.length() > CpuSet.DEFAULT_CPUS)
+            throw new IllegalArgumentException("More cpus than cpu_set_t supports: " + affinity);
+        final long[] mask = MASK.get();
+        for (int i = 0; i < WORDS; i++)
+            mask[i] = affinity.word(i);
+        setAffinity1(mask);
+    }
+
     @Override
     public int getCpu() {
         return getCpu0();
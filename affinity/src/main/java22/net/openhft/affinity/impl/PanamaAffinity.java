@@ -0,0 +1,272 @@
+/*
+ * Copyright 2016-2020 chronicle.software
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.openhft.affinity.impl;
+
+import net.openhft.affinity.CpuSet;
+import net.openhft.affinity.IAffinity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.foreign.SymbolLookup;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.util.BitSet;
+
+/**
+ * Linux affinity through downcall handles of the Foreign Function and Memory API, so calls go straight to libc
+ * without the marshalling and reflective proxy of JNA. Only in the multi-release jar for Java 22 and later.
+ * <p>
+ * Each thread reuses one native cpu mask, which is copied to and from a BitSet a word at a time.
+ */
+public enum PanamaAffinity implements IAffinity {
+    INSTANCE;
+    public static final boolean LOADED;
+    private static final Logger LOGGER = LoggerFactory.getLogger(PanamaAffinity.class);
+    private static final int EINVAL = 22;
+    /**
+     * The size of a glibc cpu_set_t in bytes, enough for 1024 cpus.
+     */
+    private static final int SIZE_OF_CPU_SET_T = 128;
+    /**
+     * The largest cpu mask passed to the kernel in bytes, enough for 1M cpus.
+     */
+    private static final int MAX_CPU_SET_SIZE = 1 << 17;
+    /**
+     * The number of the gettid system call, which differs by architecture, or -1 if not known.
+     */
+    private static final long SYS_gettid = sysGettid(System.getProperty("os.arch"));
+
+    private static final StructLayout CAPTURE_STATE = Linker.Option.captureStateLayout();
+    private static final long ERRNO_OFFSET = CAPTURE_STATE.byteOffset(MemoryLayout.PathElement.groupElement("errno"));
+    private static final MethodHandle SCHED_GETAFFINITY;
+    private static final MethodHandle SCHED_SETAFFINITY;
+    private static final MethodHandle SCHED_GETCPU;
+    private static final MethodHandle GETTID;
+    private static final int PROCESS_ID = (int) ProcessHandle.current().pid();
+
+    static {
+        MethodHandle getaffinity = null, setaffinity = null, getcpu = null, gettid = null;
+        boolean loaded = false;
+        try {
+            final Linker linker = Linker.nativeLinker();
+            final SymbolLookup libc = linker.defaultLookup();
+            final Linker.Option errno = Linker.Option.captureCallState("errno");
+            final FunctionDescriptor affinity = FunctionDescriptor.of(ValueLayout.JAVA_INT,
+                    ValueLayout.JAVA_INT, ValueLayout.JAVA_LONG, ValueLayout.ADDRESS);
+            getaffinity = linker.downcallHandle(libc.find("sched_getaffinity").orElseThrow(), affinity, errno);
+            setaffinity = linker.downcallHandle(libc.find("sched_setaffinity").orElseThrow(), affinity, errno);
+            getcpu = linker.downcallHandle(libc.find("sched_getcpu").orElseThrow(), FunctionDescriptor.of(ValueLayout.JAVA_INT));
+            // gettid() was only added in glibc 2.30
+            gettid = libc.find("gettid")
+                    .map(s -> linker.downcallHandle(s, FunctionDescriptor.of(ValueLayout.JAVA_INT)))
+                    .orElseGet(() -> java.lang.invoke.MethodHandles.insertArguments(linker.downcallHandle(
+                            libc.find("syscall").orElseThrow(),
+                            FunctionDescriptor.of(ValueLayout.JAVA_LONG, ValueLayout.JAVA_LONG)), 0, sysGettidOrThrow()));
+            loaded = true;
+        } catch (Throwable t) {
+            LOGGER.debug("Foreign function access to libc not available", t);
+        }
+        SCHED_GETAFFINITY = getaffinity;
+        SCHED_SETAFFINITY = setaffinity;
+        SCHED_GETCPU = getcpu;
+        GETTID = gettid;
+        LOADED = loaded && "Linux".equals(System.getProperty("os.name"));
+    }
+
+    static long sysGettid(String arch) {
+        switch (arch) {
+            case "amd64":
+            case "x86_64":
+                return 186;
+            case "aarch64":
+                return 178;
+            default:
+                return -1;
+        }
+    }
+
+    private static long sysGettidOrThrow() {
+        if (SYS_gettid < 0)
+            throw new UnsupportedOperationException("gettid() isn't in libc and its system call number on " + System.getProperty("os.arch") + " isn't known");
+        return SYS_gettid;
+    }
+
+    /**
+     * The mask size the kernel accepts, which grows if it was built for more than 1024 cpus.
+     */
+    private static volatile int cpuSetSize = SIZE_OF_CPU_SET_T;
+    private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+    private static final ThreadLocal<Integer> THREAD_ID = new ThreadLocal<>();
+
+    @Override
+    public BitSet getAffinity() {
+        return getAffinity(0);
+    }
+
+    @Override
+    public void setAffinity(BitSet affinity) {
+        setAffinity(0, affinity);
+    }
+
+    @Override
+    public BitSet getAffinity(int threadId) {
+        final Buffers buffers = BUFFERS.get();
+        final int size = read(threadId, buffers);
+        return BitSet.valueOf(buffers.mask.asSlice(0, size).toArray(ValueLayout.JAVA_LONG));
+    }
+
+    @Override
+    public void getAffinity(CpuSet affinity) {
+        final Buffers buffers = BUFFERS.get();
+        final int size = read(0, buffers);
+        affinity.clear();
+        for (int i = 0, words = size / Long.BYTES; i < words; i++)
+            affinity.word(i, buffers.mask.getAtIndex(ValueLayout.JAVA_LONG, i));
+    }
+
+    @Override
+    public void setAffinity(int threadId, BitSet affinity) {
+        final Buffers buffers = BUFFERS.get();
+        final long[] longs = affinity.toLongArray();
+        final int size = Math.max(cpuSetSize, longs.length * Long.BYTES);
+        final MemorySegment mask = buffers.mask(size);
+        MemorySegment.copy(longs, 0, mask, ValueLayout.JAVA_LONG, 0, longs.length);
+        if (write(threadId, buffers, size) != 0)
+            throw new IllegalStateException("sched_setaffinity(" + threadId + ", " + size +
+                    ", 0x" + CpuSet.valueOf(affinity).toHexString() + ") failed; errno=" + buffers.errno());
+    }
+
+    @Override
+    public void setAffinity(CpuSet affinity) {
+        final Buffers buffers = BUFFERS.get();
+        final int size = Math.max(cpuSetSize, (affinity.length() + 63) / 64 * Long.BYTES);
+        final MemorySegment mask = buffers.mask(size);
+        for (int i = 0, words = size / Long.BYTES; i < words; i++)
+            mask.setAtIndex(ValueLayout.JAVA_LONG, i, affinity.word(i));
+        if (write(0, buffers, size) != 0)
+            throw new IllegalStateException("sched_setaffinity(0, " + size +
+                    ", 0x" + affinity.toHexString() + ") failed; errno=" + buffers.errno());
+    }
+
+    /**
+     * Read the affinity of a thread into the mask of the buffers.
+     *
+     * @return the size of the mask read in bytes
+     */
+    private static int read(int threadId, Buffers buffers) {
+        int size = cpuSetSize;
+        while (true) {
+            final MemorySegment mask = buffers.mask(size);
+            final int ret;
+            try {
+                ret = (int) SCHED_GETAFFINITY.invokeExact(buffers.state, threadId, (long) size, mask);
+            } catch (Throwable t) {
+                throw new IllegalStateException("sched_getaffinity(" + threadId + ", " + size + ", cpuset) failed", t);
+            }
+            if (ret == 0) {
+                if (size > cpuSetSize)
+                    cpuSetSize = size;
+                return size;
+            }
+            final int errno = buffers.errno();
+            // the mask is smaller than the kernel's, try again with a larger one.
+            if (errno == EINVAL && size < MAX_CPU_SET_SIZE) {
+                size *= 2;
+                continue;
+            }
+            throw new IllegalStateException("sched_getaffinity(" + threadId + ", " + size + ", cpuset) failed; errno=" + errno);
+        }
+    }
+
+    /**
+     * Set the affinity of a thread to the mask of the buffers.
+     *
+     * @return 0 on success
+     */
+    private static int write(int threadId, Buffers buffers, int size) {
+        try {
+            return (int) SCHED_SETAFFINITY.invokeExact(buffers.state, threadId, (long) size, buffers.mask);
+        } catch (Throwable t) {
+            throw new IllegalStateException("sched_setaffinity(" + threadId + ", " + size + ", cpuset) failed", t);
+        }
+    }
+
+    @Override
+    public int getCpu() {
+        try {
+            return (int) SCHED_GETCPU.invokeExact();
+        } catch (Throwable t) {
+            throw new IllegalStateException("sched_getcpu() failed", t);
+        }
+    }
+
+    @Override
+    public int getProcessId() {
+        return PROCESS_ID;
+    }
+
+    @Override
+    public int getThreadId() {
+        // the id of a virtual thread is that of its current carrier
+        if (Thread.currentThread().isVirtual())
+            return gettid();
+        Integer tid = THREAD_ID.get();
+        if (tid == null)
+            THREAD_ID.set(tid = gettid());
+        return tid;
+    }
+
+    private static int gettid() {
+        try {
+            return GETTID.type().returnType() == int.class
+                    ? (int) GETTID.invokeExact()
+                    : (int) (long) GETTID.invokeExact();
+        } catch (Throwable t) {
+            throw new IllegalStateException("gettid() failed", t);
+        }
+    }
+
+    /**
+     * The native memory of one thread, freed once the thread has gone.
+     */
+    private static final class Buffers {
+        final Arena arena = Arena.ofAuto();
+        final MemorySegment state = arena.allocate(CAPTURE_STATE);
+        MemorySegment mask = arena.allocate(SIZE_OF_CPU_SET_T, Long.BYTES);
+
+        /**
+         * @return the mask, cleared and at least size bytes.
+         */
+        MemorySegment mask(int size) {
+            if (mask.byteSize() < size)
+                mask = arena.allocate(size, Long.BYTES);
+            mask.fill((byte) 0);
+            return mask;
+        }
+
+        int errno() {
+            return state.get(ValueLayout.JAVA_INT, ERRNO_OFFSET);
+        }
+    }
+}
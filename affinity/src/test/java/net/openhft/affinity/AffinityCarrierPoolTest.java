@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016-2020 chronicle.software
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.openhft.affinity;
+
+import net.openhft.affinity.impl.NullAffinity;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeNoException;
+import static org.junit.Assume.assumeTrue;
+
+public class AffinityCarrierPoolTest extends BaseAffinityTest {
+    private LockInventory inventory;
+
+    @Before
+    public void before() throws IOException {
+        assumeTrue(!(Affinity.getAffinityImpl() instanceof NullAffinity));
+        inventory = LockInventoryTest.reservableInventory("epyc.sysfs");
+    }
+
+    /**
+     * Occupy this many carriers at once, so they have all started.
+     */
+    private static void occupy(AffinityCarrierPool pool, int carriers) throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(carriers);
+        final CountDownLatch done = new CountDownLatch(carriers);
+        for (int i = 0; i < carriers; i++)
+            pool.execute(() -> {
+                started.countDown();
+                try {
+                    started.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void pinnedCarriers() throws InterruptedException {
+        final AffinityCpuSetLock cpuSet = inventory.acquireCpuSet(3, false);
+        assertNotNull(cpuSet);
+        final BitSet cpus = cpuSet.cpus();
+        final AffinityCarrierPool pool = AffinityCarrierPool.pinned("carrier", cpuSet);
+        try {
+            assertEquals(3, pool.forkJoinPool().getParallelism());
+            occupy(pool, 3);
+            final List<AffinityCarrierPool.Carrier> carriers = pool.carriers();
+            assertEquals(carriers.toString(), 3, carriers.size());
+            final BitSet pinned = new BitSet();
+            for (AffinityCarrierPool.Carrier carrier : carriers) {
+                assertTrue(carrier.name().startsWith("carrier-"));
+                assertTrue(carrier.threadId() > 0);
+                assertTrue(cpus.get(carrier.cpuId()));
+                assertEquals(1, carrier.cpus().cardinality());
+                assertTrue(carrier.cpus().get(carrier.cpuId()));
+                assertNotNull(carrier.lock());
+                assertEquals(carrier.cpuId(), carrier.lock().cpuId());
+                pinned.set(carrier.cpuId());
+            }
+            // each on a cpu of its own
+            assertEquals(cpus, pinned);
+        } finally {
+            pool.close();
+        }
+        assertFalse(cpuSet.isReserved());
+        cpus.stream().forEach(cpu -> assertTrue(LockCheck.isCpuFree(cpu)));
+    }
+
+    @Test
+    public void sharedCarriers() throws InterruptedException {
+        final AffinityCpuSetLock cpuSet = inventory.acquireCpuSet(2, false);
+        assertNotNull(cpuSet);
+        try (AffinityCarrierPool pool = AffinityCarrierPool.shared("shared", cpuSet, 4)) {
+            occupy(pool, 4);
+            final List<AffinityCarrierPool.Carrier> carriers = pool.carriers();
+            assertEquals(carriers.toString(), 4, carriers.size());
+            for (AffinityCarrierPool.Carrier carrier : carriers) {
+                assertEquals(-1, carrier.cpuId());
+                assertEquals(cpuSet.cpus(), carrier.cpus());
+                assertNull(carrier.lock());
+            }
+        }
+        assertFalse(cpuSet.isReserved());
+    }
+
+    @Test
+    public void virtualThreadsRunOnTheCarriers() throws InterruptedException {
+        final AffinityCpuSetLock cpuSet = inventory.acquireCpuSet(2, false);
+        assertNotNull(cpuSet);
+        try (AffinityCarrierPool pool = AffinityCarrierPool.pinned("carrier", cpuSet)) {
+            final ThreadFactory factory;
+            try {
+                factory = pool.virtualThreadFactory("request");
+            } catch (UnsupportedOperationException e) {
+                // before Java 21, or java.lang is not open
+                assumeNoException(e);
+                return;
+            }
+            final AtomicReference<String> ranOn = new AtomicReference<>();
+            final Thread t = factory.newThread(() -> ranOn.set(Thread.currentThread().toString()));
+            assertEquals("request-0", t.getName());
+            t.start();
+            t.join(10_000);
+            // e.g. VirtualThread[#22,request-0]/runnable@carrier-1
+            assertTrue(ranOn.get(), ranOn.get().contains("@carrier-"));
+        }
+    }
+}
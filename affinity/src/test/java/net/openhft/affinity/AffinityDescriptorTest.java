@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016-2020 chronicle.software
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.openhft.affinity;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class AffinityDescriptorTest extends BaseAffinityTest {
+
+    private static int[] candidates(LockInventory inventory, String desc) {
+        return AffinityDescriptor.compile(desc).candidates(inventory);
+    }
+
+    @Test
+    public void testRanges() throws IOException {
+        // socket 0 is cpus 0-3 & 8-11, socket 1 is cpus 4-7 & 12-14, cpu 15 is offline
+        LockInventory inventory = LockInventoryTest.reservableInventory("dual.socket.sysfs");
+        assertArrayEquals(new int[]{2, 3, 4, 6, 7}, candidates(inventory, "2-7,!5"));
+        assertArrayEquals(new int[]{14}, candidates(inventory, "last,last-1"));
+        assertArrayEquals(new int[]{3, 14, 13, 12, 11, 10, 9, 8, 7, 6, 5, 4, 2, 1}, candidates(inventory, "3,any,!last"));
+    }
+
+    @Test
+    public void testNeverCpu0() throws IOException {
+        LockInventory inventory = LockInventoryTest.reservableInventory("dual.socket.sysfs");
+        assertArrayEquals(new int[]{1, 2, 3}, candidates(inventory, "0-3"));
+        assertArrayEquals(new int[]{}, candidates(inventory, "last-15"));
+        assertArrayEquals(new int[]{}, candidates(inventory, "last-20,socket:0"));
+        // listing only cpu 0 doesn't mean any cpu
+        assertArrayEquals(new int[]{}, candidates(inventory, "0-0,socket:0"));
+        assertArrayEquals(new int[]{14, 13, 12, 7, 6, 5, 4}, candidates(inventory, "socket:1,!last-20"));
+    }
+
+    @Test
+    public void testTopology() throws IOException {
+        LockInventory inventory = LockInventoryTest.reservableInventory("dual.socket.sysfs");
+        assertArrayEquals(new int[]{14, 13, 12, 7, 6, 5, 4}, candidates(inventory, "socket:1"));
+        assertArrayEquals(new int[]{14, 13, 12, 7, 6, 5, 4}, candidates(inventory, "any,!socket:0"));
+        // node 2 is cpus 4, 5, 12 and 13
+        assertArrayEquals(new int[]{14, 7, 6}, candidates(inventory, "SOCKET:1, !node:2"));
+        assertArrayEquals(new int[]{12, 4}, candidates(inventory, "l2:4"));
+        assertArrayEquals(new int[]{4, 5}, candidates(inventory, "4-7,node:2"));
+    }
+
+    @Test
+    public void testSameAs() throws IOException, InterruptedException {
+        LockInventory inventory = LockInventoryTest.reservableInventory("dual.socket.sysfs");
+        assertNull(candidates(inventory, "socket:same-as:feeder"));
+
+        Thread feeder = new Thread(() -> inventory.tryAcquireLock(false, 9), "feeder");
+        feeder.start();
+        feeder.join();
+        assertEquals(9, inventory.cpuOf("feeder"));
+        assertArrayEquals(new int[]{11, 10, 9, 8}, candidates(inventory, "socket:same-as:feeder,!0-3"));
+        assertArrayEquals(new int[]{1}, candidates(inventory, "core:same-as:feeder,!9"));
+        assertArrayEquals(new int[]{14, 13, 12, 7, 6, 5, 4}, candidates(inventory, "!socket:same-as:feeder"));
+        assertEquals(1, inventory.releaseDeadThreads());
+    }
+
+    @Test
+    public void testWholeCore() throws IOException {
+        // cpus 6 and 14 share a core
+        LockInventory inventory = LockInventoryTest.reservableInventory("dual.socket.sysfs");
+        AffinityLock al = inventory.acquireFirst(false, candidates(inventory, "socket:1,core:whole"), true);
+        assertEquals(14, al.cpuId());
+        assertSame(al, inventory.current());
+        assertNull(inventory.tryAcquireLock(false, 6));
+        inventory.release(false);
+        assertNull(inventory.current());
+        assertTrue(LockCheck.isCpuFree(14));
+    }
+
+    @Test
+    public void testParse() {
+        for (String desc : new String[]{"none", "any", "last", "last-2", "csv:1, 2", "5", "-1", "2-7", "!5", "l3:same-as:Feeder", "core:whole"})
+            assertEquals(desc, AffinityDescriptor.compile(desc).toString());
+        for (String desc : new String[]{"foo", "socket:x", "3-1", "last1", "last-x", "csv:a", "blah:1", "l3:same-as:", "!core:whole", ""}) {
+            try {
+                AffinityDescriptor.compile(desc);
+                fail(desc);
+            } catch (IllegalArgumentException expected) {
+                assertTrue(expected.getMessage(), expected.getMessage().contains(desc));
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016-2020 chronicle.software
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.openhft.affinity;
+
+import net.openhft.affinity.impl.SysfsCpuLayout;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static net.openhft.affinity.AffinityStrategies.*;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AffinityStrategiesTest {
+
+    private CpuLayout originalLayout;
+
+    static CpuLayout sysfsLayout(String name) throws IOException {
+        return SysfsCpuLayout.fromSysfs(new File(AffinityStrategiesTest.class.getClassLoader().getResource(name).getFile()).getAbsolutePath());
+    }
+
+    @Before
+    public void saveLayout() {
+        originalLayout = AffinityLock.cpuLayout();
+    }
+
+    @After
+    public void restoreLayout() {
+        AffinityLock.cpuLayout(originalLayout);
+    }
+
+    @Test
+    public void testCacheStrategies() throws IOException {
+        // cpus 0-3 & 8-11 share one L3, cpus 4-7 & 12-15 share another, each core has its own L2.
+        AffinityLock.cpuLayout(sysfsLayout("epyc.sysfs"));
+
+        assertTrue(SAME_SOCKET.matches(1, 5));
+        assertTrue(SAME_L3.matches(1, 2));
+        assertTrue(SAME_L3.matches(1, 10));
+        assertFalse(SAME_L3.matches(1, 9));
+        assertFalse(SAME_L3.matches(1, 5));
+        assertTrue(DIFFERENT_L3.matches(1, 5));
+        assertFalse(DIFFERENT_L3.matches(1, 2));
+        assertFalse(SAME_L2.matches(1, 9));
+        assertFalse(SAME_L2.matches(1, 2));
+    }
+
+    @Test
+    public void testNodeStrategies() throws IOException {
+        // each socket is split into two NUMA nodes of two cores.
+        AffinityLock.cpuLayout(sysfsLayout("dual.socket.sysfs"));
+
+        assertTrue(SAME_SOCKET.matches(1, 2));
+        assertFalse(SAME_NODE.matches(1, 2));
+        assertTrue(SAME_NODE.matches(1, 0));
+        assertFalse(SAME_NODE.matches(1, 9));
+        assertTrue(DIFFERENT_NODE.matches(1, 2));
+        assertTrue(DIFFERENT_NODE.matches(1, 4));
+        assertFalse(DIFFERENT_NODE.matches(1, 8));
+    }
+}
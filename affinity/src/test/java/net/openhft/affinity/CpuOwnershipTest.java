@@ -0,0 +1,110 @@
+/*
+ * Copyright 2016-2020 chronicle.software
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.openhft.affinity;
+
+import net.openhft.affinity.impl.NoCpuLayout;
+import net.openhft.affinity.impl.NullAffinity;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static net.openhft.affinity.LockCheck.IS_LINUX;
+import static org.junit.Assert.*;
+
+public class CpuOwnershipTest extends BaseAffinityTest {
+
+    @Before
+    public void before() {
+        Assume.assumeTrue(IS_LINUX);
+        Assume.assumeFalse(Affinity.getAffinityImpl() instanceof NullAffinity);
+    }
+
+    @Test
+    public void snapshot() throws IOException {
+        final LockInventory inventory = LockInventoryTest.reservableInventory(new NoCpuLayout(64));
+        final long before = System.currentTimeMillis();
+        final AffinityLock al = inventory.tryAcquireLock(false, 33);
+        assertNotNull(al);
+        // another process, recorded by an older version
+        assertTrue(LockCheck.replacePid(34, 123));
+        try {
+            final Map<Integer, CpuOwnership> owners = new TreeMap<>();
+            for (CpuOwnership owner : CpuOwnership.snapshot())
+                owners.put(owner.cpu(), owner);
+
+            final CpuOwnership mine = owners.get(33);
+            assertEquals(ProcessIdentity.current(), mine.holder());
+            assertEquals(Affinity.getThreadId(), mine.tid());
+            assertEquals(Thread.currentThread().getName(), mine.threadName());
+            assertEquals(CpuOwnership.Role.THREAD, mine.role());
+            assertTrue(mine.acquired() >= before);
+            assertTrue(mine.isRunning());
+            assertEquals(CpuOwnership.State.HELD, mine.state());
+
+            final CpuOwnership older = owners.get(34);
+            assertEquals(123, older.pid());
+            assertEquals(-1, older.tid());
+            assertEquals(CpuOwnership.Role.UNKNOWN, older.role());
+            assertEquals(0, older.acquired());
+        } finally {
+            inventory.release(false);
+            LockCheck.releaseLock(34);
+        }
+        final List<CpuOwnership> after = CpuOwnership.snapshot();
+        assertTrue(after.stream().noneMatch(o -> o.cpu() == 33 || o.cpu() == 34));
+    }
+
+    @Test
+    public void orphanedLockIsLeft() throws IOException {
+        // a lock file left by a process which died, which no process holds
+        final File lockFile = new File(LockCheck.lockDirectory(), "cpu-35.lock");
+        Files.write(lockFile.toPath(), "123\nwhen".getBytes());
+        final CpuOwnership orphaned = CpuOwnership.snapshot().stream()
+                .filter(o -> o.cpu() == 35)
+                .findFirst()
+                .orElseThrow(AssertionError::new);
+        assertEquals(123, orphaned.pid());
+        assertEquals(CpuOwnership.State.ORPHANED, orphaned.state());
+        assertTrue(lockFile.exists());
+        assertTrue(LockCheck.isCpuFree(35));
+    }
+
+    @Test
+    public void roles() throws IOException {
+        // cpus i and i+8 share a core.
+        final LockInventory inventory = LockInventoryTest.reservableInventory(AffinityStrategiesTest.sysfsLayout("epyc.sysfs"));
+        final AffinityLock al = inventory.acquireCore(false, AffinityLock.ANY_CPU, AffinityStrategies.ANY);
+        try {
+            final int sibling = al.cpuId() < 8 ? al.cpuId() + 8 : al.cpuId() - 8;
+            final Map<Integer, CpuOwnership.Role> roles = new TreeMap<>();
+            for (CpuOwnership owner : CpuOwnership.snapshot())
+                roles.put(owner.cpu(), owner.role());
+            assertEquals(CpuOwnership.Role.CORE, roles.get(al.cpuId()));
+            assertEquals(CpuOwnership.Role.SIBLING, roles.get(sibling));
+        } finally {
+            inventory.release(false);
+        }
+    }
+}
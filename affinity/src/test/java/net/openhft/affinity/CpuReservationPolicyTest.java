@@ -0,0 +1,105 @@
+/*
+ * Copyright 2016-2020 chronicle.software
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.openhft.affinity;
+
+import net.openhft.affinity.CpuReservationPolicy.Source;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.BitSet;
+
+import static net.openhft.affinity.impl.Utilities.parseCpuList;
+import static org.junit.Assert.*;
+
+public class CpuReservationPolicyTest {
+
+    private static String root(String name) {
+        return new File(CpuReservationPolicyTest.class.getClassLoader().getResource(name).getFile()).getAbsolutePath();
+    }
+
+    @Test
+    public void testCgroupV2() {
+        // isolcpus=2-7,10-14 nohz_full=4-7,12-15 in a cgroup allowed 0-1,5-7,13-15
+        CpuReservationPolicy policy = CpuReservationPolicy.create(root("isolated.sysfs"), root("cgroup.v2.proc"), 16,
+                parseCpuList("0-1"), null);
+        assertEquals(parseCpuList("2-7,10-14"), policy.isolated());
+        assertEquals(parseCpuList("4-7,12-15"), policy.tickless());
+        assertEquals(parseCpuList("0-1,5-7,13-15"), policy.allowed());
+        assertEquals(parseCpuList("5-7,13-15"), policy.reserved());
+        assertEquals(Source.ISOLATED, policy.source());
+    }
+
+    @Test
+    public void testCgroupV1() {
+        CpuReservationPolicy policy = CpuReservationPolicy.create(root("isolated.sysfs"), root("cgroup.v1.proc"), 16,
+                parseCpuList("0-1"), "");
+        assertEquals(parseCpuList("0-1,8-11"), policy.allowed());
+        assertEquals(parseCpuList("10-11"), policy.reserved());
+        assertEquals(Source.ISOLATED, policy.source());
+    }
+
+    @Test
+    public void testNoCgroup() {
+        CpuReservationPolicy policy = CpuReservationPolicy.create(root("isolated.sysfs"), root("epyc.sysfs"), 16,
+                null, null);
+        assertNull(policy.allowed());
+        assertEquals(parseCpuList("2-7,10-15"), policy.reserved());
+        assertEquals(Source.ISOLATED, policy.source());
+        assertEquals("CpuReservationPolicy{reserved={2, 3, 4, 5, 6, 7, 10, 11, 12, 13, 14, 15}, source=ISOLATED, " +
+                "isolated={2, 3, 4, 5, 6, 7, 10, 11, 12, 13, 14}, tickless={4, 5, 6, 7, 12, 13, 14, 15}, allowed=unknown}",
+                policy.toString());
+    }
+
+    @Test
+    public void testOverride() {
+        CpuReservationPolicy policy = CpuReservationPolicy.create(root("isolated.sysfs"), root("cgroup.v2.proc"), 16,
+                parseCpuList("0-1"), " f0 ");
+        assertEquals(parseCpuList("4-7"), policy.reserved());
+        assertEquals(Source.OVERRIDE, policy.source());
+        assertEquals(parseCpuList("2-7,10-14"), policy.isolated());
+
+        BitSet wide = CpuReservationPolicy.create(root("epyc.sysfs"), root("epyc.sysfs"), 256,
+                null, "1" + "0000000000000000" + "0000000000000002").reserved();
+        assertEquals(parseCpuList("1,128"), wide);
+    }
+
+    @Test
+    public void testNotIsolated() {
+        // with no isolated cpus fall back to the cpus the launching thread isn't bound to.
+        String sysfs = root("epyc.sysfs");
+        CpuReservationPolicy policy = CpuReservationPolicy.create(sysfs, sysfs, 16, parseCpuList("0-1"), null);
+        assertTrue(policy.isolated().isEmpty());
+        assertTrue(policy.tickless().isEmpty());
+        assertEquals(parseCpuList("2-15"), policy.reserved());
+        assertEquals(Source.BASE_AFFINITY, policy.source());
+
+        policy = CpuReservationPolicy.create(sysfs, sysfs, 16, parseCpuList("0-15"), null);
+        assertEquals(parseCpuList("1-15"), policy.reserved());
+        assertEquals(Source.ALL, policy.source());
+
+        policy = CpuReservationPolicy.create(sysfs, sysfs, 1, parseCpuList("0"), null);
+        assertTrue(policy.reserved().isEmpty());
+    }
+
+    @Test
+    public void testThisMachine() {
+        CpuReservationPolicy policy = AffinityLock.reservationPolicy();
+        System.out.println(policy);
+        assertEquals(AffinityLock.RESERVED_AFFINITY, policy.reserved());
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2016-2020 chronicle.software
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.openhft.affinity;
+
+import net.openhft.affinity.impl.Utilities;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.BitSet;
+
+import static org.junit.Assert.*;
+
+public class CpuSetTest {
+
+    /**
+     * @return the bytes the current thread allocates running a task, once warmed up, less what measuring allocates.
+     */
+    public static long allocatedBytes(Runnable task, int times) {
+        task.run();
+        final com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long id = Thread.currentThread().getId();
+        final long start0 = bean.getThreadAllocatedBytes(id);
+        final long overhead = bean.getThreadAllocatedBytes(id) - start0;
+        final long start = bean.getThreadAllocatedBytes(id);
+        for (int i = 0; i < times; i++)
+            task.run();
+        return bean.getThreadAllocatedBytes(id) - start - overhead;
+    }
+
+    /**
+     * Asserts a task creates less than a byte of garbage per run once warmed up, which for calls through the
+     * Foreign Function API is once C2 has compiled them.
+     */
+    public static void assertGarbageFree(Runnable task) {
+        final int times = 10_000;
+        long bytes = 0;
+        for (int round = 0; round < 50; round++) {
+            bytes = allocatedBytes(task, times);
+            if (bytes < times)
+                return;
+        }
+        fail("allocated " + bytes + " bytes in " + times + " calls");
+    }
+
+    @Test
+    public void parseAndFormat() {
+        final CpuSet cpus = CpuSet.parse("0-3,8, 10-11,130");
+        assertEquals("0-3,8,10-11,130", cpus.toString());
+        assertEquals(8, cpus.cardinality());
+        assertEquals(131, cpus.length());
+        assertEquals(Utilities.parseCpuList("0-3,8,10-11,130"), cpus.toBitSet());
+        assertEquals("", CpuSet.parse("").toString());
+        assertEquals("5", CpuSet.parse("5").toString());
+        try {
+            CpuSet.parse("3-x");
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void hex() {
+        assertEquals("f0f", CpuSet.parse("0-3,8-11").toHexString());
+        assertEquals("0", new CpuSet().toHexString());
+        assertEquals("10000000000000001", CpuSet.of(0, 64).toHexString());
+        assertEquals(CpuSet.of(0, 64), CpuSet.parseHex("0x10000000000000001"));
+        // as the kernel prints it, in groups of 32 cpus
+        assertEquals(CpuSet.parse("0-39"), CpuSet.parseHex("ff,ffffffff"));
+        final CpuSet cpus = CpuSet.parse("1,5,63-70,200");
+        assertEquals(cpus, CpuSet.parseHex(cpus.toHexString()));
+        assertEquals(cpus.toHexString(), Utilities.toHexString(cpus.toBitSet()));
+    }
+
+    @Test
+    public void mutableAndImmutable() {
+        final CpuSet cpus = new CpuSet(64);
+        cpus.set(2).set(70);
+        assertTrue(cpus.get(70));
+        assertFalse(cpus.get(3));
+        assertEquals(70, cpus.nextSetBit(3));
+        assertEquals(-1, cpus.nextSetBit(71));
+
+        final CpuSet frozen = cpus.toImmutable();
+        assertTrue(frozen.isImmutable());
+        assertSame(frozen, frozen.toImmutable());
+        assertEquals(cpus, frozen);
+        assertEquals(cpus.hashCode(), frozen.hashCode());
+        assertEquals(cpus.toBitSet().hashCode(), frozen.hashCode());
+        try {
+            frozen.set(1);
+            fail();
+        } catch (UnsupportedOperationException expected) {
+            // expected
+        }
+        cpus.clear(70);
+        assertEquals(CpuSet.of(2), cpus);
+        assertEquals("2,70", frozen.toString());
+        assertFalse(frozen.copy().isImmutable());
+
+        final BitSet bitSet = new BitSet();
+        bitSet.set(1000);
+        assertEquals(CpuSet.of(1000), cpus.copyFrom(bitSet));
+        assertEquals(CpuSet.of(1000), CpuSet.valueOf(bitSet));
+        assertTrue(cpus.intersects(CpuSet.of(3, 1000)));
+        assertFalse(cpus.intersects(CpuSet.of(3)));
+    }
+
+    @Test
+    public void readsAffinityWithoutGarbage() {
+        final CpuSet cpus = new CpuSet();
+        Affinity.getAffinity(cpus);
+        assertEquals(Affinity.getAffinity(), cpus.toBitSet());
+        final int cpu = cpus.nextSetBit(0);
+        final CpuSet before = cpus.copy();
+        try {
+            // any garbage per call would be at least 16 bytes, a few bytes are the JIT compiling.
+            assertGarbageFree(() -> {
+                Affinity.getAffinity(cpus);
+                Affinity.setAffinity(cpus);
+            });
+            assertGarbageFree(() -> Affinity.setAffinity(cpu));
+            Affinity.getAffinity(cpus);
+            assertEquals(CpuSet.of(cpu), cpus);
+        } finally {
+            Affinity.setAffinity(before);
+        }
+    }
+}
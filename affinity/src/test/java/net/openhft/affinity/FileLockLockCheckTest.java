@@ -17,6 +17,8 @@
 
 package net.openhft.affinity;
 
+import net.openhft.affinity.lockchecker.FileLockBasedLockChecker;
+import net.openhft.affinity.lockchecker.LockChecker;
 import net.openhft.affinity.testimpl.TestFileLockBasedLockChecker;
 import org.junit.Assert;
 import org.junit.Assume;
@@ -26,6 +28,16 @@ import org.junit.Test;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static net.openhft.affinity.LockCheck.IS_LINUX;
 
@@ -62,6 +74,146 @@ public class FileLockLockCheckTest extends BaseAffinityTest {
         Assert.assertEquals(123L, LockCheck.getProcessForCpu(cpu));
     }
 
+    @Test
+    public void priorityAndRevocation() throws IOException {
+        final int cpu = 45;
+        try {
+            Assert.assertTrue(LockCheck.updateCpu(cpu, 7));
+            Assert.assertEquals(LockCheck.getPID(), LockCheck.getProcessForCpu(cpu));
+            Assert.assertEquals(7, LockCheck.getPriorityForCpu(cpu));
+
+            Assert.assertEquals(Integer.MIN_VALUE, LockCheck.getRevocationPriority(cpu));
+            Assert.assertTrue(LockCheck.requestRevocation(cpu, 9));
+            Assert.assertEquals(9, LockCheck.getRevocationPriority(cpu));
+            LockCheck.cancelRevocation(cpu);
+            Assert.assertEquals(Integer.MIN_VALUE, LockCheck.getRevocationPriority(cpu));
+
+            // a request from another process still running is only replaced by a higher priority
+            Assert.assertTrue(lockChecker.requestRevocation(cpu, "1\npriority=9"));
+            Assert.assertFalse(LockCheck.requestRevocation(cpu, 9));
+            Assert.assertEquals(9, LockCheck.getRevocationPriority(cpu));
+            Assert.assertEquals("1", lockChecker.getRevocationRequest(cpu)[0]);
+            Assert.assertTrue(LockCheck.requestRevocation(cpu, 10));
+            Assert.assertEquals(10, LockCheck.getRevocationPriority(cpu));
+            // but a request of a process which has exited is
+            lockChecker.cancelRevocation(cpu);
+            Assert.assertTrue(lockChecker.requestRevocation(cpu, Integer.MAX_VALUE + "\npriority=9"));
+            Assert.assertTrue(LockCheck.requestRevocation(cpu, 2));
+            Assert.assertEquals(2, LockCheck.getRevocationPriority(cpu));
+            LockCheck.cancelRevocation(cpu);
+        } finally {
+            LockCheck.releaseLock(cpu);
+        }
+    }
+
+    @Test
+    public void releasesLockOfReusedPid() throws IOException {
+        // a lock file still locked, e.g. by a child of the process, which records our pid with another start time
+        final int cpu = 47;
+        final ProcessIdentity current = ProcessIdentity.current();
+        Assume.assumeTrue(current.isVerifiable());
+        final File file = lockChecker.doToFile(cpu);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock lock = channel.lock()) {
+            Assert.assertTrue(lock.isValid());
+            channel.write(ByteBuffer.wrap((current.pid() + "\npriority=0\nstart=" + (current.startTime() + 1)
+                    + "\nboot=" + ProcessIdentity.currentBootId() + "\n2020.01.01 at 00:00:00 GMT").getBytes()));
+            Assert.assertTrue(LockCheck.isCpuFree(cpu));
+            Assert.assertFalse(file.exists());
+        }
+
+        Assert.assertTrue(LockCheck.updateCpu(cpu));
+        Assert.assertEquals(current, LockCheck.getHolderForCpu(cpu));
+        Assert.assertFalse(LockCheck.isCpuFree(cpu));
+    }
+
+    @Test
+    public void lockDirectoryOfDomain() throws IOException {
+        final File dir = new File(folder.getRoot(), "affinity-" + LockCheck.domain("pool 1"));
+        Assert.assertEquals("affinity-pool_1", dir.getName());
+        final FileLockBasedLockChecker domain = new FileLockBasedLockChecker(dir, 0);
+        Assert.assertTrue(domain.obtainLock(3, LockCheck.getPID() + ""));
+        Assert.assertTrue(new File(dir, "cpu-3.lock").exists());
+        // not seen by the default domain
+        Assert.assertTrue(LockCheck.isCpuFree(3));
+        Assert.assertTrue(domain.releaseLock(3));
+        Assert.assertNull(LockCheck.domain(" "));
+    }
+
+    @Test
+    public void leaseLostToAnotherProcess() throws Exception {
+        final File dir = folder.newFolder("leased");
+        final FileLockBasedLockChecker leased = new FileLockBasedLockChecker(dir, 300);
+        final BlockingQueue<Integer> lost = new LinkedBlockingQueue<>();
+        final AtomicBoolean responsive = new AtomicBoolean(true);
+        leased.onLeaseLost(lost::add);
+        leased.renewWhile(id -> responsive.get());
+        Assert.assertTrue(leased.obtainLock(4, LockCheck.getPID() + ""));
+        final File lockFile = new File(dir, "cpu-4.lock");
+        final long renewed = lockFile.lastModified();
+        Thread.sleep(400);
+        Assert.assertNull(lost.poll());
+        Assert.assertTrue(lockFile.lastModified() > renewed);
+
+        // another process can't take it while it is renewed
+        final FileLockBasedLockChecker other = new FileLockBasedLockChecker(dir, 300);
+        Assert.assertFalse(other.obtainLock(4, "123"));
+
+        // but can once the holder hangs and the lease runs out
+        responsive.set(false);
+        Thread.sleep(400);
+        Assert.assertTrue(other.obtainLock(4, "123"));
+        Assert.assertEquals("123", other.getMetaInfo(4));
+        Assert.assertEquals(Integer.valueOf(4), lost.poll(5, TimeUnit.SECONDS));
+        // releasing it doesn't delete the other process' lock file
+        Assert.assertFalse(leased.releaseLock(4));
+        Assert.assertTrue(lockFile.exists());
+        Assert.assertTrue(other.releaseLock(4));
+    }
+
+    @Test
+    public void releaseKeepsReplacedLockFile() throws Exception {
+        final File dir = folder.newFolder("replaced");
+        final FileLockBasedLockChecker checker = new FileLockBasedLockChecker(dir, 0);
+        Assert.assertTrue(checker.obtainLock(5, LockCheck.getPID() + ""));
+        final File lockFile = new File(dir, "cpu-5.lock");
+
+        // another process took the cpu with a new lock file before this one noticed
+        Assert.assertTrue(lockFile.delete());
+        Files.write(lockFile.toPath(), "123\n".getBytes());
+        Assert.assertFalse(checker.releaseLock(5));
+        Assert.assertTrue(lockFile.exists());
+    }
+
+    @Test
+    public void lockedMetaInfoChangesNothing() throws IOException {
+        final File dir = folder.newFolder("snapshot");
+        final FileLockBasedLockChecker checker = new FileLockBasedLockChecker(dir, 300);
+        // left by a process which died
+        final File orphaned = new File(dir, "cpu-5.lock");
+        Files.write(orphaned.toPath(), "123\nwhen".getBytes());
+        // held by another process, one which renews its lease, and one which hung
+        final File held = new File(dir, "cpu-6.lock");
+        final File expired = new File(dir, "cpu-7.lock");
+        Files.write(held.toPath(), "124\nwhen".getBytes());
+        Files.write(expired.toPath(), "125\nwhen".getBytes());
+        Assert.assertTrue(expired.setLastModified(System.currentTimeMillis() - 1000));
+        try (FileChannel heldChannel = FileChannel.open(held.toPath(), StandardOpenOption.WRITE);
+             FileChannel expiredChannel = FileChannel.open(expired.toPath(), StandardOpenOption.WRITE);
+             FileLock heldLock = heldChannel.lock();
+             FileLock expiredLock = expiredChannel.lock()) {
+            Assert.assertTrue(heldLock.isValid() && expiredLock.isValid());
+
+            final Map<Integer, String[]> locked = checker.getLockedMetaInfo(0);
+            Assert.assertArrayEquals(new String[]{"123", LockChecker.ORPHANED}, locked.get(5));
+            Assert.assertArrayEquals(new String[]{"124"}, locked.get(6));
+            Assert.assertArrayEquals(new String[]{"125", LockChecker.EXPIRED}, locked.get(7));
+            Assert.assertTrue(orphaned.exists());
+            Assert.assertTrue(held.exists());
+            Assert.assertTrue(expired.exists());
+        }
+    }
+
     @Test
     public void shouldNotBlowUpIfPidFileIsEmpty() throws Exception {
         LockCheck.updateCpu(cpu);
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2016-2020 chronicle.software
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.openhft.affinity;
+
+import net.openhft.affinity.JvmThreadConfiner.Kind;
+import net.openhft.affinity.impl.LinuxJNAAffinity;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class JvmThreadConfinerTest extends BaseAffinityTest {
+
+    private static String root(String name) {
+        return new File(JvmThreadConfinerTest.class.getClassLoader().getResource(name).getFile()).getAbsolutePath();
+    }
+
+    @Test
+    public void classify() {
+        assertEquals(Kind.GC, Kind.of("GC Thread#3"));
+        assertEquals(Kind.GC, Kind.of("G1 Conc#0"));
+        assertEquals(Kind.COMPILER, Kind.of("C2 CompilerThre"));
+        assertEquals(Kind.SIGNAL_DISPATCHER, Kind.of("Signal Dispatch"));
+        assertEquals(Kind.JVM, Kind.of("VM Thread"));
+        assertEquals(Kind.APPLICATION, Kind.of("java"));
+        assertEquals(Kind.APPLICATION, Kind.of("pricing"));
+    }
+
+    @Test
+    public void confine() {
+        String proc = root("jvm.threads.proc");
+        Map<Integer, String> threads = JvmThreadConfiner.threads(proc);
+        assertEquals(10, threads.size());
+        assertEquals("GC Thread#0", threads.get(101));
+
+        RecordingAffinity affinity = new RecordingAffinity();
+        BitSet housekeeping = new BitSet();
+        housekeeping.set(0, 2);
+        JvmThreadConfiner confiner = new JvmThreadConfiner(proc, housekeeping,
+                EnumSet.complementOf(EnumSet.of(Kind.APPLICATION)), affinity);
+        assertEquals(8, confiner.confineNow());
+        assertEquals("[101, 102, 103, 104, 105, 106, 107, 109]", affinity.set.keySet().toString());
+        assertEquals(housekeeping, affinity.set.get(105));
+
+        // only new threads are confined again
+        affinity.set.clear();
+        assertEquals(0, confiner.confineNow());
+        assertTrue(affinity.set.isEmpty());
+
+        JvmThreadConfiner compilers = new JvmThreadConfiner(proc, housekeeping, EnumSet.of(Kind.COMPILER), affinity);
+        assertEquals(2, compilers.confineNow());
+        assertEquals("[106, 107]", affinity.set.keySet().toString());
+    }
+
+    @Test
+    public void confineWhenNamed() throws IOException {
+        Path proc = Files.createTempDirectory("proc");
+        Path comm = proc.resolve("self/task/200/comm");
+        Files.createDirectories(comm.getParent());
+        // a thread the JVM hasn't named yet
+        Files.write(comm, "java\n".getBytes(StandardCharsets.UTF_8));
+
+        RecordingAffinity affinity = new RecordingAffinity();
+        JvmThreadConfiner confiner = new JvmThreadConfiner(proc.toString(), new BitSet(),
+                EnumSet.complementOf(EnumSet.of(Kind.APPLICATION)), affinity);
+        assertEquals(0, confiner.confineNow());
+
+        Files.write(comm, "C2 CompilerThre\n".getBytes(StandardCharsets.UTF_8));
+        assertEquals(1, confiner.confineNow());
+        assertEquals("[200]", affinity.set.keySet().toString());
+        assertEquals(0, confiner.confineNow());
+    }
+
+    @Test
+    public void hasThreadNames() {
+        Map<Integer, String> threads = new HashMap<>();
+        threads.put(100, "java");
+        assertTrue(JvmThreadConfiner.hasThreadNames(threads));
+        // Java 8 on Linux
+        threads.put(101, "java");
+        threads.put(102, "java");
+        assertFalse(JvmThreadConfiner.hasThreadNames(threads));
+        threads.put(103, "GC Thread#0");
+        assertTrue(JvmThreadConfiner.hasThreadNames(threads));
+        assertTrue(JvmThreadConfiner.hasThreadNames(JvmThreadConfiner.threads(root("jvm.threads.proc"))));
+    }
+
+    @Test
+    public void threadsOfThisProcess() {
+        assumeTrue(LockCheck.IS_LINUX && Affinity.getAffinityImpl() instanceof LinuxJNAAffinity);
+        Map<Integer, String> threads = JvmThreadConfiner.threads();
+        assertTrue(threads.containsKey(Affinity.getThreadId()));
+        assertTrue(threads.toString(), threads.values().stream().anyMatch(name -> Kind.of(name) == Kind.JVM));
+        // the current thread
+        assertEquals(Affinity.getAffinity(), Affinity.getAffinity(Affinity.getThreadId()));
+    }
+
+    static class RecordingAffinity implements IAffinity {
+        final Map<Integer, BitSet> set = new TreeMap<>();
+
+        @Override
+        public BitSet getAffinity() {
+            return new BitSet();
+        }
+
+        @Override
+        public void setAffinity(BitSet affinity) {
+        }
+
+        @Override
+        public void setAffinity(int threadId, BitSet affinity) {
+            set.put(threadId, affinity);
+        }
+
+        @Override
+        public int getCpu() {
+            return -1;
+        }
+
+        @Override
+        public int getProcessId() {
+            return 0;
+        }
+
+        @Override
+        public int getThreadId() {
+            return 0;
+        }
+    }
+}
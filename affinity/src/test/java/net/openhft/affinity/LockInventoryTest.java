@@ -0,0 +1,584 @@
+/*
+ * Copyright 2016-2020 chronicle.software
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.openhft.affinity;
+
+import net.openhft.affinity.impl.NoCpuLayout;
+import net.openhft.affinity.impl.NullAffinity;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class LockInventoryTest extends BaseAffinityTest {
+
+    /**
+     * @return an inventory for a captured layout with every cpu but 0 reservable, regardless of this machine.
+     */
+    static LockInventory reservableInventory(String sysfs) throws IOException {
+        return reservableInventory(AffinityStrategiesTest.sysfsLayout(sysfs));
+    }
+
+    static LockInventory reservableInventory(CpuLayout cpuLayout) {
+        return new LockInventory(cpuLayout) {
+            @Override
+            protected AffinityLock newLock(int cpuId, boolean base, boolean reservable) {
+                return super.newLock(cpuId, base, cpuId > 0);
+            }
+        };
+    }
+
+    /**
+     * Lock the file of a cpu as another process holding it would, until the channel is closed.
+     */
+    static FileChannel holdLockFile(int cpu, String metaInfo) throws IOException {
+        final File file = new File(LockCheck.lockDirectory(), "cpu-" + cpu + ".lock");
+        final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.lock();
+        channel.write(ByteBuffer.wrap((metaInfo + "\n2020.01.01 at 00:00:00 GMT").getBytes()));
+        return channel;
+    }
+
+    @Before
+    public void before() {
+        assumeTrue(!(Affinity.getAffinityImpl() instanceof NullAffinity));
+    }
+
+    @Test
+    public void acquiresLockOfDeadProcess() throws IOException {
+        assumeTrue(LockCheck.IS_LINUX);
+        final LockInventory inventory = reservableInventory("dual.socket.sysfs");
+        // a lock file still locked, e.g. by a child it started, of a process which has exited
+        try (FileChannel held = holdLockFile(3, Integer.MAX_VALUE + "\npriority=0\nstart=1")) {
+            assertTrue(held.isOpen());
+            assertFalse(LockCheck.isProcessRunning(Integer.MAX_VALUE));
+            final AffinityLock al = inventory.tryAcquireLock(false, 3);
+            assertNotNull(al);
+            assertEquals(ProcessIdentity.current(), LockCheck.getHolderForCpu(3));
+            inventory.release(false);
+        }
+    }
+
+    @Test
+    public void acquiresLockOfReusedPid() throws IOException {
+        assumeTrue(LockCheck.IS_LINUX);
+        final ProcessIdentity current = ProcessIdentity.current();
+        assumeTrue(current.isVerifiable());
+        final LockInventory inventory = reservableInventory("dual.socket.sysfs");
+        // locked by an earlier process with this pid
+        try (FileChannel held = holdLockFile(12, current.pid() + "\npriority=0\nstart=" + (current.startTime() + 1)
+                + "\nboot=" + ProcessIdentity.currentBootId())) {
+            assertTrue(held.isOpen());
+            assertNotNull(inventory.tryAcquireLock(false, 12));
+            assertEquals(current, LockCheck.getHolderForCpu(12));
+            inventory.release(false);
+        }
+        // or by this pid before a reboot
+        if (!ProcessIdentity.currentBootId().isEmpty())
+            try (FileChannel held = holdLockFile(13, current.pid() + "\npriority=0\nstart=" + current.startTime()
+                    + "\nboot=00000000-0000-0000-0000-000000000000")) {
+                assertTrue(held.isOpen());
+                assertNotNull(inventory.tryAcquireLock(false, 13));
+                inventory.release(false);
+            }
+        // but not when held by this process
+        try (FileChannel held = holdLockFile(14, current.pid() + "\npriority=0\n" + current.toMetaInfo())) {
+            assertTrue(held.isOpen());
+            assertNull(inventory.tryAcquireLock(false, 14));
+        }
+    }
+
+    @Test
+    public void holderResponsive() throws IOException, InterruptedException {
+        final LockInventory inventory = reservableInventory("dual.socket.sysfs");
+        assertTrue(inventory.isHolderResponsive(7));
+        final Object monitor = new Object();
+        final CountDownLatch locked = new CountDownLatch(1);
+        final Thread holder = new Thread(() -> {
+            assertNotNull(inventory.tryAcquireLock(false, 7));
+            locked.countDown();
+            synchronized (monitor) {
+                inventory.release(false);
+            }
+        });
+        synchronized (monitor) {
+            holder.start();
+            locked.await();
+            while (holder.getState() != Thread.State.BLOCKED)
+                Thread.sleep(1);
+            // e.g. deadlocked
+            assertFalse(inventory.isHolderResponsive(7));
+        }
+        holder.join();
+        assertTrue(inventory.isHolderResponsive(7));
+
+        final Thread dead = new Thread(() -> inventory.tryAcquireLock(false, 8));
+        dead.start();
+        dead.join();
+        assertFalse(inventory.isHolderResponsive(8));
+        assertEquals(1, inventory.releaseDeadThreads());
+    }
+
+    @Test
+    public void lookupsDontRegisterCleaners() throws Exception {
+        final LockInventory inventory = reservableInventory("dual.socket.sysfs");
+        final int pending = LockCleaner.pending();
+        final Thread t = new Thread(() -> {
+            assertNull(inventory.current());
+            inventory.release(false);
+        });
+        t.start();
+        t.join();
+        // cleaners of earlier tests may be run meanwhile, but none are added
+        assertTrue(LockCleaner.pending() <= pending);
+    }
+
+    @Test
+    public void acquireLockOnNode() throws IOException {
+        // node 0 is cpus 0, 1, 8 and 9, and cpu 0 is never handed out
+        LockInventory inventory = reservableInventory("dual.socket.sysfs");
+        AffinityLock al9 = inventory.acquireLockOnNode(false, 0);
+        AffinityLock al8 = inventory.acquireLockOnNode(false, 0);
+        AffinityLock al1 = inventory.acquireLockOnNode(false, 0);
+        AffinityLock none = inventory.acquireLockOnNode(false, 0);
+        assertEquals(9, al9.cpuId());
+        assertEquals(8, al8.cpuId());
+        assertEquals(1, al1.cpuId());
+        assertEquals(-1, none.cpuId());
+        al9.release();
+        assertEquals(9, inventory.acquireLockOnNode(false, 0).cpuId());
+        inventory.release(false);
+    }
+
+    @Test
+    public void acquireLockAbove256Cpus() {
+        for (int cpus : new int[]{512, 1024}) {
+            LockInventory inventory = reservableInventory(new NoCpuLayout(cpus));
+            AffinityLock last = inventory.tryAcquireLock(false, cpus - 1);
+            assertNotNull(last);
+            assertEquals(cpus - 1, last.cpuId());
+            assertFalse(LockCheck.isCpuFree(cpus - 1));
+            assertEquals(cpus - 2, inventory.acquireLock(false, AffinityLock.ANY_CPU, AffinityStrategies.ANY).cpuId());
+            assertEquals(300, inventory.acquireLock(false, 300, AffinityStrategies.ANY).cpuId());
+            assertNull(inventory.tryAcquireLock(false, cpus));
+            inventory.release(false);
+            assertTrue(LockCheck.isCpuFree(cpus - 1));
+        }
+    }
+
+    @Test
+    public void acquireLocksConcurrently() throws InterruptedException {
+        final LockInventory inventory = reservableInventory(new NoCpuLayout(128));
+        final int threads = 32;
+        final Set<Integer> cpuIds = ConcurrentHashMap.newKeySet();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch acquired = new CountDownLatch(threads);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Thread[] ts = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            ts[i] = new Thread(() -> {
+                try {
+                    start.await();
+                    AffinityLock al = inventory.acquireLock(false, AffinityLock.ANY_CPU, AffinityStrategies.ANY);
+                    if (al.cpuId() > 0)
+                        cpuIds.add(al.cpuId());
+                    acquired.countDown();
+                    release.await();
+                    inventory.release(false);
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }, "acquirer-" + i);
+            ts[i].start();
+        }
+        start.countDown();
+        acquired.await();
+        // every thread got a different cpu
+        assertEquals(threads, cpuIds.size());
+        for (int cpuId : cpuIds)
+            assertFalse(LockCheck.isCpuFree(cpuId));
+        release.countDown();
+        for (Thread t : ts)
+            t.join();
+        for (int cpuId : cpuIds)
+            assertTrue(LockCheck.isCpuFree(cpuId));
+    }
+
+    @Test
+    public void currentAndRelease() {
+        LockInventory inventory = reservableInventory(new NoCpuLayout(64));
+        assertNull(inventory.current());
+        AffinityLock al = inventory.acquireLock(false, 40, AffinityStrategies.ANY);
+        assertEquals(40, al.cpuId());
+        assertSame(al, inventory.current());
+        AffinityLock al2 = inventory.acquireLock(false, 41, AffinityStrategies.ANY);
+        assertSame(al2, inventory.current());
+        inventory.release(false);
+        assertNull(inventory.current());
+        assertTrue(LockCheck.isCpuFree(40));
+        assertTrue(LockCheck.isCpuFree(41));
+    }
+
+    @Test
+    public void releaseDeadThreads() throws InterruptedException {
+        LockInventory inventory = reservableInventory(new NoCpuLayout(64));
+        AtomicReference<AffinityLock> lock = new AtomicReference<>();
+        Thread t = new Thread(() -> lock.set(inventory.acquireLock(false, 42, AffinityStrategies.ANY)), "dies-holding-lock");
+        t.start();
+        t.join();
+        assertEquals(42, lock.get().cpuId());
+
+        // releasing this thread's locks no longer sweeps other threads
+        inventory.release(false);
+        assertFalse(LockCheck.isCpuFree(42));
+        assertNull(inventory.tryAcquireLock(false, 42));
+
+        assertEquals(1, inventory.releaseDeadThreads());
+        assertEquals(0, inventory.releaseDeadThreads());
+        assertTrue(LockCheck.isCpuFree(42));
+        assertEquals(42, inventory.tryAcquireLock(false, 42).cpuId());
+        inventory.release(false);
+    }
+
+    @Test
+    public void migrate() {
+        LockInventory inventory = reservableInventory(new NoCpuLayout(64));
+        AffinityLock al = inventory.tryAcquireLock(false, 47);
+        AffinityLock other = inventory.tryAcquireLock(false, 49);
+
+        // a cpu which is taken leaves the thread where it is
+        assertNull(inventory.migrate(al, 49));
+        assertFalse(LockCheck.isCpuFree(47));
+
+        AffinityLock al2 = inventory.migrate(al, 48);
+        assertEquals(48, al2.cpuId());
+        assertSame(al2, inventory.current());
+        assertTrue(LockCheck.isCpuFree(47));
+        assertFalse(LockCheck.isCpuFree(48));
+        try {
+            inventory.migrate(al, 50);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+
+        AffinityLock al3 = inventory.migrate(al2, AffinityLock.ANY_CPU, AffinityStrategies.ANY);
+        assertNotEquals(48, al3.cpuId());
+        assertTrue(LockCheck.isCpuFree(48));
+
+        inventory.release(false);
+        assertTrue(LockCheck.isCpuFree(al3.cpuId()));
+        assertTrue(LockCheck.isCpuFree(other.cpuId()));
+    }
+
+    @Test
+    public void migrateWholeCore() throws IOException {
+        // cpus i and i+8 share a core.
+        LockInventory inventory = reservableInventory("epyc.sysfs");
+        AffinityLock al = inventory.acquireCore(false, AffinityLock.ANY_CPU, AffinityStrategies.ANY);
+        int cpu = al.cpuId();
+        int sibling = cpu < 8 ? cpu + 8 : cpu - 8;
+        AffinityLock other = inventory.tryAcquireLock(false, 12);
+
+        // the core of cpu 4 isn't free as a whole
+        assertNull(inventory.migrate(al, 4));
+        assertTrue(LockCheck.isCpuFree(4));
+        assertFalse(LockCheck.isCpuFree(sibling));
+
+        AffinityLock al2 = inventory.migrate(al, 3);
+        assertEquals(3, al2.cpuId());
+        assertSame(al2, inventory.current());
+        assertFalse(LockCheck.isCpuFree(3));
+        assertFalse(LockCheck.isCpuFree(11));
+        assertTrue(LockCheck.isCpuFree(cpu));
+        assertTrue(LockCheck.isCpuFree(sibling));
+        assertNotNull(inventory.tryAcquireLock(false, sibling));
+
+        inventory.release(false);
+        assertTrue(LockCheck.isCpuFree(3));
+        assertTrue(LockCheck.isCpuFree(11));
+        assertTrue(LockCheck.isCpuFree(other.cpuId()));
+    }
+
+    @Test
+    public void releaseCollectedThreads() throws InterruptedException {
+        LockInventory inventory = reservableInventory(new NoCpuLayout(64));
+        Thread t = new Thread(() -> inventory.tryAcquireLock(false, 46), "dies-holding-lock");
+        t.start();
+        t.join();
+        assertFalse(LockCheck.isCpuFree(46));
+
+        // released once the thread's locals are collected, without a sweep
+        long end = System.currentTimeMillis() + 10_000;
+        while (!LockCheck.isCpuFree(46) && System.currentTimeMillis() < end) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertTrue(LockCheck.isCpuFree(46));
+        assertEquals(0, inventory.releaseDeadThreads());
+    }
+
+    @Test
+    public void acquireWithTimeout() throws InterruptedException, TimeoutException {
+        LockInventory inventory = reservableInventory(new NoCpuLayout(64));
+        CountDownLatch acquired = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            inventory.tryAcquireLock(false, 43);
+            acquired.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            inventory.release(false);
+        }, "holds-43");
+        holder.start();
+        acquired.await();
+
+        long start = System.nanoTime();
+        try {
+            inventory.tryAcquireLock(false, 43, 100, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (TimeoutException expected) {
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        }
+
+        // the release by another thread wakes this one well before the timeout
+        release.countDown();
+        start = System.nanoTime();
+        AffinityLock al = inventory.tryAcquireLock(false, 43, 30, TimeUnit.SECONDS);
+        assertEquals(43, al.cpuId());
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+        inventory.release(false);
+        holder.join();
+        assertTrue(LockCheck.isCpuFree(43));
+
+        try {
+            inventory.tryAcquireLock(false, 64, 1, TimeUnit.SECONDS);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void revokeLowerPriority() throws InterruptedException, TimeoutException, IOException {
+        LockInventory inventory = reservableInventory(new NoCpuLayout(64));
+        CountDownLatch acquired = new CountDownLatch(1);
+        AtomicReference<AffinityLock> held = new AtomicReference<>();
+        BlockingQueue<Integer> revocations = new LinkedBlockingQueue<>();
+        Thread holder = new Thread(() -> {
+            held.set(inventory.tryAcquireLock(false, 44));
+            try {
+                held.set(inventory.acquireLock(false, 45, 1, (al, priority) -> revocations.add(priority), 1, TimeUnit.SECONDS));
+                acquired.countDown();
+                // a safe point
+                while (!held.get().isRevoked())
+                    Thread.sleep(1);
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+            inventory.release(false);
+        }, "background");
+        holder.start();
+        acquired.await();
+        assertEquals(1, held.get().priority());
+
+        // an equal priority doesn't revoke
+        try {
+            inventory.acquireLock(false, 45, 1, null, 50, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (TimeoutException expected) {
+            assertFalse(held.get().isRevoked());
+        }
+
+        AffinityLock al = inventory.acquireLock(false, 45, 5, null, 30, TimeUnit.SECONDS);
+        assertEquals(45, al.cpuId());
+        assertEquals(5, al.priority());
+        assertFalse(al.isRevoked());
+        assertEquals(Integer.valueOf(5), revocations.poll());
+        assertNull(revocations.poll());
+        if (LockCheck.IS_LINUX)
+            assertEquals(5, LockCheck.getPriorityForCpu(45));
+        inventory.release(false);
+        holder.join();
+        assertTrue(LockCheck.isCpuFree(44));
+        assertTrue(LockCheck.isCpuFree(45));
+    }
+
+    @Test
+    public void revocationWithdrawnOnTimeout() throws InterruptedException, IOException {
+        LockInventory inventory = reservableInventory(new NoCpuLayout(64));
+        CountDownLatch acquired = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicReference<AffinityLock> held = new AtomicReference<>();
+        Thread holder = new Thread(() -> {
+            held.set(inventory.tryAcquireLock(false, 46));
+            acquired.countDown();
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+            inventory.release(false);
+        }, "holder");
+        holder.start();
+        acquired.await();
+        try {
+            // the holder never gives it up
+            inventory.acquireLock(false, 46, 5, null, 50, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (TimeoutException expected) {
+            // so the request is withdrawn
+            assertFalse(held.get().isRevoked());
+        } finally {
+            done.countDown();
+            holder.join();
+        }
+        assertTrue(LockCheck.isCpuFree(46));
+    }
+
+    @Test
+    public void acquireGroup() throws IOException {
+        // cpus 0-3 & 8-11 share one L3, cpus 4-7 & 12-15 share another, cpus i and i+8 share a core.
+        CpuLayout epyc = AffinityStrategiesTest.sysfsLayout("epyc.sysfs");
+        CpuLayout original = AffinityLock.cpuLayout();
+        AffinityLock.cpuLayout(epyc);
+        try {
+            LockInventory inventory = reservableInventory(epyc);
+            AffinityLock[] locks = inventory.acquireGroup(new AffinityGroup()
+                    .role("feeder", 1, AffinityStrategies.SAME_L3)
+                    .role("worker", 3, AffinityStrategies.SAME_L3)
+                    .slots());
+            assertNotNull(locks);
+            assertEquals(4, locks.length);
+            BitSet cores = new BitSet();
+            for (AffinityLock al : locks) {
+                assertEquals(epyc.l3CacheId(locks[0].cpuId()), epyc.l3CacheId(al.cpuId()));
+                cores.set(epyc.coreId(al.cpuId()));
+                assertFalse(al.isBound());
+                assertFalse(LockCheck.isCpuFree(al.cpuId()));
+            }
+            assertEquals(4, cores.cardinality());
+            assertSame(locks[3], inventory.current());
+
+            // five cores sharing an L3 don't exist, so nothing is reserved
+            BitSet free = freeCpus(epyc);
+            assertNull(inventory.acquireGroup(new AffinityGroup().role("worker", 5, AffinityStrategies.SAME_L3).slots()));
+            assertEquals(free, freeCpus(epyc));
+
+            inventory.release(false);
+            for (AffinityLock al : locks)
+                assertTrue(LockCheck.isCpuFree(al.cpuId()));
+        } finally {
+            AffinityLock.cpuLayout(original);
+        }
+    }
+
+    @Test
+    public void acquireCpuSet() throws IOException {
+        // cpus 0-3 & 8-11 share one L3, cpus 4-7 & 12-15 share another, cpus i and i+8 share a core.
+        CpuLayout epyc = AffinityStrategiesTest.sysfsLayout("epyc.sysfs");
+        CpuLayout original = AffinityLock.cpuLayout();
+        AffinityLock.cpuLayout(epyc);
+        try {
+            LockInventory inventory = reservableInventory(epyc);
+            AffinityCpuSetLock cpus = inventory.acquireCpuSet(3, false, AffinityStrategies.SAME_L3);
+            assertNotNull(cpus);
+            assertEquals(3, cpus.size());
+            int l3 = epyc.l3CacheId(cpus.cpus().nextSetBit(0));
+            cpus.cpus().stream().forEach(cpu -> {
+                assertEquals(l3, epyc.l3CacheId(cpu));
+                assertFalse(LockCheck.isCpuFree(cpu));
+                assertNull(inventory.tryAcquireLock(false, cpu));
+            });
+            assertTrue(inventory.dumpLocks(), inventory.dumpLocks().contains("CPU set " + cpus.cpus()));
+            // not held by this thread
+            assertNull(inventory.current());
+            inventory.release(false);
+            assertTrue(cpus.isReserved());
+
+            AffinityCpuSetLock cores = inventory.acquireCpuSet(2, true, AffinityStrategies.SAME_L3);
+            assertNotNull(cores);
+            assertEquals(4, cores.size());
+            cores.cpus().stream().forEach(cpu -> assertTrue(cores.cpus().get(cpu < 8 ? cpu + 8 : cpu - 8)));
+
+            assertNull(inventory.acquireCpuSet(16, false));
+
+            cpus.release();
+            cores.close();
+            assertFalse(cpus.isReserved());
+            BitSet reserved = cpus.cpus();
+            reserved.or(cores.cpus());
+            reserved.stream().forEach(cpu -> assertTrue(LockCheck.isCpuFree(cpu)));
+        } finally {
+            AffinityLock.cpuLayout(original);
+        }
+    }
+
+    @Test
+    public void acquireCoreLocksEverySibling() throws IOException {
+        // cpus i and i+8 share a core.
+        CpuLayout epyc = AffinityStrategiesTest.sysfsLayout("epyc.sysfs");
+        LockInventory inventory = reservableInventory(epyc);
+        // another process holds one cpu of core 7
+        assertTrue(LockCheck.replacePid(15, 123));
+        try {
+            assertEquals(123L, inventory.coreHolders(7).get(15).pid());
+            assertFalse(inventory.coreHolders(7).containsKey(7));
+
+            AffinityLock al = inventory.acquireCore(false, AffinityLock.ANY_CPU, AffinityStrategies.ANY);
+            int cpu = al.cpuId();
+            int sibling = cpu < 8 ? cpu + 8 : cpu - 8;
+            assertTrue(cpu != 7 && cpu != 15);
+            assertFalse(LockCheck.isCpuFree(cpu));
+            assertFalse(LockCheck.isCpuFree(sibling));
+            assertEquals(ProcessIdentity.current(), inventory.coreHolders(cpu).get(sibling));
+            // cpu 7 was left free, as its core couldn't be reserved as a whole
+            assertTrue(LockCheck.isCpuFree(7));
+
+            inventory.release(false);
+            assertTrue(LockCheck.isCpuFree(cpu));
+            assertTrue(LockCheck.isCpuFree(sibling));
+        } finally {
+            LockCheck.releaseLock(15);
+        }
+    }
+
+    private static BitSet freeCpus(CpuLayout cpuLayout) {
+        BitSet free = new BitSet();
+        for (int i = 0; i < cpuLayout.cpus(); i++)
+            if (LockCheck.isCpuFree(i))
+                free.set(i);
+        return free;
+    }
+}
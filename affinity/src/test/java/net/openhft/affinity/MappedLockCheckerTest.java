@@ -0,0 +1,228 @@
+/*
+ * Copyright 2016-2020 chronicle.software
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.openhft.affinity;
+
+import net.openhft.affinity.lockchecker.LockChecker;
+import net.openhft.affinity.lockchecker.MappedLockChecker;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static net.openhft.affinity.LockCheck.IS_LINUX;
+import static org.junit.Assert.*;
+
+public class MappedLockCheckerTest extends BaseAffinityTest {
+    private File table;
+    private MappedLockChecker lockChecker;
+
+    @Before
+    public void before() throws IOException {
+        Assume.assumeTrue(IS_LINUX);
+        table = File.createTempFile("affinity-cpu-locks", "");
+        lockChecker = new MappedLockChecker(table);
+    }
+
+    @After
+    public void after() {
+        if (table != null)
+            table.delete();
+    }
+
+    @Test
+    public void obtainAndRelease() throws IOException {
+        final String metaInfo = LockCheck.getPID() + "\npriority=3";
+        assertTrue(lockChecker.isLockFree(3));
+        assertTrue(lockChecker.obtainLock(3, metaInfo + "\nstart=" + ProcessIdentity.current().startTime() + "\nboot=" + ProcessIdentity.currentBootId()));
+        assertFalse(lockChecker.isLockFree(3));
+        assertFalse(lockChecker.obtainLock(3, metaInfo));
+        assertEquals(Long.toString(LockCheck.getPID()), lockChecker.getMetaInfo(3));
+        // the start time and boot id are held in the slot, and the start time is read back from there
+        final String[] lines = lockChecker.getMetaInfoLines(3);
+        assertArrayEquals(new String[]{Long.toString(LockCheck.getPID()), "priority=3", "start=" + ProcessIdentity.current().startTime()}, lines);
+        assertEquals(ProcessIdentity.current().startTime(), ProcessIdentity.parse(lines).startTime());
+
+        // another process sees the same table
+        final MappedLockChecker other = new MappedLockChecker(table);
+        assertFalse(other.isLockFree(3));
+        assertTrue(other.isLockFree(4));
+
+        assertArrayEquals(new Integer[]{3}, lockChecker.getLockedMetaInfo(0).keySet().toArray());
+        assertArrayEquals(lines, lockChecker.getLockedMetaInfo(0).get(3));
+
+        assertTrue(lockChecker.releaseLock(3));
+        assertTrue(lockChecker.isLockFree(3));
+        assertNull(lockChecker.getMetaInfo(3));
+    }
+
+    @Test
+    public void interruptedThread() throws IOException {
+        // an interrupt doesn't close the table for every other thread
+        Thread.currentThread().interrupt();
+        try {
+            assertTrue(lockChecker.obtainLock(6, Long.toString(LockCheck.getPID())));
+        } finally {
+            assertTrue(Thread.interrupted());
+        }
+        assertTrue(lockChecker.releaseLock(6));
+        assertTrue(lockChecker.obtainLock(6, Long.toString(LockCheck.getPID())));
+        assertTrue(lockChecker.releaseLock(6));
+    }
+
+    @Test
+    public void revocation() throws IOException {
+        assertTrue(lockChecker.obtainLock(5, LockCheck.getPID() + "\npriority=0"));
+        assertNull(lockChecker.getRevocationRequest(5));
+        assertTrue(lockChecker.requestRevocation(5, "1234\npriority=9"));
+        assertArrayEquals(new String[]{"1234", "priority=9"}, lockChecker.getRevocationRequest(5));
+        lockChecker.cancelRevocation(5);
+        assertNull(lockChecker.getRevocationRequest(5));
+
+        // a request from another process still running is only replaced by a higher priority
+        final long pid = LockCheck.getPID();
+        assertTrue(lockChecker.requestRevocation(5, "1\npriority=9"));
+        assertFalse(lockChecker.requestRevocation(5, pid + "\npriority=9"));
+        assertArrayEquals(new String[]{"1", "priority=9"}, lockChecker.getRevocationRequest(5));
+        assertTrue(lockChecker.requestRevocation(5, pid + "\npriority=10"));
+        assertArrayEquals(new String[]{Long.toString(pid), "priority=10"}, lockChecker.getRevocationRequest(5));
+        // the same process can lower its own request
+        assertTrue(lockChecker.requestRevocation(5, pid + "\npriority=4"));
+        lockChecker.cancelRevocation(5);
+        lockChecker.releaseLock(5);
+    }
+
+    @Test
+    public void freesLockOfDeadProcess() throws IOException {
+        // a slot claimed by a process which is no longer running, with a stale heartbeat
+        final int cpu = 7;
+        try (FileChannel channel = FileChannel.open(table.toPath(), StandardOpenOption.WRITE)) {
+            final ByteBuffer slot = ByteBuffer.allocate(24).order(ByteOrder.nativeOrder());
+            slot.putLong((long) Integer.MAX_VALUE << 32 | 1).putLong(12345).putLong(1).flip();
+            channel.write(slot, 256L * (cpu + 1));
+        }
+        // reading the locks reports it, but leaves it to be freed by the next to acquire it
+        for (int i = 0; i < 2; i++) {
+            final String[] lines = lockChecker.getLockedMetaInfo(0).get(cpu);
+            assertEquals(LockChecker.ORPHANED, lines[lines.length - 1]);
+        }
+        assertTrue(lockChecker.isLockFree(cpu));
+        assertTrue(lockChecker.obtainLock(cpu, Long.toString(LockCheck.getPID())));
+        lockChecker.releaseLock(cpu);
+    }
+
+    @Test
+    public void leaseExpires() throws Exception {
+        // a slot held by a process still running which stopped renewing it ten seconds ago
+        final int cpu = 9;
+        final long startTime = ProcessIdentity.startTime(1);
+        Assume.assumeTrue(startTime != ProcessIdentity.UNKNOWN);
+        try (FileChannel channel = FileChannel.open(table.toPath(), StandardOpenOption.WRITE)) {
+            final ByteBuffer slot = ByteBuffer.allocate(24).order(ByteOrder.nativeOrder());
+            slot.putLong(1L << 32 | 1).putLong(startTime).putLong(System.currentTimeMillis() - 10_000).flip();
+            channel.write(slot, 256L * (cpu + 1));
+        }
+        assertFalse(lockChecker.isLockFree(cpu));
+        final MappedLockChecker withLease = new MappedLockChecker(table, 5_000);
+        final String[] lines = withLease.getLockedMetaInfo(0).get(cpu);
+        assertEquals(LockChecker.EXPIRED, lines[lines.length - 1]);
+        assertTrue(withLease.isLockFree(cpu));
+
+        // and this process loses a lock taken once its lease ran out
+        final MappedLockChecker leased = new MappedLockChecker(table, 300);
+        final BlockingQueue<Integer> lost = new LinkedBlockingQueue<>();
+        leased.onLeaseLost(lost::add);
+        assertTrue(leased.obtainLock(cpu, Long.toString(LockCheck.getPID())));
+        Thread.sleep(250);
+        assertNull(lost.poll());
+        try (FileChannel channel = FileChannel.open(table.toPath(), StandardOpenOption.WRITE)) {
+            final ByteBuffer owner = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+            owner.putLong(1L << 32 | 1).flip();
+            channel.write(owner, 256L * (cpu + 1));
+        }
+        assertEquals(Integer.valueOf(cpu), lost.poll(5, TimeUnit.SECONDS));
+        assertFalse(leased.releaseLock(cpu));
+    }
+
+    @Test
+    public void claimWithoutHeartbeatIsNotALapsedLease() throws IOException {
+        // a slot with an owner still running but no heartbeat isn't taken as its lease having run out
+        final int cpu = 10;
+        final long startTime = ProcessIdentity.startTime(1);
+        Assume.assumeTrue(startTime != ProcessIdentity.UNKNOWN);
+        try (FileChannel channel = FileChannel.open(table.toPath(), StandardOpenOption.WRITE)) {
+            final ByteBuffer slot = ByteBuffer.allocate(24).order(ByteOrder.nativeOrder());
+            slot.putLong(1L << 32 | 1).putLong(startTime).putLong(0).flip();
+            channel.write(slot, 256L * (cpu + 1));
+        }
+        assertFalse(new MappedLockChecker(table, 300).isLockFree(cpu));
+        assertFalse(lockChecker.obtainLock(cpu, Long.toString(LockCheck.getPID())));
+    }
+
+    private long heartbeat(int cpu) throws IOException {
+        try (FileChannel channel = FileChannel.open(table.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer heartbeat = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+            channel.read(heartbeat, 256L * (cpu + 1) + 16);
+            return heartbeat.getLong(0);
+        }
+    }
+
+    @Test
+    public void hungHolderStopsRenewing() throws Exception {
+        final MappedLockChecker leased = new MappedLockChecker(table, 300);
+        final AtomicBoolean responsive = new AtomicBoolean(true);
+        leased.renewWhile(id -> responsive.get());
+        assertTrue(leased.obtainLock(11, Long.toString(LockCheck.getPID())));
+        final long obtained = heartbeat(11);
+        Thread.sleep(400);
+        assertTrue(heartbeat(11) > obtained);
+
+        // the lease of a holder which has hung runs out, so another process can take it
+        responsive.set(false);
+        Thread.sleep(150);
+        final long last = heartbeat(11);
+        Thread.sleep(400);
+        assertEquals(last, heartbeat(11));
+        assertTrue(System.currentTimeMillis() - last >= 300);
+        assertTrue(leased.releaseLock(11));
+    }
+
+    @Test
+    public void freesLockOfReusedPid() throws IOException {
+        // a slot claimed by an earlier process with the pid of one still running
+        final int cpu = 8;
+        final long startTime = ProcessIdentity.startTime(1);
+        Assume.assumeTrue(startTime != ProcessIdentity.UNKNOWN);
+        try (FileChannel channel = FileChannel.open(table.toPath(), StandardOpenOption.WRITE)) {
+            final ByteBuffer slot = ByteBuffer.allocate(24).order(ByteOrder.nativeOrder());
+            slot.putLong(1L << 32 | 1).putLong(startTime + 1).putLong(1).flip();
+            channel.write(slot, 256L * (cpu + 1));
+        }
+        assertTrue(lockChecker.isLockFree(cpu));
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2016-2020 chronicle.software
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.openhft.affinity;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import static net.openhft.affinity.LockCheck.IS_LINUX;
+import static org.junit.Assert.*;
+
+public class ProcessIdentityTest {
+
+    @Before
+    public void before() {
+        Assume.assumeTrue(IS_LINUX);
+    }
+
+    @Test
+    public void current() {
+        final ProcessIdentity current = ProcessIdentity.current();
+        assertEquals(LockCheck.getPID(), current.pid());
+        assertTrue(current.isVerifiable());
+        assertTrue(current.isRunning());
+        assertEquals(current, ProcessIdentity.parse((current.pid() + "\npriority=0\n" + current.toMetaInfo()).split("\n")));
+    }
+
+    @Test
+    public void reusedPid() {
+        final ProcessIdentity current = ProcessIdentity.current();
+        assertFalse(new ProcessIdentity(current.pid(), current.startTime() + 1, current.bootId()).isRunning());
+        assertFalse(new ProcessIdentity(current.pid(), current.startTime(), "00000000-0000-0000-0000-000000000000").isRunning());
+    }
+
+    @Test
+    public void olderMetaInfo() {
+        // a lock taken by an older version only records the pid
+        final ProcessIdentity older = ProcessIdentity.parse(new String[]{Long.toString(LockCheck.getPID())});
+        assertNotNull(older);
+        assertFalse(older.isVerifiable());
+        assertTrue(older.isRunning());
+        assertNull(ProcessIdentity.parse(new String[]{"not a pid"}));
+        assertNull(ProcessIdentity.parse(null));
+    }
+
+    @Test
+    public void notRunning() {
+        assertEquals(ProcessIdentity.UNKNOWN, ProcessIdentity.startTime(Integer.MAX_VALUE));
+    }
+}
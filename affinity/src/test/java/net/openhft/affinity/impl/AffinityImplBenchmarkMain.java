@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016-2020 chronicle.software
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.openhft.affinity.impl;
+
+import net.openhft.affinity.IAffinity;
+
+import java.util.BitSet;
+
+/**
+ * Compares the cost of each call with JNA and, on Java 22+, the Foreign Function and Memory API.
+ * <pre>
+ * java --enable-native-access=ALL-UNNAMED -cp ... net.openhft.affinity.impl.AffinityImplBenchmarkMain
+ * </pre>
+ */
+public final class AffinityImplBenchmarkMain {
+    private static final int RUNS = 5;
+    private static final int CALLS = 1_000_000;
+    static volatile Object blackhole;
+
+    private AffinityImplBenchmarkMain() {
+        throw new InstantiationError("Must not instantiate this class");
+    }
+
+    public static void main(String... args) {
+        if (LinuxJNAAffinity.LOADED)
+            benchmark("JNA", LinuxJNAAffinity.INSTANCE);
+        final IAffinity panama = PanamaAffinityTest.load();
+        if (panama == null)
+            System.out.println("FFM not available, requires Java 22+ and the multi-release jar");
+        else
+            benchmark("FFM", panama);
+    }
+
+    static void benchmark(String name, IAffinity affinity) {
+        final BitSet mask = affinity.getAffinity();
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            int sum = 0;
+            for (int i = 0; i < CALLS; i++)
+                sum += affinity.getCpu();
+            final long getCpu = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < CALLS; i++)
+                sum += affinity.getThreadId();
+            final long getThreadId = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < CALLS; i++)
+                blackhole = affinity.getAffinity();
+            final long getAffinity = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < CALLS; i++)
+                affinity.setAffinity(mask);
+            final long setAffinity = System.nanoTime() - start;
+
+            blackhole = sum;
+            System.out.printf("%s getCpu: %.1f ns, getThreadId: %.1f ns, getAffinity: %.1f ns, setAffinity: %.1f ns%n",
+                    name, (double) getCpu / CALLS, (double) getThreadId / CALLS,
+                    (double) getAffinity / CALLS, (double) setAffinity / CALLS);
+        }
+    }
+}
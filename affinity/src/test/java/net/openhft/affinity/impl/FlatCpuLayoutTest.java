@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016-2020 chronicle.software
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.openhft.affinity.impl;
+
+import net.openhft.affinity.CpuLayout;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.stream.IntStream;
+
+import static net.openhft.affinity.impl.SysfsCpuLayoutTest.sysfsRoot;
+import static org.junit.Assert.*;
+
+public class FlatCpuLayoutTest {
+
+    private static void assertSameLayout(CpuLayout expected, FlatCpuLayout actual) {
+        assertEquals(expected.cpus(), actual.cpus());
+        assertEquals(expected.sockets(), actual.sockets());
+        assertEquals(expected.coresPerSocket(), actual.coresPerSocket());
+        assertEquals(expected.threadsPerCore(), actual.threadsPerCore());
+        assertEquals(expected.numaNodes(), actual.numaNodes());
+        for (int i = 0; i < expected.cpus(); i++) {
+            assertEquals(expected.isOnline(i), actual.isOnline(i));
+            if (!expected.isOnline(i))
+                continue;
+            assertEquals(expected.socketId(i), actual.socketId(i));
+            assertEquals(expected.coreId(i), actual.coreId(i));
+            assertEquals(expected.threadId(i), actual.threadId(i));
+            assertEquals(expected.l2CacheId(i), actual.l2CacheId(i));
+            assertEquals(expected.l3CacheId(i), actual.l3CacheId(i));
+            assertEquals(expected.numaNodeId(i), actual.numaNodeId(i));
+        }
+        assertEquals(expected.toString(), actual.toString());
+    }
+
+    @Test
+    public void testCpuInfo() throws IOException {
+        VanillaCpuLayout vcl = VanillaCpuLayout.fromCpuInfo("i7.cpuinfo");
+        FlatCpuLayout fcl = FlatCpuLayout.of(vcl);
+        assertSameLayout(vcl, fcl);
+        assertSame(fcl, FlatCpuLayout.of(fcl));
+        assertEquals(fcl, FlatCpuLayout.of(VanillaCpuLayout.fromProperties("i7.properties")));
+
+        assertTrue(fcl.isSibling(1, 5));
+        assertFalse(fcl.isSibling(1, 2));
+        assertEquals(1, fcl.nextSibling(5, 0));
+        assertEquals(5, fcl.nextSibling(5, 2));
+        assertEquals(-1, fcl.nextSibling(5, 6));
+    }
+
+    @Test
+    public void testSparseCoreIds() throws IOException {
+        // core ids 0, 1, 2, 8, 9 and 10 on each of two sockets, cpus i and i+12 share a core.
+        VanillaCpuLayout vcl = VanillaCpuLayout.fromCpuInfo("dual.sparse.xeon.cpuinfo");
+        FlatCpuLayout fcl = FlatCpuLayout.of(vcl);
+        assertSameLayout(vcl, fcl);
+        assertEquals(6, fcl.coresPerSocket());
+
+        // socket 0 core 8 and socket 1 core 2
+        assertEquals(8, fcl.coreId(3));
+        assertEquals(2, fcl.coreId(8));
+        assertNotEquals(fcl.physicalCoreId(3), fcl.physicalCoreId(8));
+        assertFalse(fcl.isSibling(3, 8));
+        assertTrue(fcl.isSibling(3, 15));
+        assertEquals(-1, fcl.nextSibling(3, 16));
+
+        assertEquals(12, IntStream.range(0, fcl.cpus()).map(fcl::physicalCoreId).distinct().count());
+        for (int i = 0; i < 12; i++)
+            assertEquals(fcl.physicalCoreId(i), fcl.physicalCoreId(i + 12));
+    }
+
+    @Test
+    public void testSysfs() throws IOException {
+        SysfsCpuLayout scl = SysfsCpuLayout.fromSysfs(sysfsRoot("dual.socket.sysfs"));
+        FlatCpuLayout fcl = FlatCpuLayout.of(scl);
+        assertSameLayout(scl, fcl);
+        for (int n = 0; n < 4; n++)
+            for (int m = 0; m < 4; m++)
+                assertEquals(scl.numaDistance(n, m), fcl.numaDistance(n, m));
+
+        // cpu 15 is offline so the last core of socket 1 has one thread
+        assertEquals(-1, fcl.physicalCoreId(15));
+        assertFalse(fcl.isSibling(7, 15));
+        assertEquals(7, fcl.nextSibling(7, 0));
+        assertEquals(-1, fcl.nextSibling(7, 8));
+        assertEquals(fcl.physicalCoreId(4) + 3, fcl.physicalCoreId(7));
+    }
+
+    @Test
+    public void testManyCpus() {
+        // siblings more than 64 cpus apart span mask words
+        FlatCpuLayout fcl = FlatCpuLayout.of(new NoCpuLayout(200) {
+            @Override
+            public int threadsPerCore() {
+                return 2;
+            }
+
+            @Override
+            public int coresPerSocket() {
+                return 100;
+            }
+
+            @Override
+            public int coreId(int cpuId) {
+                return cpuId % 100;
+            }
+
+            @Override
+            public int threadId(int cpuId) {
+                return cpuId / 100;
+            }
+        });
+        assertTrue(fcl.isSibling(3, 103));
+        assertEquals(103, fcl.nextSibling(3, 4));
+        assertEquals(-1, fcl.nextSibling(3, 104));
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2016-2020 chronicle.software
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.openhft.affinity.impl;
+
+import com.sun.jna.Memory;
+import net.openhft.affinity.CpuSet;
+import net.openhft.affinity.CpuSetTest;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.BitSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LinuxHelperTest {
+    @BeforeClass
+    public static void checkJniLibraryPresent() {
+        Assume.assumeTrue(LinuxJNAAffinity.LOADED);
+    }
+
+    @Test
+    public void cpuMaskRoundTrip() {
+        for (int cpus : new int[]{64, 512, 1024, 4096}) {
+            BitSet affinity = new BitSet();
+            affinity.set(0);
+            affinity.set(31);
+            affinity.set(32);
+            affinity.set(cpus / 2 + 1);
+            affinity.set(cpus - 1);
+            int size = LinuxHelper.cpuSetSize(cpus);
+            assertTrue(size * 8 >= cpus);
+            Memory cpuset = new Memory(size);
+            LinuxHelper.fromBitSet(affinity, cpuset, size);
+            assertEquals(affinity, LinuxHelper.toBitSet(cpuset, size));
+        }
+    }
+
+    @Test
+    public void getAffinity() {
+        BitSet affinity = LinuxHelper.sched_getaffinity(0);
+        assertTrue(affinity.cardinality() >= Runtime.getRuntime().availableProcessors());
+        assertEquals(affinity, LinuxJNAAffinity.INSTANCE.getAffinity());
+    }
+
+    @Test
+    public void getAffinityIntoCpuSet() {
+        final CpuSet cpus = new CpuSet(0);
+        LinuxHelper.sched_getaffinity(0, cpus);
+        assertEquals(LinuxHelper.sched_getaffinity(0), cpus.toBitSet());
+        LinuxHelper.sched_setaffinity(0, cpus);
+        CpuSetTest.assertGarbageFree(() -> {
+            LinuxJNAAffinity.INSTANCE.getAffinity(cpus);
+            LinuxJNAAffinity.INSTANCE.setAffinity(cpus);
+        });
+        assertEquals(LinuxHelper.sched_getaffinity(0), cpus.toBitSet());
+    }
+}
@@ -24,6 +24,11 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import software.chronicle.enterprise.internals.impl.NativeAffinity;
 
+import java.util.BitSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 /*
@@ -41,6 +46,36 @@ public class NativeAffinityImpTest extends AbstractAffinityImplTest {
         return NativeAffinity.INSTANCE;
     }
 
+    @Test
+    public void otherThread() throws InterruptedException {
+        final IAffinity impl = getImpl();
+        final AtomicInteger tid = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final Thread thread = new Thread(() -> {
+            tid.set(impl.getThreadId());
+            started.countDown();
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.start();
+        try {
+            started.await();
+            final BitSet affinity = impl.getAffinity(tid.get());
+            assertEquals(impl.getAffinity(), affinity);
+            final BitSet one = new BitSet();
+            one.set(affinity.nextSetBit(0));
+            impl.setAffinity(tid.get(), one);
+            assertEquals(one, impl.getAffinity(tid.get()));
+        } finally {
+            done.countDown();
+            thread.join();
+        }
+    }
+
     @Test
     public void testGettid() {
         System.out.println("pid=" + getImpl().getProcessId());
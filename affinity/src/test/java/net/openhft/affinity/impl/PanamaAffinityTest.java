@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016-2020 chronicle.software
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.openhft.affinity.impl;
+
+import net.openhft.affinity.CpuSet;
+import net.openhft.affinity.CpuSetTest;
+import net.openhft.affinity.IAffinity;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.BitSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * PanamaAffinity is only compiled on Java 22+, so it is loaded by name and agrees with JNA.
+ */
+public class PanamaAffinityTest {
+    private static IAffinity panama;
+
+    @BeforeClass
+    public static void checkPanamaPresent() {
+        panama = load();
+        Assume.assumeTrue(panama != null && LinuxJNAAffinity.LOADED);
+    }
+
+    static IAffinity load() {
+        try {
+            final Class<?> clazz = Class.forName("net.openhft.affinity.impl.PanamaAffinity");
+            return clazz.getField("LOADED").getBoolean(null) ? (IAffinity) clazz.getField("INSTANCE").get(null) : null;
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    @Test
+    public void sameAsJNA() {
+        assertEquals(LinuxJNAAffinity.INSTANCE.getThreadId(), panama.getThreadId());
+        assertEquals(LinuxJNAAffinity.INSTANCE.getProcessId(), panama.getProcessId());
+        assertEquals(LinuxJNAAffinity.INSTANCE.getAffinity(), panama.getAffinity());
+        final int cpu = panama.getCpu();
+        assertTrue(cpu >= 0 && cpu < Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    @Test
+    public void threadIdOfEachThread() throws InterruptedException {
+        final int tid = panama.getThreadId();
+        assertEquals(tid, panama.getThreadId());
+        final int[] other = new int[2];
+        final Thread thread = new Thread(() -> {
+            other[0] = panama.getThreadId();
+            other[1] = LinuxJNAAffinity.INSTANCE.getThreadId();
+        });
+        thread.start();
+        thread.join();
+        assertNotEquals(tid, other[0]);
+        assertEquals(other[1], other[0]);
+    }
+
+    @Test
+    public void setAffinity() {
+        final BitSet affinity = panama.getAffinity();
+        final BitSet one = new BitSet();
+        one.set(affinity.nextSetBit(0));
+        try {
+            panama.setAffinity(one);
+            assertEquals(one, panama.getAffinity());
+            assertEquals(one, LinuxJNAAffinity.INSTANCE.getAffinity());
+            assertEquals(one, panama.getAffinity(panama.getThreadId()));
+        } finally {
+            panama.setAffinity(affinity);
+        }
+        assertEquals(affinity, panama.getAffinity());
+    }
+
+    @Test
+    public void getAffinityIntoCpuSet() {
+        final CpuSet cpus = new CpuSet();
+        panama.getAffinity(cpus);
+        assertEquals(panama.getAffinity(), cpus.toBitSet());
+        CpuSetTest.assertGarbageFree(() -> {
+            panama.getAffinity(cpus);
+            panama.setAffinity(cpus);
+        });
+    }
+}
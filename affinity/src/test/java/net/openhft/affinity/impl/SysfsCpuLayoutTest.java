@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016-2020 chronicle.software
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package net.openhft.affinity.impl;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class SysfsCpuLayoutTest {
+
+    static String sysfsRoot(String name) {
+        return new File(SysfsCpuLayoutTest.class.getClassLoader().getResource(name).getFile()).getAbsolutePath();
+    }
+
+    @Test
+    public void testDualSocket() throws IOException {
+        SysfsCpuLayout scl = SysfsCpuLayout.fromSysfs(sysfsRoot("dual.socket.sysfs"));
+        // kernel core ids are 0, 1, 4, 5 on each socket and cpu 15 is offline.
+        assertEquals("0: CpuInfo{socketId=0, dieId=0, coreId=0, threadId=0, l2CacheId=0, l3CacheId=0, numaNodeId=0}\n" +
+                "1: CpuInfo{socketId=0, dieId=0, coreId=1, threadId=0, l2CacheId=1, l3CacheId=0, numaNodeId=0}\n" +
+                "2: CpuInfo{socketId=0, dieId=0, coreId=2, threadId=0, l2CacheId=2, l3CacheId=0, numaNodeId=1}\n" +
+                "3: CpuInfo{socketId=0, dieId=0, coreId=3, threadId=0, l2CacheId=3, l3CacheId=0, numaNodeId=1}\n" +
+                "4: CpuInfo{socketId=1, dieId=0, coreId=0, threadId=0, l2CacheId=4, l3CacheId=4, numaNodeId=2}\n" +
+                "5: CpuInfo{socketId=1, dieId=0, coreId=1, threadId=0, l2CacheId=5, l3CacheId=4, numaNodeId=2}\n" +
+                "6: CpuInfo{socketId=1, dieId=0, coreId=2, threadId=0, l2CacheId=6, l3CacheId=4, numaNodeId=3}\n" +
+                "7: CpuInfo{socketId=1, dieId=0, coreId=3, threadId=0, l2CacheId=7, l3CacheId=4, numaNodeId=3}\n" +
+                "8: CpuInfo{socketId=0, dieId=0, coreId=0, threadId=1, l2CacheId=0, l3CacheId=0, numaNodeId=0}\n" +
+                "9: CpuInfo{socketId=0, dieId=0, coreId=1, threadId=1, l2CacheId=1, l3CacheId=0, numaNodeId=0}\n" +
+                "10: CpuInfo{socketId=0, dieId=0, coreId=2, threadId=1, l2CacheId=2, l3CacheId=0, numaNodeId=1}\n" +
+                "11: CpuInfo{socketId=0, dieId=0, coreId=3, threadId=1, l2CacheId=3, l3CacheId=0, numaNodeId=1}\n" +
+                "12: CpuInfo{socketId=1, dieId=0, coreId=0, threadId=1, l2CacheId=4, l3CacheId=4, numaNodeId=2}\n" +
+                "13: CpuInfo{socketId=1, dieId=0, coreId=1, threadId=1, l2CacheId=5, l3CacheId=4, numaNodeId=2}\n" +
+                "14: CpuInfo{socketId=1, dieId=0, coreId=2, threadId=1, l2CacheId=6, l3CacheId=4, numaNodeId=3}\n" +
+                "15: offline\n", scl.toString());
+        assertEquals(16, scl.cpus());
+        assertEquals(2, scl.sockets());
+        assertEquals(4, scl.coresPerSocket());
+        assertEquals(2, scl.threadsPerCore());
+        assertTrue(scl.isOnline(14));
+        assertFalse(scl.isOnline(15));
+    }
+
+    @Test
+    public void testSubNumaClustering() throws IOException {
+        SysfsCpuLayout scl = SysfsCpuLayout.fromSysfs(sysfsRoot("dual.socket.sysfs"));
+        // two nodes per socket
+        assertEquals(4, scl.numaNodes());
+        assertEquals(10, scl.numaDistance(0, 0));
+        assertEquals(12, scl.numaDistance(0, 1));
+        assertEquals(21, scl.numaDistance(1, 2));
+        assertEquals(12, scl.numaDistance(3, 2));
+    }
+
+    @Test
+    public void testCacheGroups() throws IOException {
+        SysfsCpuLayout scl = SysfsCpuLayout.fromSysfs(sysfsRoot("epyc.sysfs"));
+        // one socket with two CCXs of four cores, each CCX with its own L3.
+        assertEquals(1, scl.sockets());
+        assertEquals(8, scl.coresPerSocket());
+        assertEquals(2, scl.threadsPerCore());
+        for (int i = 0; i < scl.cpus(); i++) {
+            assertEquals(i % 8, scl.l2CacheId(i));
+            assertEquals(i % 8 < 4 ? 0 : 4, scl.l3CacheId(i));
+            assertEquals(0, scl.numaNodeId(i));
+        }
+        // no node information so one node per socket
+        assertEquals(1, scl.numaNodes());
+        assertEquals(10, scl.numaDistance(0, 0));
+    }
+
+    @Test
+    public void testEquals() throws IOException {
+        assertEquals(SysfsCpuLayout.fromSysfs(sysfsRoot("dual.socket.sysfs")),
+                SysfsCpuLayout.fromSysfs(sysfsRoot("dual.socket.sysfs")));
+    }
+
+    @Test
+    public void testThisMachine() throws IOException {
+        assumeTrue(new File("/sys/devices/system/cpu").isDirectory());
+        SysfsCpuLayout scl = SysfsCpuLayout.fromSysfs();
+        assertTrue(scl.cpus() >= Runtime.getRuntime().availableProcessors());
+        System.out.println(scl);
+    }
+
+    @Test
+    public void testParseCpuList() {
+        assertEquals("{0, 1, 2, 3, 8, 10, 11}", Utilities.parseCpuList("0-3,8,10-11\n").toString());
+        assertTrue(Utilities.parseCpuList("").isEmpty());
+    }
+}
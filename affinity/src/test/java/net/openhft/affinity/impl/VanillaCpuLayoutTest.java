@@ -21,6 +21,7 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Properties;
 
 import static org.junit.Assert.assertEquals;
 
@@ -126,4 +127,20 @@ public class VanillaCpuLayoutTest {
                 "6: CpuInfo{socketId=0, coreId=2, threadId=1}\n" +
                 "7: CpuInfo{socketId=0, coreId=3, threadId=1}\n", vcl.toString());
     }
+
+    @Test
+    public void testFromProperties1024() {
+        // 2 sockets * 256 cores * 2 threads
+        Properties prop = new Properties();
+        for (int i = 0; i < 1024; i++)
+            prop.setProperty("" + i, (i / 256 % 2) + "," + (i % 256) + "," + (i / 512));
+        VanillaCpuLayout vcl = VanillaCpuLayout.fromProperties(prop);
+        assertEquals(1024, vcl.cpus());
+        assertEquals(2, vcl.sockets());
+        assertEquals(256, vcl.coresPerSocket());
+        assertEquals(2, vcl.threadsPerCore());
+        assertEquals(1, vcl.socketId(1023));
+        assertEquals(255, vcl.coreId(1023));
+        assertEquals(1, vcl.threadId(1023));
+    }
 }
@@ -17,6 +17,8 @@
 
 package software.chronicle.enterprise.internals;
 
+import net.openhft.affinity.CpuSet;
+import net.openhft.affinity.CpuSetTest;
 import net.openhft.affinity.IAffinity;
 import net.openhft.affinity.impl.LinuxJNAAffinity;
 import net.openhft.affinity.impl.Utilities;
@@ -121,6 +123,25 @@ public class NativeAffinityTest {
         System.out.println("cpu: " + NativeAffinity.INSTANCE.getCpu());
     }
 
+    @Test
+    public void sameIdsAsJNA() {
+        Assume.assumeTrue(LinuxJNAAffinity.LOADED);
+        assertEquals(LinuxJNAAffinity.INSTANCE.getProcessId(), NativeAffinity.INSTANCE.getProcessId());
+        assertEquals(LinuxJNAAffinity.INSTANCE.getThreadId(), NativeAffinity.INSTANCE.getThreadId());
+        assertEquals(LinuxJNAAffinity.INSTANCE.getAffinity(), NativeAffinity.INSTANCE.getAffinity());
+    }
+
+    @Test
+    public void getAffinityIntoCpuSet() {
+        final CpuSet cpus = new CpuSet();
+        NativeAffinity.INSTANCE.getAffinity(cpus);
+        assertEquals(NativeAffinity.INSTANCE.getAffinity(), cpus.toBitSet());
+        CpuSetTest.assertGarbageFree(() -> {
+            NativeAffinity.INSTANCE.getAffinity(cpus);
+            NativeAffinity.INSTANCE.setAffinity(cpus);
+        });
+    }
+
     private void getAffinityReturnsValuePreviouslySet(final IAffinity impl,
                                                       final BitSet mask) {
 